@@ -0,0 +1,99 @@
+#!/usr/bin/env python3
+"""
+Compares two JMH result files (written with -rf json) and flags regressions.
+
+    python3 bench/compare.py baseline.json current.json [--threshold 5] [--alloc-threshold 5]
+
+A benchmark regresses when its score got worse by more than the threshold (in percent) AND by more than
+the sum of both confidence intervals, so that noise alone doesn't trip it. Allocation per operation
+(gc.alloc.rate.norm, present when run with -prof gc) regresses when it grew by more than the allocation
+threshold and by more than 16 bytes. Exit code is 1 if anything regressed, 0 otherwise.
+"""
+
+import argparse
+import json
+import sys
+
+ALLOC = "gc.alloc.rate.norm"
+ALLOC_SLACK_BYTES = 16
+LOWER_IS_BETTER = {"avgt", "sample", "ss"}
+
+
+def load(path):
+    results = {}
+    with open(path) as f:
+        for run in json.load(f):
+            params = ",".join(f"{k}={v}" for k, v in sorted(run.get("params", {}).items()))
+            name = run["benchmark"] + (f"({params})" if params else "")
+            primary = run["primaryMetric"]
+            results[name] = {
+                "mode": run["mode"],
+                "score": primary["score"],
+                "error": as_number(primary.get("scoreError")) or 0.0,
+                "unit": primary["scoreUnit"],
+                "alloc": as_number(alloc(run.get("secondaryMetrics", {})).get("score")),
+            }
+    return results
+
+
+def alloc(secondary):
+    # Older JMH versions prefix secondary metric names with a middle dot
+    return secondary.get(ALLOC) or secondary.get("\u00b7" + ALLOC) or {}
+
+
+def as_number(x):
+    try:
+        x = float(x)
+    except (TypeError, ValueError):
+        return None
+    return None if x != x else x  # NaN means "not measured"
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Flags JMH regressions between two result files")
+    parser.add_argument("baseline")
+    parser.add_argument("current")
+    parser.add_argument("--threshold", type=float, default=5.0, help="Allowed slowdown, percent")
+    parser.add_argument("--alloc-threshold", type=float, default=5.0, help="Allowed growth of bytes per operation, percent")
+    args = parser.parse_args()
+
+    base = load(args.baseline)
+    curr = load(args.current)
+    regressions = 0
+
+    print(f"{'Benchmark':70} {'Baseline':>14} {'Current':>14} {'Change':>9}  {'B/op':>20}")
+    for name in sorted(curr):
+        c = curr[name]
+        b = base.get(name)
+        if b is None or b["mode"] != c["mode"] or b["unit"] != c["unit"]:
+            print(f"{name:70} {'-':>14} {c['score']:14.3f} {'new':>9}")
+            continue
+
+        # Positive change means worse, whatever the mode
+        sign = 1 if c["mode"] in LOWER_IS_BETTER else -1
+        worse = sign * (c["score"] - b["score"])
+        change = 100.0 * worse / b["score"] if b["score"] else 0.0
+        slow = change > args.threshold and worse > b["error"] + c["error"]
+
+        alloc_text = ""
+        fat = False
+        ba, ca = b["alloc"], c["alloc"]
+        if ba is not None and ca is not None:
+            alloc_text = f"{ba:.0f} -> {ca:.0f}"
+            fat = ca - ba > ALLOC_SLACK_BYTES and ca > ba * (1 + args.alloc_threshold / 100)
+
+        flag = "  REGRESSION" if slow else ""
+        if fat:
+            flag += "  ALLOCATES MORE"
+        regressions += slow or fat
+        print(f"{name:70} {b['score']:14.3f} {c['score']:14.3f} {change:+8.1f}%  {alloc_text:>20}{flag}")
+
+    for name in sorted(set(base) - set(curr)):
+        print(f"{name:70} {base[name]['score']:14.3f} {'-':>14} {'gone':>9}")
+
+    print(f"\n{regressions} regression(s)" if regressions else "\nNo regressions")
+    return 1 if regressions else 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
@@ -0,0 +1,13 @@
+#!/bin/sh
+# Builds the project and runs all benchmarks with the GC profiler, saving results as JSON.
+#
+#   bench/run.sh current.json [extra JMH options, e.g. a benchmark regex or -f 1]
+#
+# To check a change for regressions, run this on the baseline and on the change, then:
+#   python3 bench/compare.py baseline.json current.json
+set -e
+cd "$(dirname "$0")/.."
+out="${1:-jmh-result.json}"
+[ $# -gt 0 ] && shift
+mvn -B -q package -DskipTests
+java -jar bench/target/benchmarks.jar -prof gc -rf json -rff "$out" "$@"
@@ -0,0 +1,56 @@
+package arithmancy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of calculating one expression over a batch of inputs. Scores are per input row.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class BatchBenchmark {
+    private static final int ROWS = 1024;
+
+    private Expression expression;
+    private final double[] xs = new double[ROWS];
+    private final double[] ys = new double[ROWS];
+    private final String[] names = {"x", "y"};
+    private final double[][] columns = {xs, ys};
+    private final double[] results = new double[ROWS];
+
+    @Setup
+    public void setUp() throws ParsingError {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
+        expression = ExpressionParser.parse(Formulas.SMALL);
+        Random random = new Random(42);
+        for (int i = 0; i < ROWS; i++) {
+            xs[i] = 0.5 + random.nextDouble() * 10;
+            ys[i] = 0.5 + random.nextDouble() * 10;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void setVariablesAndCalculate(Blackhole bh) {
+        for (int i = 0; i < ROWS; i++) {
+            ExpressionParser.setVariable("x", xs[i]);
+            ExpressionParser.setVariable("y", ys[i]);
+            bh.consume(expression.calculate());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] calculateBatch() {
+        ExpressionParser.calculateBatch(expression, names, columns, results);
+        return results;
+    }
+}
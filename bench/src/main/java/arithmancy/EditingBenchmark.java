@@ -0,0 +1,47 @@
+package arithmancy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a long formula after each keystroke of a formula editor: typing a digit in the middle of it, then deleting it again.
+ * parseAll() parses the whole text each time, reparse() only the parentheses around the edit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class EditingBenchmark {
+
+    @Param({"50", "500"})
+    public int blocks;
+
+    private String formula, typed;
+    private int offset;
+    private ParsedFormula parsed;
+
+    @Setup
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+        formula = Formulas.manyBlocks(blocks);
+        offset = formula.indexOf(" * 2 - 1", formula.length() / 2) + " * 2".length();
+        typed = formula.substring(0, offset) + "5" + formula.substring(offset);
+        parsed = ExpressionParser.parseForEditing(formula);
+    }
+
+    @Benchmark
+    public Expression parseAll() throws ParsingError {
+        ExpressionParser.parse(typed);
+        return ExpressionParser.parse(formula);
+    }
+
+    @Benchmark
+    public Expression reparse() {
+        parsed = ExpressionParser.reparse(parsed, offset, 0, "5");
+        parsed = ExpressionParser.reparse(parsed, offset, 1, "");
+        return parsed.expression();
+    }
+}
@@ -0,0 +1,104 @@
+package arithmancy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One calculate() of a parsed expression on each evaluation path:
+ * <ul>
+ *     <li>recursive - small tree, plain operators</li>
+ *     <li>iterative - tree higher than ExpressionTrees.MAX_RECURSIVE_HEIGHT, walked with an explicit stack</li>
+ *     <li>memoized - small tree whose custom function is served from MemoCache</li>
+ *     <li>fastmath - small tree with the fast-math operator set</li>
+ *     <li>compiled - small tree compiled by ExpressionCompiler</li>
+ *     <li>adaptive - small tree in an AdaptiveExpression, which compiles it during warmup</li>
+ *     <li>stored - small formula calculated from an ExpressionStore</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class EvaluationBenchmark {
+
+    @Param({"recursive", "iterative", "memoized", "fastmath", "compiled", "adaptive", "stored"})
+    public String tier;
+
+    private Expression expression;
+
+    @Setup
+    public void setUp() throws ParsingError {
+        String formula = Formulas.SMALL;
+        switch (tier) {
+            case "recursive":
+                ExpressionParser.loadDefaultKnownOperators();
+                break;
+            case "iterative":
+                ExpressionParser.loadDefaultKnownOperators();
+                formula = Formulas.hugeSum(1_000);
+                break;
+            case "memoized":
+                ExpressionParser.loadDefaultKnownOperators();
+                ExpressionParser.addOperator(Operator.unary("gauss", Operator.Precedence.FUNC, x -> Math.exp(-x * x / 2)).memoize(256));
+                formula = "gauss x + gauss y * x - gauss(x + y) / gauss(x - y)";
+                break;
+            case "fastmath":
+                ExpressionParser.loadFastMathKnownOperators();
+                break;
+            case "compiled":
+            case "adaptive":
+            case "stored":
+                ExpressionParser.loadDefaultKnownOperators();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tier: " + tier);
+        }
+        ExpressionParser.addComparisonOperators();
+        expression = ExpressionParser.parse(formula);
+        for (String var: expression.dependsOnVariables()) ExpressionParser.setVariable(var, 1.5);
+        if (tier.equals("compiled")) expression = ExpressionCompiler.compile(expression);
+        if (tier.equals("adaptive")) expression = new AdaptiveExpression(expression);
+        if (tier.equals("stored")) {
+            ExpressionStore store = new ExpressionStore();
+            int handle = store.add(expression);
+            double[] values = new double[store.variableCount()];
+            Arrays.fill(values, 1.5);
+            expression = new StoredFormula(store, handle, values);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    @Benchmark
+    public double calculate() {
+        return expression.calculate();
+    }
+
+    /**
+     * Stored formula as an Expression, so that all tiers share the benchmark method
+     */
+    private static final class StoredFormula implements Expression {
+        private final ExpressionStore store;
+        private final int handle;
+        private final double[] values;
+
+        StoredFormula(ExpressionStore store, int handle, double[] values) {
+            this.store = store;
+            this.handle = handle;
+            this.values = values;
+        }
+
+        @Override public double calculate() { return store.calculate(handle, values); }
+        @Override public String toLispString() { return store.toLispString(handle); }
+        @Override public Set<String> dependsOnVariables() { return store.variablesOf(handle); }
+        @Override public boolean complete() { return true; }
+    }
+}
@@ -0,0 +1,65 @@
+package arithmancy;
+
+/**
+ * Formulas used by the benchmarks.
+ */
+final class Formulas {
+    /** Typical hand-written formula */
+    static final String SMALL = "(x + 2) * sin(x) - x / 3 + x * (x - 1) ^ 2 + max(x, y, 1) + if(x > y, ln(x), e ^ y)";
+
+    private Formulas() {}
+
+    /**
+     * Sum of terms, alternating between constants and variables: "1 + x + 1 + x ...". Makes a tree of the given height.
+     */
+    static String hugeSum(int terms) {
+        StringBuilder sb = new StringBuilder("1");
+        for (int i = 1; i < terms; i++) sb.append(i % 2 == 0 ? " + 1" : " + x");
+        return sb.toString();
+    }
+
+    /**
+     * Chain of unary minuses in parentheses around a small formula: "-(-(-( ... )))"
+     */
+    static String deeplyNested(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) sb.append("-(");
+        sb.append("x * y + 1");
+        for (int i = 0; i < depth; i++) sb.append(')');
+        return sb.toString();
+    }
+
+    /**
+     * Sum of products of distinct variables: "va * 2 + vb * 2 + ...". Variable names consist of letters only.
+     */
+    static String manyVariables(int count) {
+        StringBuilder sb = new StringBuilder("0");
+        for (int i = 0; i < count; i++) sb.append(" + ").append(variableName(i)).append(" * 2");
+        return sb.toString();
+    }
+
+    /**
+     * Sum of small parenthesized terms: "(va * 2 - 1) + sin(vb) / 3 + ...", the way long hand-written formulas look
+     */
+    static String manyBlocks(int count) {
+        StringBuilder sb = new StringBuilder("0");
+        for (int i = 0; i < count; i++) sb.append(" + (").append(variableName(i)).append(" * 2 - 1) * sin(").append(variableName(i)).append(") / 3");
+        return sb.toString();
+    }
+
+    static String variableName(int i) {
+        return "v" + (char) ('a' + i / 26 % 26) + (char) ('a' + i % 26);
+    }
+
+    static String of(String shape) {
+        switch (shape) {
+            case "small":
+                return SMALL;
+            case "huge":
+                return hugeSum(10_000);
+            case "deep":
+                return deeplyNested(1_000);
+        }
+        throw new IllegalArgumentException("Unknown formula shape: " + shape);
+    }
+}
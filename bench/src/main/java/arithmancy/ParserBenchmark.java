@@ -0,0 +1,58 @@
+package arithmancy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preprocessing and parsing of a small formula, a generated huge one and a deeply nested one.<br>
+ * preprocess() is the old first pass of parsing, which the lexer replaced; it's kept to compare with.
+ * parseChars() and parseUtf8() parse the formula in place, from a char array and from a direct buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    @Param({"small", "huge", "deep"})
+    public String shape;
+
+    private String formula;
+    private char[] chars;
+    private ByteBuffer utf8;
+
+    @Setup
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
+        formula = Formulas.of(shape);
+        chars = formula.toCharArray();
+        byte[] bytes = formula.getBytes(StandardCharsets.UTF_8);
+        utf8 = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+    }
+
+    @Benchmark
+    public String preprocess() {
+        return ExpressionParser.preprocessExpression(formula);
+    }
+
+    @Benchmark
+    public Expression parse() throws ParsingError {
+        return ExpressionParser.parse(formula);
+    }
+
+    @Benchmark
+    public Expression parseChars() throws ParsingError {
+        return ExpressionParser.parse(chars, 0, chars.length);
+    }
+
+    @Benchmark
+    public Expression parseUtf8() throws ParsingError {
+        return ExpressionParser.parse(utf8, 0, utf8.capacity());
+    }
+}
@@ -0,0 +1,85 @@
+package arithmancy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for EvaluationServer: a number of connections, each sending EVALUATE requests of a few rows as fast as it gets answers.
+ * Prints throughput and the latency of requests as the clients see it. Runs against a server of its own unless given a socket.<br>
+ * java -cp bench/target/benchmarks.jar arithmancy.ServerLoadGenerator [-socket path] [-connections 16] [-rows 4] [-seconds 10] [-formula "..."]
+ */
+public class ServerLoadGenerator {
+    public static void main(String[] args) throws Exception {
+        String socketArg = null;
+        int connections = 16, rows = 4, seconds = 10;
+        String formula = Formulas.SMALL;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-socket": socketArg = args[i + 1]; break;
+                case "-connections": connections = Integer.parseInt(args[i + 1]); break;
+                case "-rows": rows = Integer.parseInt(args[i + 1]); break;
+                case "-seconds": seconds = Integer.parseInt(args[i + 1]); break;
+                case "-formula": formula = args[i + 1]; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        EvaluationServer embedded = null;
+        Path socket;
+        if (socketArg != null) {
+            socket = Path.of(socketArg);
+        } else {
+            socket = Files.createTempDirectory("arithmancy").resolve("load.sock");
+            ExpressionParser.addComparisonOperators();
+            embedded = new EvaluationServer(socket);
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder requests = new LongAdder();
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(1, seconds / 5));
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] clients = new Thread[connections];
+        String f = formula;
+        int r = rows;
+        for (int c = 0; c < connections; c++) {
+            long seed = c;
+            clients[c] = new Thread(() -> {
+                try (EvaluationClient client = new EvaluationClient(socket)) {
+                    EvaluationClient.Formula registered = client.register(f);
+                    double[] values = new double[r * registered.variables().size()], results = new double[r];
+                    Random random = new Random(seed);
+                    for (int i = 0; i < values.length; i++) values[i] = 0.5 + random.nextDouble() * 10;
+                    for (long now = System.nanoTime(); now < end; ) {
+                        client.evaluate(registered, values, r, results);
+                        long after = System.nanoTime();
+                        if (now >= warmupEnd) {
+                            latencies.record(after - now);
+                            requests.increment();
+                        }
+                        now = after;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread t: clients) t.join();
+
+        LatencyHistogram.Snapshot s = latencies.snapshot();
+        double perSecond = requests.sum() / (double) seconds;
+        System.out.printf("%d connections, %d rows per request, %d s%n", connections, rows, seconds);
+        System.out.printf("Throughput: %.0f requests/s, %.0f rows/s%n", perSecond, perSecond * rows);
+        System.out.printf("Latency (us): mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                s.getMean() / 1e3, s.getP50() / 1e3, s.getP90() / 1e3, s.getP99() / 1e3, s.getP999() / 1e3, s.getMax() / 1e3);
+        if (embedded != null) {
+            System.out.printf("Batches: %d for %d requests%n", embedded.batchCount(), embedded.requestCount());
+            embedded.close();
+            Files.deleteIfExists(socket.getParent());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package arithmancy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of finding implied parameters: the yield of a bond from its price. Scores are per solved instance.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SolverBenchmark {
+    private static final int ROWS = 4096;
+    private static final String BOND = "c / y * (1 - 1 / (1 + y) ^ n) + 100 / (1 + y) ^ n";
+
+    private Expression bond;
+    private Solver solver;
+    private Solver.Frame frame;
+    private int c, n;
+    private final double[] coupons = new double[ROWS];
+    private final double[] years = new double[ROWS];
+    private final double[] prices = new double[ROWS];
+    private final double[] roots = new double[ROWS];
+
+    @Setup
+    public void setUp() throws ParsingError {
+        ExpressionParser.loadDefaultKnownOperators();
+        bond = ExpressionParser.parse(BOND);
+        solver = new Solver(bond, "y");
+        frame = solver.newFrame();
+        c = solver.slotOf("c");
+        n = solver.slotOf("n");
+        Random random = new Random(42);
+        for (int i = 0; i < ROWS; i++) {
+            coupons[i] = random.nextInt(12);
+            years[i] = 1 + random.nextInt(40);
+            double y = 0.001 + random.nextDouble() * 0.2;
+            prices[i] = coupons[i] / y * (1 - 1 / Math.pow(1 + y, years[i])) + 100 / Math.pow(1 + y, years[i]);
+        }
+    }
+
+    /**
+     * Bisection over setVariable() and calculate() by name, the way it's done without a solver
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] bisectByName() {
+        for (int i = 0; i < ROWS; i++) {
+            ExpressionParser.setVariable(bond, "c", coupons[i]);
+            ExpressionParser.setVariable(bond, "n", years[i]);
+            double lo = 1e-4, hi = 1;
+            while (hi - lo > 1e-12) {
+                double mid = (lo + hi) / 2;
+                ExpressionParser.setVariable(bond, "y", mid);
+                if (bond.calculate() > prices[i]) lo = mid;
+                else hi = mid;
+            }
+            roots[i] = lo;
+        }
+        return roots;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] brent() {
+        for (int i = 0; i < ROWS; i++) roots[i] = frame.set(c, coupons[i]).set(n, years[i]).brent(prices[i], 1e-4, 1);
+        return roots;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] findRootsInParallel() {
+        solver.findRoots(new String[] {"c", "n"}, new double[][] {coupons, years}, prices, 1e-4, 1, roots);
+        return roots;
+    }
+}
@@ -0,0 +1,54 @@
+package arithmancy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binding variables and checking that they are bound, on an expression with many of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class VariableBenchmark {
+
+    @Param({"4", "100"})
+    public int variables;
+
+    private Expression expression;
+    private String[] names;
+    private double value;
+
+    @Setup
+    public void setUp() throws ParsingError {
+        ExpressionParser.loadDefaultKnownOperators();
+        expression = ExpressionParser.parse(Formulas.manyVariables(variables));
+        names = expression.dependsOnVariables().toArray(new String[0]);
+        for (String var: names) ExpressionParser.setVariable(var, 1.0);
+    }
+
+    @Benchmark
+    public Set<String> dependsOnVariables() {
+        return expression.dependsOnVariables();
+    }
+
+    @Benchmark
+    public boolean allVariablesSet() {
+        return expression.allVariablesSet();
+    }
+
+    /**
+     * Sets all variables, checks them and calculates: what a typical request handler does.
+     */
+    @Benchmark
+    public double bindAndCalculate() {
+        value += 1;
+        for (String var: names) ExpressionParser.setVariable(var, value);
+        if (!expression.allVariablesSet()) throw new IllegalStateException();
+        return expression.calculate();
+    }
+}
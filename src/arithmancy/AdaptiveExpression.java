@@ -0,0 +1,140 @@
+package arithmancy;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Expression that starts out on the tree interpreter and gets compiled by ExpressionCompiler once it has been calculated often enough.<br>
+ * Compilation runs on a background thread, and the compiled form replaces the interpreted one atomically: calculate() may be called
+ * from any thread at any time and gives the same results before and after. If the compiler queue is full, the expression stays interpreted
+ * and asks again after another threshold's worth of calculations.
+ */
+public final class AdaptiveExpression implements Expression {
+    /** Default number of calculations after which compilation is requested */
+    public static final int DEFAULT_THRESHOLD = 10_000;
+
+    /**
+     * Execution tier of an adaptive expression.
+     */
+    public enum Tier {
+        /** Calculated by the tree interpreter */
+        INTERPRETED,
+        /** Calculated by the tree interpreter while waiting for compilation */
+        QUEUED,
+        /** Calculated by compiled code */
+        COMPILED
+    }
+
+    /**
+     * Gets notified of tier changes of all adaptive expressions. Called on the thread that made the change.
+     */
+    @FunctionalInterface
+    public interface TierListener {
+        void tierChanged(AdaptiveExpression expression, Tier from, Tier to);
+    }
+
+    private static volatile TierListener listener;
+
+    private static final AtomicReferenceFieldUpdater<AdaptiveExpression, Tier> TIER =
+            AtomicReferenceFieldUpdater.newUpdater(AdaptiveExpression.class, Tier.class, "tier");
+
+    private final Expression source;
+    private final int threshold;
+    private volatile Expression compiled;                   // null until compiled
+    private volatile Tier tier = Tier.INTERPRETED;
+    private int invocations;                                // Not synchronized: a few lost increments only delay compilation a bit
+
+    /**
+     * Wraps a parsed expression, with the default threshold.
+     * @param source Expression returned by ExpressionParser.parse()
+     */
+    public AdaptiveExpression(Expression source) {
+        this(source, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Wraps a parsed expression.
+     * @param source Expression returned by ExpressionParser.parse()
+     * @param threshold Number of calculations after which compilation is requested. 0 requests it right away.
+     */
+    public AdaptiveExpression(Expression source, int threshold) {
+        if (threshold < 0) throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        this.source = source;
+        this.threshold = threshold;
+        if (threshold == 0) requestCompilation();
+    }
+
+    /**
+     * Sets the listener of tier changes, or removes it if null.
+     */
+    public static void setTierListener(TierListener l) {
+        listener = l;
+    }
+
+    public Tier tier() {
+        return tier;
+    }
+
+    Expression source() {
+        return source;
+    }
+
+    @Override
+    public double calculate() {
+        Expression c = compiled;
+        if (c != null) return c.calculate();
+        if (++invocations >= threshold && tier == Tier.INTERPRETED) requestCompilation();
+        return source.calculate();
+    }
+
+    private void requestCompilation() {
+        if (!changeTier(Tier.INTERPRETED, Tier.QUEUED)) return;            // Somebody else got here first
+        if (!ExpressionCompiler.submit(this::compile)) {
+            invocations = 0;
+            changeTier(Tier.QUEUED, Tier.INTERPRETED);
+        }
+    }
+
+    private void compile() {
+        try {
+            compiled = ExpressionCompiler.compile(source);
+        } catch (RuntimeException e) {
+            invocations = 0;
+            changeTier(Tier.QUEUED, Tier.INTERPRETED);
+            return;
+        }
+        changeTier(Tier.QUEUED, Tier.COMPILED);
+    }
+
+    private boolean changeTier(Tier from, Tier to) {
+        if (!TIER.compareAndSet(this, from, to)) return false;
+        TierListener l = listener;
+        if (l != null) l.tierChanged(this, from, to);
+        return true;
+    }
+
+    @Override
+    public String toLispString() {
+        return source.toLispString();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+    @Override
+    public Set<String> dependsOnVariables() {
+        return source.dependsOnVariables();
+    }
+
+    @Override
+    public boolean allVariablesSet() {
+        return source.allVariablesSet();
+    }
+
+    @Override
+    public boolean complete() {
+        return source.complete();
+    }
+}
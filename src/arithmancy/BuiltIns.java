@@ -0,0 +1,245 @@
+package arithmancy;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import static arithmancy.Operator.Precedence.*;
+
+/**
+ * Default operators and functions, see ExpressionParser.loadDefaultKnownOperators().<br>
+ * Their effects are enum constants rather than lambdas, so loading them makes no invokedynamic calls and spins no classes at run time:
+ * every class they need is in the jar, ready to be stored in a CDS archive (java -XX:ArchiveClassesAtExit=app.jsa ...)
+ * or compiled ahead of time by native-image. Effects are stateless and shared, except those of series functions,
+ * which every use gets its own of; Operators are made anew on every load, since they carry caches and invocation counters.
+ */
+final class BuiltIns {
+    private BuiltIns() {}
+
+    /**
+     * Registers the built-ins with ExpressionParser, marked pure but for the series functions. Comparisons are left to loadComparisons().
+     * @param fastMath Use the approximations from FastMath where there are some
+     */
+    static void load(boolean fastMath) {
+        for (Binary b: Binary.values()) {
+            if (b.fastMath != null && b.fastMath != fastMath || b.prec == CMP) continue;
+            Operator op = Operator.binary(b.token, b.prec, b).pure();
+            if (b.commutativeAndAssociative) op.commutative().associative();
+            ExpressionParser.addOperator(op);
+        }
+        for (Unary u: Unary.values()) {
+            if (u.fastMath == null || u.fastMath == fastMath) ExpressionParser.addOperator(Operator.unary(u.token, FUNC, u).pure());
+        }
+        for (Function f: Function.values()) {
+            ExpressionParser.addOperator(Operator.lazy(f.token, f.minArgs, f.maxArgs, f).pure());
+        }
+        for (Series s: Series.values()) ExpressionParser.addOperator(Operator.stateful(s.token, 2, 2, s));
+    }
+
+    /**
+     * Registers the comparisons, see ExpressionParser.addComparisonOperators()
+     * @return false if either conflicts with a known operator
+     */
+    static boolean loadComparisons() {
+        boolean added = true;
+        for (Binary b: Binary.values()) {
+            if (b.prec == CMP) added &= ExpressionParser.addOperator(Operator.binary(b.token, b.prec, b).pure());
+        }
+        return added;
+    }
+
+    enum Binary implements DoubleBinaryOperator {
+        PLUS("+", ADD, true) {
+            @Override public double applyAsDouble(double x, double y) { return x + y; }
+        },
+        MINUS("-", ADD, false) {
+            @Override public double applyAsDouble(double x, double y) { return x - y; }
+        },
+        TIMES("*", MUL, true) {
+            @Override public double applyAsDouble(double x, double y) { return x * y; }
+        },
+        DIVIDED("/", MUL, false) {
+            @Override public double applyAsDouble(double x, double y) { return x / y; }
+        },
+        POWER("^", Boolean.FALSE) {
+            @Override public double applyAsDouble(double x, double y) { return Math.pow(x, y); }
+        },
+        FAST_POWER("^", Boolean.TRUE) {
+            @Override public double applyAsDouble(double x, double y) { return FastMath.pow(x, y); }
+        },
+        LESS("<", CMP, false) {
+            @Override public double applyAsDouble(double x, double y) { return x < y ? 1.0 : 0.0; }
+        },
+        GREATER(">", CMP, false) {
+            @Override public double applyAsDouble(double x, double y) { return x > y ? 1.0 : 0.0; }
+        };
+
+        final String token;
+        final Operator.Precedence prec;
+        final boolean commutativeAndAssociative;            // Exactly, in floating point
+        final Boolean fastMath;                             // null if the same for both sets
+
+        Binary(String token, Operator.Precedence prec, boolean commutativeAndAssociative) {
+            this.token = token;
+            this.prec = prec;
+            this.commutativeAndAssociative = commutativeAndAssociative;
+            fastMath = null;
+        }
+
+        Binary(String token, Boolean fastMath) {
+            this.token = token;
+            prec = POW;
+            commutativeAndAssociative = false;
+            this.fastMath = fastMath;
+        }
+    }
+
+    enum Unary implements DoubleUnaryOperator {
+        NEGATE("-", null) {
+            @Override public double applyAsDouble(double x) { return -x; }
+        },
+        IDENTITY("+", null) {
+            @Override public double applyAsDouble(double x) { return x; }
+        },
+        LN("ln", Boolean.FALSE) {
+            @Override public double applyAsDouble(double x) { return Math.log(x); }
+        },
+        EXP("exp", Boolean.FALSE) {
+            @Override public double applyAsDouble(double x) { return Math.exp(x); }
+        },
+        SIN("sin", Boolean.FALSE) {
+            @Override public double applyAsDouble(double x) { return Math.sin(x); }
+        },
+        COS("cos", Boolean.FALSE) {
+            @Override public double applyAsDouble(double x) { return Math.cos(x); }
+        },
+        TG("tg", Boolean.FALSE) {
+            @Override public double applyAsDouble(double x) { return Math.tan(x); }
+        },
+        FAST_LN("ln", Boolean.TRUE) {
+            @Override public double applyAsDouble(double x) { return FastMath.log(x); }
+        },
+        FAST_EXP("exp", Boolean.TRUE) {
+            @Override public double applyAsDouble(double x) { return FastMath.exp(x); }
+        },
+        FAST_SIN("sin", Boolean.TRUE) {
+            @Override public double applyAsDouble(double x) { return FastMath.sin(x); }
+        },
+        FAST_COS("cos", Boolean.TRUE) {
+            @Override public double applyAsDouble(double x) { return FastMath.cos(x); }
+        },
+        FAST_TG("tg", Boolean.TRUE) {
+            @Override public double applyAsDouble(double x) { return FastMath.tan(x); }
+        },
+        SQRT("sqrt", null) {
+            @Override public double applyAsDouble(double x) { return Math.sqrt(x); }
+        },
+        ROOT("√", null) {
+            @Override public double applyAsDouble(double x) { return Math.sqrt(x); }
+        };
+
+        final String token;
+        final Boolean fastMath;                             // null if the same for both sets
+
+        Unary(String token, Boolean fastMath) {
+            this.token = token;
+            this.fastMath = fastMath;
+        }
+    }
+
+    /**
+     * Functions of argument lists. Any non-zero value is "true". Only the arguments needed for the result get calculated.
+     * min, max and clamp are lazy too: they read their arguments one by one instead of getting them copied into an array.
+     */
+    enum Function implements Operator.LazyEffect {
+        IF("if", 3, 3) {
+            @Override public double apply(Operator.Arguments a) { return a.value(0) != 0 ? a.value(1) : a.value(2); }
+        },
+        /**
+         * piecewise(c1, v1, c2, v2, ..., [default]) returns the value that follows the first non-zero condition,
+         * or the default if no condition holds. Without a default it returns NaN.
+         */
+        PIECEWISE("piecewise", 2, Operator.VARIADIC) {
+            @Override public double apply(Operator.Arguments a) {
+                int i = 0;
+                for (; i + 1 < a.count(); i += 2) if (a.value(i) != 0) return a.value(i + 1);
+                return (i < a.count()) ? a.value(i) : Double.NaN;
+            }
+        },
+        AND("and", 1, Operator.VARIADIC) {
+            @Override public double apply(Operator.Arguments a) {
+                for (int i = 0; i < a.count(); i++) if (a.value(i) == 0) return 0.0;
+                return 1.0;
+            }
+        },
+        OR("or", 1, Operator.VARIADIC) {
+            @Override public double apply(Operator.Arguments a) {
+                for (int i = 0; i < a.count(); i++) if (a.value(i) != 0) return 1.0;
+                return 0.0;
+            }
+        },
+        MIN("min", 1, Operator.VARIADIC) {
+            @Override public double apply(Operator.Arguments a) {
+                double r = a.value(0);
+                for (int i = 1; i < a.count(); i++) r = Math.min(r, a.value(i));
+                return r;
+            }
+        },
+        MAX("max", 1, Operator.VARIADIC) {
+            @Override public double apply(Operator.Arguments a) {
+                double r = a.value(0);
+                for (int i = 1; i < a.count(); i++) r = Math.max(r, a.value(i));
+                return r;
+            }
+        },
+        CLAMP("clamp", 3, 3) {
+            @Override public double apply(Operator.Arguments a) { return Math.min(Math.max(a.value(0), a.value(1)), a.value(2)); }
+        };
+
+        final String token;
+        final int minArgs;
+        final int maxArgs;
+
+        Function(String token, int minArgs, int maxArgs) {
+            this.token = token;
+            this.minArgs = minArgs;
+            this.maxArgs = maxArgs;
+        }
+    }
+
+    /**
+     * Functions of a series of samples, one per calculation, such as the price of every tick: f(x, n) looks at x in the last n calculations.
+     * See Window for the details.
+     */
+    enum Series implements Operator.StateFactory {
+        /** sma(x, n): simple moving average */
+        SMA("sma") {
+            @Override public Operator.StatefulEffect create() { return new MovingMoments(false); }
+        },
+        /** stdev(x, n): sample standard deviation, NaN for less than two samples */
+        STDEV("stdev") {
+            @Override public Operator.StatefulEffect create() { return new MovingMoments(true); }
+        },
+        /** highest(x, n): maximum */
+        HIGHEST("highest") {
+            @Override public Operator.StatefulEffect create() { return new MovingExtreme(true); }
+        },
+        /** lowest(x, n): minimum */
+        LOWEST("lowest") {
+            @Override public Operator.StatefulEffect create() { return new MovingExtreme(false); }
+        },
+        /** lag(x, k): x of k calculations ago */
+        LAG("lag") {
+            @Override public Operator.StatefulEffect create() { return new Lag(); }
+        },
+        /** ema(x, alpha): exponential moving average with the smoothing factor alpha, 0 < alpha <= 1 */
+        EMA("ema") {
+            @Override public Operator.StatefulEffect create() { return new ExponentialAverage(); }
+        };
+
+        final String token;
+
+        Series(String token) {
+            this.token = token;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package arithmancy;
+
+import java.util.*;
+
+/**
+ * Brings parsed expressions to a canonical form, so that formulas that differ only in the order of operands of commutative operators,
+ * such as "b + a" and "a + b" or "2 * x" and "x * 2", become the same tree with the same structural hash.
+ * Spacing and redundant parentheses are gone after parsing anyway.<br>
+ * By default, only exact transformations are made: operands of commutative operators get sorted, which changes no result in floating point.
+ * Regrouping chains of associative operators, i.e. "(a + b) + c" into "a + (b + c)", may change results in the last bits,
+ * so it's done only on request. Operands are never reordered around impure operators, whose calls may have side effects.<br>
+ * Canonical trees share operators and variables with the trees they were made from: setting a variable of one sets it for the other.
+ * Trees are walked with explicit stacks, so their height doesn't matter.
+ */
+public final class Canonicalizer {
+    private static final long SEED_CONSTANT = 0x2545F4914F6CDD1DL;
+    private static final long SEED_NAMED_CONSTANT = 0x9E3779B97F4A7C15L;
+    private static final long SEED_VARIABLE = 0xC2B2AE3D27D4EB4FL;
+    private static final long SEED_OPERATOR = 0x165667B19E3779F9L;
+
+    private Canonicalizer() {}
+
+    /**
+     * Makes exact transformations only: sorts operands of commutative operators.
+     * @param expr Expression returned by ExpressionParser.parse()
+     * @return Canonical form of the expression. It's expr itself if it was canonical already.
+     */
+    public static Expression canonicalize(Expression expr) {
+        return canonicalize(expr, false);
+    }
+
+    /**
+     * @param expr Expression returned by ExpressionParser.parse()
+     * @param reassociate Also flatten chains of associative operators, sort their operands if the operator is commutative,
+     *                    and regroup them from the left, i.e. "c * (b * a)" into "(a * b) * c". Results may change in the last bits.
+     * @return Canonical form of the expression. It's expr itself if it was canonical already.
+     */
+    public static Expression canonicalize(Expression expr, boolean reassociate) {
+        if (!(expr instanceof OperatorInstance)) return expr;
+        Walk walk = new Walk(true, reassociate);
+        Expression result = walk.run((OperatorInstance) expr);
+        if (result != expr) ((OperatorInstance) result).scope = ((OperatorInstance) expr).scope;
+        return result;
+    }
+
+    /**
+     * Structural hash of an expression tree. It depends only on operator tokens and kinds, constant values and variable names,
+     * so it's the same in every run of every JVM. Canonicalize expressions first for equivalent ones to get the same hash.
+     */
+    public static long hash(Expression expr) {
+        if (!(expr instanceof OperatorInstance)) return hashOfLeaf(expr);
+        Walk walk = new Walk(false, false);
+        return walk.hashOfNode(walk.run((OperatorInstance) expr));
+    }
+
+    /**
+     * @return true if the trees are the same: same operators in the same places, same constants and same variable names
+     */
+    public static boolean sameStructure(Expression a, Expression b) {
+        ArrayDeque<Expression> pending = new ArrayDeque<>();
+        pending.push(a);
+        pending.push(b);
+        while (!pending.isEmpty()) {
+            Expression y = pending.pop();
+            Expression x = pending.pop();
+            if (x instanceof OperatorInstance && y instanceof OperatorInstance) {
+                OperatorInstance ox = (OperatorInstance) x;
+                OperatorInstance oy = (OperatorInstance) y;
+                if (!sameOperator(ox, oy) || ox.operandCount() != oy.operandCount()) return false;
+                for (int i = 0; i < ox.operandCount(); i++) {
+                    pending.push(ox.operand(i));
+                    pending.push(oy.operand(i));
+                }
+            } else if (x instanceof OperatorInstance || y instanceof OperatorInstance || compareLeaves(x, y) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean sameOperator(OperatorInstance a, OperatorInstance b) {
+        return a.kind == b.kind && a.token.equals(b.token) && a.calculateBi == b.calculateBi && a.calculateU == b.calculateU
+                && a.calculateN == b.calculateN && a.calculateL == b.calculateL;
+    }
+
+    // ============================= HASHING =============================
+
+    private static long mix(long h, long v) {
+        h = (h ^ v) * 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * 64-bit FNV-1a of the chars of a string
+     */
+    private static long hashOf(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        return h;
+    }
+
+    private static long hashOfLeaf(Expression e) {
+        if (e instanceof NamedConstant) return mix(SEED_NAMED_CONSTANT, hashOf(e.toString()));
+        if (e instanceof Constant) return mix(SEED_CONSTANT, Double.doubleToLongBits(e.calculate()));
+        if (e instanceof Variable) return mix(SEED_VARIABLE, hashOf(((Variable) e).getName()));
+        throw new IllegalArgumentException("Not a parsed expression: " + e);
+    }
+
+    // ============================= ORDER =============================
+
+    private static int rankOf(Expression e) {
+        if (e instanceof Constant) return 0;
+        if (e instanceof Variable) return 1;
+        return 2;
+    }
+
+    /**
+     * Constants come first, by value, then variables, by name. Named constants go by name after other constants of the same value.
+     */
+    private static int compareLeaves(Expression a, Expression b) {
+        int r = Integer.compare(rankOf(a), rankOf(b));
+        if (r != 0) return r;
+        if (a instanceof Constant) {
+            r = Double.compare(a.calculate(), b.calculate());
+            if (r != 0) return r;
+            boolean namedA = a instanceof NamedConstant, namedB = b instanceof NamedConstant;
+            if (namedA != namedB) return namedA ? 1 : -1;
+            return namedA ? a.toString().compareTo(b.toString()) : 0;
+        }
+        return ((Variable) a).getName().compareTo(((Variable) b).getName());
+    }
+
+    /**
+     * Post-order walk that computes hashes of all nodes and, if asked to, rebuilds them in canonical form.
+     */
+    private static final class Walk {
+        private final boolean canonicalize;
+        private final boolean reassociate;
+        private final Map<Expression, Long> hashes = new IdentityHashMap<>();
+        private final Set<Expression> impure = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        Walk(boolean canonicalize, boolean reassociate) {
+            this.canonicalize = canonicalize;
+            this.reassociate = reassociate;
+        }
+
+        /**
+         * Operator whose operands are being walked. Operands of a regrouped chain are all the operands of the chain.
+         */
+        private final class Frame {
+            final OperatorInstance op;
+            final Expression[] operands;
+            final Expression[] results;
+            int next;
+
+            Frame(OperatorInstance op) {
+                this.op = op;
+                operands = (canonicalize && reassociate && op.associative) ? chainOf(op) : operandsOf(op);
+                results = new Expression[operands.length];
+            }
+        }
+
+        long hashOfNode(Expression e) {
+            Long h = hashes.get(e);
+            return (h != null) ? h : hashOfLeaf(e);
+        }
+
+        Expression run(OperatorInstance root) {
+            ArrayDeque<Frame> frames = new ArrayDeque<>();
+            frames.push(new Frame(root));
+            while (true) {
+                Frame f = frames.peek();
+                if (f.next < f.operands.length) {
+                    Expression operand = f.operands[f.next];
+                    if (operand instanceof OperatorInstance) {
+                        frames.push(new Frame((OperatorInstance) operand));
+                    } else {
+                        hashOfLeaf(operand);                            // Fails early on foreign expressions
+                        f.results[f.next++] = operand;
+                    }
+                    continue;
+                }
+
+                Expression result = finish(f);
+                frames.pop();
+                if (frames.isEmpty()) return result;
+                Frame parent = frames.peek();
+                parent.results[parent.next++] = result;
+            }
+        }
+
+        private Expression finish(Frame f) {
+            OperatorInstance op = f.op;
+            Expression[] operands = f.results;
+            boolean pure = op.pure;
+            for (Expression e: operands) pure &= !impure.contains(e);
+
+            Expression result;
+            if (!canonicalize) {
+                result = op;
+            } else {
+                if (op.commutative && pure) Arrays.sort(operands, this::compare);
+                result = (operands.length > op.operandCount()) ? regroup(op, operands) : rebuild(op, operands);
+            }
+            if (!pure) impure.add(result);
+            hash(result);
+            return result;
+        }
+
+        /**
+         * @return Copy of op with the given operands, or op itself if they are its own operands
+         */
+        private OperatorInstance rebuild(OperatorInstance op, Expression[] operands) {
+            boolean same = true;
+            for (int i = 0; i < operands.length; i++) same &= operands[i] == op.operand(i);
+            if (same) return op;
+
+            OperatorInstance copy = new OperatorInstance(op);
+            switch (op.kind) {
+                case UNARY:
+                    copy.rightOperand = operands[0];
+                    break;
+                case BINARY:
+                    copy.leftOperand = operands[0];
+                    copy.rightOperand = operands[1];
+                    break;
+                default:
+                    copy.arguments = operands;
+            }
+            copy.operandsAttached();
+            return copy;
+        }
+
+        /**
+         * Builds a chain of a binary operator over all the operands, grouped from the left
+         */
+        private OperatorInstance regroup(OperatorInstance op, Expression[] operands) {
+            Expression acc = operands[0];
+            for (int i = 1; i < operands.length; i++) {
+                OperatorInstance link = new OperatorInstance(op);
+                link.leftOperand = acc;
+                link.rightOperand = operands[i];
+                link.operandsAttached();
+                if (i < operands.length - 1) {
+                    hash(link);
+                    if (impure.contains(acc) || impure.contains(operands[i]) || !op.pure) impure.add(link);
+                }
+                acc = link;
+            }
+            return (OperatorInstance) acc;
+        }
+
+        private void hash(Expression e) {
+            if (!(e instanceof OperatorInstance)) return;
+            OperatorInstance op = (OperatorInstance) e;
+            long h = mix(SEED_OPERATOR, Canonicalizer.hashOf(op.kind.name()));
+            h = mix(h, Canonicalizer.hashOf(op.token));
+            for (int i = 0; i < op.operandCount(); i++) h = mix(h, hashOfNode(op.operand(i)));
+            hashes.put(e, h);
+        }
+
+        /**
+         * Leaves come first, then operators in the order of their hashes.
+         */
+        private int compare(Expression a, Expression b) {
+            boolean leafA = !(a instanceof OperatorInstance), leafB = !(b instanceof OperatorInstance);
+            if (leafA && leafB) return compareLeaves(a, b);
+            if (leafA != leafB) return leafA ? -1 : 1;
+            int r = Long.compare(hashOfNode(a), hashOfNode(b));
+            return (r != 0) ? r : a.toLispString().compareTo(b.toLispString());        // Tells apart the rare different trees with the same hash
+        }
+
+        private static Expression[] operandsOf(OperatorInstance op) {
+            Expression[] operands = new Expression[op.operandCount()];
+            for (int i = 0; i < operands.length; i++) operands[i] = op.operand(i);
+            return operands;
+        }
+
+        /**
+         * @return Operands of the chain of op, such as a, b, c and d of "(a + b) + (c + d)", from left to right
+         */
+        private static Expression[] chainOf(OperatorInstance op) {
+            List<Expression> chain = new ArrayList<>();
+            ArrayDeque<Expression> pending = new ArrayDeque<>();
+            pending.push(op);
+            while (!pending.isEmpty()) {
+                Expression e = pending.pop();
+                if (e instanceof OperatorInstance && sameOperator((OperatorInstance) e, op)) {
+                    pending.push(((OperatorInstance) e).rightOperand);
+                    pending.push(((OperatorInstance) e).leftOperand);
+                } else {
+                    chain.add(e);
+                }
+            }
+            return chain.toArray(new Expression[0]);
+        }
+    }
+}
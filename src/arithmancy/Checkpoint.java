@@ -0,0 +1,93 @@
+package arithmancy;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saved state of the stateful functions of an expression, such as the windows of sma(x, 20), so that a stream can be stopped
+ * and picked up later, in this JVM or another one, where it was left. Expressions without stateful functions have an empty checkpoint.<br>
+ * Each use of a stateful function has its own state. They're saved in the order they appear in the formula,
+ * and restored into an expression of the same formula. Compiled and adaptive forms of an expression share the state of its tree.
+ */
+public final class Checkpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String formula;
+    private final double[][] states;
+
+    private Checkpoint(String formula, double[][] states) {
+        this.formula = formula;
+        this.states = states;
+    }
+
+    /**
+     * Saves the state of all stateful functions in the expression. Don't calculate the expression meanwhile.
+     * @param expr Expression returned by ExpressionParser.parse(), possibly compiled
+     */
+    public static Checkpoint of(Expression expr) {
+        List<Operator.StatefulEffect> effects = statesOf(expr);
+        double[][] states = new double[effects.size()][];
+        for (int i = 0; i < states.length; i++) states[i] = effects.get(i).save();
+        return new Checkpoint(expr.toString(), states);
+    }
+
+    /**
+     * Puts the saved state back into the expression
+     * @param expr Expression of the same formula as the one saved, parsed with the same stateful functions
+     * @throws IllegalArgumentException if the expression isn't of the same formula, or a state doesn't fit its function
+     */
+    public void restore(Expression expr) {
+        List<Operator.StatefulEffect> effects = statesOf(expr);
+        if (!formula.equals(expr.toString()) || effects.size() != states.length) {
+            throw new IllegalArgumentException("Checkpoint of \"" + formula + "\" doesn't fit \"" + expr + "\"");
+        }
+        for (int i = 0; i < states.length; i++) effects.get(i).restore(states[i].clone());
+    }
+
+    /**
+     * Makes all stateful functions of the expression forget their samples, as if it had just been parsed
+     */
+    public static void reset(Expression expr) {
+        for (Operator.StatefulEffect effect: statesOf(expr)) effect.reset();
+    }
+
+    /**
+     * @return true if the expression has stateful functions
+     */
+    static boolean hasState(Expression expr) {
+        return !statesOf(expr).isEmpty();
+    }
+
+    /**
+     * @return Formula the checkpoint was taken of
+     */
+    public String formula() {
+        return formula;
+    }
+
+    /**
+     * @return Number of stateful functions saved
+     */
+    public int size() {
+        return states.length;
+    }
+
+    /**
+     * @return States of the stateful functions of the tree, in pre-order
+     */
+    private static List<Operator.StatefulEffect> statesOf(Expression expr) {
+        List<Operator.StatefulEffect> effects = new ArrayList<>();
+        ArrayDeque<Expression> pending = new ArrayDeque<>();
+        pending.push(ExpressionTrees.treeOf(expr));
+        while (!pending.isEmpty()) {
+            Expression e = pending.pop();
+            if (!(e instanceof OperatorInstance)) continue;
+            OperatorInstance op = (OperatorInstance) e;
+            if (op.calculateL instanceof Operator.StatefulEffect) effects.add((Operator.StatefulEffect) op.calculateL);
+            for (int i = op.operandCount() - 1; i >= 0; i--) pending.push(op.operand(i));
+        }
+        return effects;
+    }
+}
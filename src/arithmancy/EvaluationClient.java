@@ -0,0 +1,145 @@
+package arithmancy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static arithmancy.EvaluationServer.*;
+
+/**
+ * Blocking client of an EvaluationServer, one request at a time. Not thread-safe: give each thread a client of its own.
+ * Errors reported by the server are thrown as IOExceptions that leave the connection usable.
+ */
+public final class EvaluationClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private ByteBuffer buffer = newBuffer(64 << 10);
+    private int nextId;
+
+    /**
+     * Formula registered with the server
+     */
+    public static final class Formula {
+        private final int id;
+        private final List<String> variables;
+
+        Formula(int id, List<String> variables) {
+            this.id = id;
+            this.variables = variables;
+        }
+
+        public int id() { return id; }
+
+        /**
+         * @return Names of the variables, in the order they come in rows
+         */
+        public List<String> variables() { return variables; }
+    }
+
+    public EvaluationClient(Path socket) throws IOException {
+        channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Has the server parse a formula, or find an equivalent one it knows
+     * @throws IOException with the message of the ParsingError if the formula doesn't parse
+     */
+    public Formula register(String formula) throws IOException {
+        byte[] utf8 = formula.getBytes(StandardCharsets.UTF_8);
+        begin(REGISTER, utf8.length).put(utf8);
+        ByteBuffer r = call();
+        int id = r.getInt();
+        int count = r.getShort() & 0xFFFF;
+        List<String> names = new ArrayList<>(count);
+        for (int v = 0; v < count; v++) {
+            byte[] name = new byte[r.getShort() & 0xFFFF];
+            r.get(name);
+            names.add(new String(name, StandardCharsets.UTF_8));
+        }
+        return new Formula(id, Collections.unmodifiableList(names));
+    }
+
+    /**
+     * @param rows Values of the variables, row after row
+     * @return One result per row
+     */
+    public double[] evaluate(Formula formula, double[] rows) throws IOException {
+        int count = formula.variables.isEmpty() ? 1 : rows.length / formula.variables.size();
+        double[] results = new double[count];
+        evaluate(formula, rows, count, results);
+        return results;
+    }
+
+    /**
+     * Evaluates the first rowCount rows. Allocates nothing once the buffer is big enough.
+     * @param rows Values of the variables, row after row
+     * @param results Receives one result per row
+     */
+    public void evaluate(Formula formula, double[] rows, int rowCount, double[] results) throws IOException {
+        int values = rowCount * formula.variables.size();
+        if (values > rows.length || rowCount > results.length) throw new IllegalArgumentException("Arrays too short for " + rowCount + " rows");
+        ByteBuffer b = begin(EVALUATE, 8 + 8 * values).putInt(formula.id).putInt(rowCount);
+        for (int i = 0; i < values; i++) b.putDouble(rows[i]);
+        ByteBuffer r = call();
+        for (int i = 0; i < rowCount; i++) results[i] = r.getDouble();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer begin(byte type, int payload) {
+        int length = HEADER + payload;
+        if (payload > MAX_MESSAGE - HEADER) throw new IllegalArgumentException("Request too big: " + length + " bytes");
+        if (buffer.capacity() < length) buffer = newBuffer(Math.max(length, buffer.capacity() * 2));
+        buffer.clear();
+        return buffer.putInt(length - 4).put(type).putInt(++nextId);
+    }
+
+    /**
+     * Sends the request in the buffer, and reads the response into it
+     * @return Buffer positioned at the payload of the response, with the limit at its end
+     */
+    private ByteBuffer call() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+
+        buffer.clear().limit(4);
+        fill();
+        int length = buffer.getInt(0);
+        if (length < HEADER - 4 || length > MAX_MESSAGE) throw new IOException("Invalid response length: " + length);
+        if (buffer.capacity() < 4 + length) buffer = grow(buffer, 0, 4 + length);
+        buffer.limit(4 + length);
+        fill();
+        buffer.flip().position(4);
+        byte status = buffer.get();
+        int id = buffer.getInt();
+        if (id != nextId) throw new IOException("Response to request " + id + ", expected " + nextId);
+        if (status != OK) {
+            byte[] message = new byte[buffer.remaining()];
+            buffer.get(message);
+            throw new IOException(new String(message, StandardCharsets.UTF_8));
+        }
+        return buffer;
+    }
+
+    private void fill() throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("Server closed the connection");
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package arithmancy;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evaluates formulas for other processes on the same host, over a Unix domain socket, so that they share one warm JVM
+ * instead of starting their own. Run it with "java -cp arithmancy.jar arithmancy.EvaluationServer /path/to/socket",
+ * or embed it. EvaluationClient speaks the protocol from Java.<br>
+ * One thread serves all connections with a selector. Each round it reads whatever requests have come in on all connections,
+ * then calculates the rows of all evaluations of the same formula one after another, and then writes the responses,
+ * one write per connection. So under load, many small requests get calculated and answered as one batch.
+ * Formulas are parsed through a FormulaCache shared by all connections: equivalent formulas get the same id,
+ * and hot ones get compiled. Formulas with series functions, such as sma(x, 20), are parsed anew for every connection instead,
+ * so that each connection gets its own state.<br>
+ * A connection can evaluate the formulas it has registered. A formula is kept, under the same id, as long as a connection
+ * that registered it is open; then its id is free to be given to another one.<br>
+ * Protocol: every message is a 32-bit length of the rest of the message, then a type (in requests) or status (in responses) byte,
+ * then a 32-bit request id that the response repeats, then the payload. Numbers are little-endian, strings are UTF-8.
+ * Responses to the requests of a connection come in the order of the requests, so clients may send several before reading.
+ * <pre>
+ * REGISTER: formula                                        OK: formula id, 16-bit variable count, then per variable 16-bit length and name
+ * EVALUATE: formula id, row count, then doubles row by row  OK: one double per row
+ *                                                          ERROR: message
+ * </pre>
+ * The variables of a row come in the order of the REGISTER response, which is alphabetical. Messages over MAX_MESSAGE bytes,
+ * and messages that can't be made sense of, close the connection.
+ */
+public final class EvaluationServer implements AutoCloseable {
+    public static final byte REGISTER = 1;
+    public static final byte EVALUATE = 2;
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+    /** Maximum length of a message, after its length field */
+    public static final int MAX_MESSAGE = 16 << 20;
+    /** Maximum number of distinct formulas registered by the open connections */
+    public static final int MAX_FORMULAS = 1 << 16;
+    public static final int DEFAULT_CACHE_CAPACITY = 1024;
+
+    static final int HEADER = 4 + 1 + 4;                    // Length, type or status, id
+    private static final int BUFFER_SIZE = 64 << 10;
+    private static final int HIGH_WATER = 1 << 20;          // Stop reading from a connection with this much output waiting
+
+    private final Path path;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final FormulaCache cache;
+    private final Thread thread;
+    private volatile boolean closing;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private volatile int formulaCount;
+
+    // Used by the server thread only
+    private final List<Expression> formulas = new ArrayList<>();       // By id, null if free
+    private final List<VariableScope> scopes = new ArrayList<>();
+    private final List<List<String>> texts = new ArrayList<>();        // Formula strings registered under each id
+    private int[] holders = new int[16];                                // Number of open connections that registered each id
+    private final Map<Expression, Integer> ids = new IdentityHashMap<>();
+    private final Map<String, Integer> idsOfTexts = new HashMap<>();    // Even after the cache has evicted them
+    private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+    private final List<Connection> active = new ArrayList<>();          // Connections with requests in this round
+    private final List<Request> evaluations = new ArrayList<>();        // Of this round
+
+    private static final Comparator<Request> BY_FORMULA = new Comparator<Request>() {
+        @Override
+        public int compare(Request a, Request b) {
+            return Integer.compare(a.formula, b.formula);
+        }
+    };
+
+    private static final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = newBuffer(BUFFER_SIZE);             // Data in [0, position)
+        ByteBuffer out = newBuffer(BUFFER_SIZE);            // Data in [0, position)
+        int parsed;                                         // Where the first message not parsed yet starts in "in"
+        final List<Request> requests = new ArrayList<>();   // Of this round, in order
+        final Set<Integer> formulas = new HashSet<>();      // Registered
+        final Map<String, Integer> ownFormulas = new HashMap<>();   // Ids of the connection's copies of formulas with series functions
+        boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static final class Request {
+        final Connection connection;
+        final byte type;
+        final int id;
+        int formula = -1;                                   // Registered or evaluated
+        int rows;
+        int rowsAt;                                         // Where the rows start in connection.in
+        double[] results;
+        String error;
+
+        Request(Connection connection, byte type, int id) {
+            this.connection = connection;
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Starts serving on a daemon thread
+     * @param socket Path of the socket to create. It mustn't exist. It's deleted by close().
+     */
+    public EvaluationServer(Path socket) throws IOException {
+        this(socket, DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * Starts serving on a daemon thread
+     * @param socket Path of the socket to create. It mustn't exist. It's deleted by close().
+     * @param cacheCapacity Capacity of the formula cache, see FormulaCache
+     */
+    public EvaluationServer(Path socket, int cacheCapacity) throws IOException {
+        cache = new FormulaCache(cacheCapacity);
+        path = socket;
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            server.configureBlocking(false);
+            selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+        thread = new Thread(this::serve, "arithmancy-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops serving, closes all connections and deletes the socket
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * @return Number of requests received so far
+     */
+    public long requestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return Number of batches calculated so far: one per formula evaluated in a round, however many requests it had
+     */
+    public long batchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * @return Number of formulas registered by the open connections
+     */
+    int formulaCount() {
+        return formulaCount;
+    }
+
+    public Path socket() {
+        return path;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 1) {
+            System.err.println("Usage: java arithmancy.EvaluationServer <socket path>");
+            System.exit(2);
+        }
+        ExpressionParser.addComparisonOperators();                  // No custom operators for them to keep out
+        EvaluationServer server = new EvaluationServer(Path.of(args[0]));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException ignored) {}
+        }));
+        System.out.println("Listening on " + server.socket());
+        server.thread.join();
+    }
+
+    // ============================= SERVING =============================
+
+    private void serve() {
+        try {
+            while (!closing) {
+                selector.select();
+                for (SelectionKey key: selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    if (key.isWritable()) flush(c);
+                    if (key.isValid() && key.isReadable()) read(c);
+                }
+                selector.selectedKeys().clear();
+                evaluate();
+                respond();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Nothing to serve with any more
+        } finally {
+            for (SelectionKey key: selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {}
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        Connection c = new Connection(channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    private void read(Connection c) {
+        int n;
+        try {
+            n = c.channel.read(c.in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            drop(c);
+            return;
+        }
+
+        ByteBuffer in = c.in;
+        int p = c.parsed;
+        while (in.position() - p >= 4) {
+            int length = in.getInt(p);
+            if (length < HEADER - 4 || length > MAX_MESSAGE) {
+                drop(c);
+                return;
+            }
+            if (in.position() - p < 4 + length) {                          // Rest to come
+                if (p + 4 + length > in.capacity()) c.in = grow(in, 0, p + 4 + length);     // Keeps the rows of parsed requests where they are
+                break;
+            }
+            if (!parse(c, p, length)) {
+                drop(c);
+                return;
+            }
+            p += 4 + length;
+            c.parsed = p;
+        }
+    }
+
+    /**
+     * @return false if the message makes no sense
+     */
+    private boolean parse(Connection c, int at, int length) {
+        ByteBuffer in = c.in;
+        Request r = new Request(c, in.get(at + 4), in.getInt(at + 5));
+        int payload = at + HEADER, size = length - (HEADER - 4);
+        switch (r.type) {
+            case REGISTER:
+                byte[] utf8 = new byte[size];
+                in.get(payload, utf8);
+                register(r, new String(utf8, StandardCharsets.UTF_8));
+                break;
+            case EVALUATE:
+                if (size < 8) return false;
+                r.formula = in.getInt(payload);
+                r.rows = in.getInt(payload + 4);
+                r.rowsAt = payload + 8;
+                if (!c.formulas.contains(r.formula)) {
+                    r.error = "Unknown formula: " + r.formula;
+                } else {
+                    VariableScope scope = scopes.get(r.formula);
+                    long expected = 8 + 8L * Math.max(r.rows, 0) * ((scope == null) ? 0 : scope.size());
+                    if (r.rows < 0 || 8L * r.rows > MAX_MESSAGE || expected != size) r.error = "Expected " + expected + " bytes of rows, got " + size;
+                    else evaluations.add(r);
+                }
+                break;
+            default:
+                return false;
+        }
+        if (c.requests.isEmpty()) active.add(c);
+        c.requests.add(r);
+        requests.increment();
+        return true;
+    }
+
+    private void register(Request r, String formula) {
+        try {
+            Connection c = r.connection;
+            Integer id = c.ownFormulas.get(formula);
+            if (id == null) id = idsOfTexts.get(formula);
+            if (id == null) {
+                Expression e = cache.get(formula);
+                boolean own = Checkpoint.hasState(e);
+                if (own) e = ExpressionParser.parse(formula);          // Not shared, with blank states
+                id = ids.get(e);
+                if (id == null) {
+                    if (freeIds.isEmpty() && formulas.size() == MAX_FORMULAS) {
+                        r.error = "Too many formulas";
+                        return;
+                    }
+                    id = freeIds.isEmpty() ? formulas.size() : freeIds.pop();
+                    if (id == formulas.size()) {
+                        formulas.add(null);
+                        scopes.add(null);
+                        texts.add(new ArrayList<>());
+                        if (id == holders.length) holders = Arrays.copyOf(holders, 2 * id);
+                    }
+                    formulas.set(id, e);
+                    scopes.set(id, VariableScope.of(e));
+                    ids.put(e, id);
+                    formulaCount++;
+                }
+                if (own) {
+                    c.ownFormulas.put(formula, id);
+                } else {
+                    idsOfTexts.put(formula, id);
+                    texts.get(id).add(formula);
+                }
+            }
+            if (c.formulas.add(id)) holders[id]++;
+            r.formula = id;
+        } catch (ParsingError | RuntimeException e) {
+            r.error = e.getMessage();
+        }
+    }
+
+    /**
+     * Frees the formulas that no open connection has registered any more
+     */
+    private void release(Connection c) {
+        for (int id: c.formulas) {
+            if (--holders[id] > 0) continue;
+            for (String text: texts.get(id)) idsOfTexts.remove(text);
+            texts.get(id).clear();
+            ids.remove(formulas.get(id));
+            formulas.set(id, null);
+            scopes.set(id, null);
+            freeIds.push(id);
+            formulaCount--;
+        }
+        c.formulas.clear();
+        c.ownFormulas.clear();
+    }
+
+    /**
+     * Calculates all evaluations of the round, grouped by formula
+     */
+    private void evaluate() {
+        evaluations.sort(BY_FORMULA);
+        int previous = -1;
+        for (Request r: evaluations) {
+            if (r.connection.closed) continue;
+            if (r.formula != previous) {
+                batches.increment();
+                previous = r.formula;
+            }
+            Expression e = formulas.get(r.formula);
+            VariableScope scope = scopes.get(r.formula);
+            ByteBuffer in = r.connection.in;
+            int variables = (scope == null) ? 0 : scope.size();
+            r.results = new double[r.rows];
+            try {
+                for (int row = 0, p = r.rowsAt; row < r.rows; row++) {
+                    for (int v = 0; v < variables; v++, p += 8) scope.setValue(v, in.getDouble(p));
+                    r.results[row] = e.calculate();
+                }
+            } catch (RuntimeException ex) {
+                r.results = null;
+                r.error = String.valueOf(ex.getMessage());
+            }
+        }
+        evaluations.clear();
+    }
+
+    /**
+     * Writes the responses of the round, and makes room for more requests
+     */
+    private void respond() {
+        for (Connection c: active) {
+            if (c.closed) continue;
+            for (Request r: c.requests) write(c, r);
+            c.requests.clear();
+
+            ByteBuffer in = c.in;                           // Drop the parsed messages
+            int unparsed = in.position() - c.parsed;
+            in.put(0, in, c.parsed, unparsed);
+            in.position(unparsed);
+            c.parsed = 0;
+            flush(c);
+        }
+        active.clear();
+    }
+
+    private void write(Connection c, Request r) {
+        byte[] error = (r.error == null) ? null : r.error.getBytes(StandardCharsets.UTF_8);
+        int size;
+        if (error != null) {
+            size = error.length;
+        } else if (r.type == REGISTER) {
+            VariableScope scope = scopes.get(r.formula);
+            size = 4 + 2;
+            for (int v = 0; scope != null && v < scope.size(); v++) size += 2 + scope.name(v).getBytes(StandardCharsets.UTF_8).length;
+        } else {
+            size = 8 * r.rows;
+        }
+        if (c.out.remaining() < HEADER + size) c.out = grow(c.out, 0, c.out.position() + HEADER + size);
+
+        ByteBuffer out = c.out;
+        out.putInt(HEADER - 4 + size).put((error != null) ? ERROR : OK).putInt(r.id);
+        if (error != null) {
+            out.put(error);
+        } else if (r.type == REGISTER) {
+            VariableScope scope = scopes.get(r.formula);
+            int variables = (scope == null) ? 0 : scope.size();
+            out.putInt(r.formula).putShort((short) variables);
+            for (int v = 0; v < variables; v++) {
+                byte[] name = scope.name(v).getBytes(StandardCharsets.UTF_8);
+                out.putShort((short) name.length).put(name);
+            }
+        } else {
+            for (double result: r.results) out.putDouble(result);
+        }
+    }
+
+    private void flush(Connection c) {
+        ByteBuffer out = c.out;
+        try {
+            out.flip();
+            c.channel.write(out);
+            out.compact();
+        } catch (IOException e) {
+            drop(c);
+            return;
+        }
+        int ops = (out.position() > 0) ? SelectionKey.OP_WRITE : 0;
+        if (out.position() < HIGH_WATER) ops |= SelectionKey.OP_READ;
+        c.key.interestOps(ops);
+    }
+
+    private void drop(Connection c) {
+        release(c);
+        c.closed = true;
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return Buffer with room for at least "needed" bytes, with the data of the old one from "from" on at its start
+     */
+    static ByteBuffer grow(ByteBuffer old, int from, int needed) {
+        ByteBuffer b = newBuffer(Math.max(needed, old.capacity() * 2));
+        b.put(0, old, from, old.position() - from);
+        b.position(old.position() - from);
+        return b;
+    }
+}
@@ -28,10 +28,21 @@ public interface Expression {
     /**
      * Returns a list of variables this object depends on. Successful calculation requires all variables to be set.<br>
      * You can iterate through the returned set and call ExpressionParser.setVariable() to assign/unassign values to the vars.
-     * @return Set of variable names or an empty set
+     * @return Set of variable names or an empty set. The set may be unmodifiable.
      */
     Set<String> dependsOnVariables();
 
+    /**
+     * Checks if all variables this object depends on are set, so that calculate() won't throw VariableNotSetException.<br>
+     * Expressions returned by ExpressionParser.parse() answer this from a precomputed bitset, without building the set of names.
+     * @return true if all variables are set
+     */
+    default boolean allVariablesSet() {
+        for (String var: dependsOnVariables())
+            if (!ExpressionParser.getNamedValue(var).isPresent()) return false;
+        return true;
+    }
+
     /**
      * Checks if the expression is complete, that is, has no lack of operands.<br>
      * For example, "x", "2.0" and "a + b" are complete, whereas "*", "1 + ln" and "* a" are not.
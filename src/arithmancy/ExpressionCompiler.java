@@ -0,0 +1,292 @@
+package arithmancy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Turns parsed expressions into a faster form: a combination of method handles that the JIT compiles into a single method,
+ * with subtrees of pure operators over constants folded into constants, variables read straight from their slots, and no per-node checks.
+ * Compiled expressions check once per calculation that all variables are set, and if they aren't, leave the calculation to the original tree,
+ * so that the result (or the exception) is always the same.<br>
+ * Operator invocations aren't counted by Metrics in compiled code.<br>
+ * Also runs background compilations for AdaptiveExpression, on a bounded pool of daemon threads with a bounded queue.
+ */
+public final class ExpressionCompiler {
+    /** Default number of compiler threads */
+    public static final int DEFAULT_THREADS = 1;
+    /** Default number of expressions that may wait for compilation. When the queue is full, more requests are rejected. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private static volatile ThreadPoolExecutor executor = newExecutor(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    private static final LongAdder compilations = new LongAdder();
+    private static final LongAdder rejections = new LongAdder();
+
+    private ExpressionCompiler() {}
+
+    /**
+     * Compiles an expression right away, in the calling thread.
+     * @param expr Expression returned by ExpressionParser.parse()
+     * @return Compiled expression. Expressions that have nothing to gain, such as single constants, are returned as they are.
+     */
+    public static Expression compile(Expression expr) {
+        if (!(expr instanceof OperatorInstance) || ((OperatorInstance) expr).scope == null) return expr;
+        OperatorInstance root = (OperatorInstance) expr;
+
+        CompileEvent event = FlightRecording.started() ? new CompileEvent() : null;
+        if (event != null) event.begin();
+        Expression compiled = new CompiledExpression(root, new Compilation(root.scope.values).node(root));
+        compilations.increment();
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.describe(root);
+                event.commit();
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Replaces the compiler pool. Compilations already queued run on the old pool.
+     * @param threads Maximum number of compiler threads. Idle threads exit after a while.
+     * @param queueCapacity Maximum number of expressions waiting for compilation
+     */
+    public static void setBudget(int threads, int queueCapacity) {
+        ThreadPoolExecutor old = executor;
+        executor = newExecutor(threads, queueCapacity);
+        old.shutdown();
+    }
+
+    /**
+     * @return Number of expressions compiled so far
+     */
+    public static long compilations() {
+        return compilations.sum();
+    }
+
+    /**
+     * @return Number of background compilations rejected because the queue was full
+     */
+    public static long rejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * Queues a background compilation.
+     * @return false if the queue is full
+     */
+    static boolean submit(Runnable compilation) {
+        try {
+            executor.execute(compilation);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            return false;
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) throw new IllegalArgumentException("Invalid compiler budget: " + threads + " threads, queue of " + queueCapacity);
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread t = new Thread(r, "arithmancy-compiler-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // ============================= CODE GENERATION =============================
+
+    // Compiled subtrees higher than this are left to the interpreter. Method handle trees that tall aren't inlined by the JIT anyway.
+    static final int MAX_COMPILED_HEIGHT = 64;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle UNARY_EFFECT;
+    private static final MethodHandle BINARY_EFFECT;
+    private static final MethodHandle APPLY_UNARY;
+    private static final MethodHandle APPLY_BINARY;
+    private static final MethodHandle INTERPRET;
+    private static final MethodHandle SUPPLY;
+    private static final MethodHandle ELEMENT = MethodHandles.arrayElementGetter(double[].class);
+
+    static {
+        MethodType unary = methodType(double.class, double.class);
+        MethodType binary = methodType(double.class, double.class, double.class);
+        MethodType supplier = methodType(double.class);
+        try {
+            UNARY_EFFECT = LOOKUP.findVirtual(DoubleUnaryOperator.class, "applyAsDouble", unary);
+            BINARY_EFFECT = LOOKUP.findVirtual(DoubleBinaryOperator.class, "applyAsDouble", binary);
+            APPLY_UNARY = LOOKUP.findVirtual(OperatorInstance.class, "applyUnary", unary);
+            APPLY_BINARY = LOOKUP.findVirtual(OperatorInstance.class, "applyBinary", binary);
+            INTERPRET = LOOKUP.findVirtual(OperatorInstance.class, "calculate", supplier);
+            SUPPLY = LOOKUP.findVirtual(DoubleSupplier.class, "getAsDouble", supplier);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Calls compiled code of type ()double.
+     */
+    static double invoke(MethodHandle code) {
+        try {
+            return (double) code.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    /**
+     * Compiles one expression. Every node becomes a method handle of type ()double that combines the handles of its operands,
+     * with effects and variable slots bound in as constants. The JIT compiles the whole combination as one method,
+     * inlining effects into it, so that calculation costs about as much as straight-line Java code would.
+     */
+    private static final class Compilation {
+        private final double[] values;
+        private final Set<MethodHandle> constants = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        Compilation(double[] values) {
+            this.values = values;
+        }
+
+        MethodHandle node(Expression e) {
+            if (e instanceof Constant) return constant(e.calculate());
+            if (e instanceof Variable) return MethodHandles.insertArguments(ELEMENT, 0, values, ((Variable) e).slot());
+            if (!(e instanceof OperatorInstance) || ExpressionTrees.heightOf(e) > MAX_COMPILED_HEIGHT) return interpreted(e);
+
+            OperatorInstance op = (OperatorInstance) e;
+            MethodHandle[] operands = new MethodHandle[op.operandCount()];
+            boolean constant = op.pure;
+            for (int i = 0; i < operands.length; i++) {
+                operands[i] = node(op.operand(i));
+                constant &= constants.contains(operands[i]);
+            }
+
+            MethodHandle code = operator(op, operands);
+            if (constant) {
+                try {
+                    return constant(invoke(code));
+                } catch (RuntimeException ex) {
+                    return code;                            // Leave the failure to calculation time, if it ever comes to that
+                }
+            }
+            return code;
+        }
+
+        private MethodHandle operator(OperatorInstance op, MethodHandle[] operands) {
+            switch (op.kind) {
+                case UNARY:
+                    MethodHandle u = (op.cache == null) ? UNARY_EFFECT.bindTo(op.calculateU) : APPLY_UNARY.bindTo(op);
+                    return MethodHandles.collectArguments(u, 0, operands[0]);
+                case BINARY:
+                    MethodHandle b = (op.cache == null) ? BINARY_EFFECT.bindTo(op.calculateBi) : APPLY_BINARY.bindTo(op);
+                    b = MethodHandles.collectArguments(b, 1, operands[1]);
+                    return MethodHandles.collectArguments(b, 0, operands[0]);    // Left operand gets calculated first
+                case NARY:
+                    return SUPPLY.bindTo(new Nary(op, operands));
+                case LAZY:
+                    return SUPPLY.bindTo(new Lazy(op.calculateL, operands));
+            }
+            throw new InvalidOperatorKind(op.token);
+        }
+
+        private MethodHandle constant(double value) {
+            MethodHandle c = MethodHandles.constant(double.class, value);
+            constants.add(c);
+            return c;
+        }
+
+        private static MethodHandle interpreted(Expression e) {
+            if (e instanceof OperatorInstance) return INTERPRET.bindTo(e);
+            return SUPPLY.bindTo((DoubleSupplier) e::calculate);
+        }
+    }
+
+    private static final class Nary implements DoubleSupplier {
+        private final OperatorInstance op;                  // Applies the effect through the cache, if any
+        private final MethodHandle[] args;
+        Nary(OperatorInstance op, MethodHandle[] args) { this.op = op; this.args = args; }
+
+        @Override
+        public double getAsDouble() {
+            double[] values = new double[args.length];
+            for (int i = 0; i < values.length; i++) values[i] = invoke(args[i]);
+            return op.applyNary(values);
+        }
+    }
+
+    private static final class Lazy implements DoubleSupplier, Operator.Arguments {
+        private final Operator.LazyEffect f;
+        private final MethodHandle[] args;
+        Lazy(Operator.LazyEffect f, MethodHandle[] args) { this.f = f; this.args = args; }
+        @Override public double getAsDouble() { return f.apply(this); }
+        @Override public int count() { return args.length; }
+        @Override public double value(int i) { return invoke(args[i]); }
+    }
+}
+
+/**
+ * Compiled form of a parsed expression. Everything but calculate() is answered by the original tree.
+ */
+class CompiledExpression implements Expression {
+    private final OperatorInstance source;
+    private final VariableScope scope;
+    private final MethodHandle code;                        // ()double
+
+    CompiledExpression(OperatorInstance source, MethodHandle code) {
+        this.source = source;
+        this.scope = source.scope;
+        this.code = code;
+    }
+
+    OperatorInstance source() {
+        return source;
+    }
+
+    @Override
+    public double calculate() {
+        return scope.allSet() ? ExpressionCompiler.invoke(code) : source.calculate();
+    }
+
+    @Override
+    public String toLispString() {
+        return source.toLispString();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+    @Override
+    public Set<String> dependsOnVariables() {
+        return source.dependsOnVariables();
+    }
+
+    @Override
+    public boolean allVariablesSet() {
+        return source.allVariablesSet();
+    }
+
+    @Override
+    public boolean complete() {
+        return source.complete();
+    }
+}
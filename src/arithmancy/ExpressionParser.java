@@ -1,11 +1,11 @@
 package arithmancy;
 
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static arithmancy.Operator.Kind.BINARY;
+import static arithmancy.Operator.Kind.LAZY;
+import static arithmancy.Operator.Kind.NARY;
 import static arithmancy.Operator.Precedence.*;
 import static arithmancy.ParserEx.*;
 
@@ -13,6 +13,7 @@ import static arithmancy.ParserEx.*;
  * Main expression parser. Transforms input string into a tree of Expression objects, which can be used to calculate the result of teh expression.<br>
  * The input string may contain number literals, operators, functions, named constants and variables.<br>
  * You may add your own operators and functions by passing them to addOperator().<br>
+ * Functions created with Operator.nary() and Operator.lazy() take a comma-separated argument list, i.e. max(a, b, c).<br>
  * You may add your own named constants by passing them to addNamedConstant().<br>
  * If your expression contains variables, to be calculable, all of them must have been set. Use method Expression.dependsOnVariables() to get the list of variables
  * and setVariable to set them. Method addNamedConstant allows you to set a value that persists until a call to resetNamedConstants().<br>
@@ -22,6 +23,9 @@ import static arithmancy.ParserEx.*;
  */
 public class ExpressionParser {
 
+    /**
+     * Spaces out a formula the way the lexer splits it into tokens. Parsing doesn't go through it, it stays as a reference for tests and benchmarks.
+     */
     static String preprocessExpression(String e) {
 
         // Bring string to lowercase and put into Replacer for processing
@@ -53,54 +57,181 @@ public class ExpressionParser {
      * @return Root of the tree
      */
     public static Expression parse(String expr) throws ParsingError {
+        return parse(FormulaSource.of(expr));
+    }
+
+    /**
+     * Same as parse(String), but reads the formula right from the sequence, e.g. a StringBuilder or a CharBuffer, without making a String of it.
+     */
+    public static Expression parse(CharSequence expr) throws ParsingError {
+        return parse(FormulaSource.of(expr));
+    }
+
+    /**
+     * Same as parse(String), for a formula in a range of a char array. The array is read as it is, not copied.
+     */
+    public static Expression parse(char[] expr, int offset, int length) throws ParsingError {
+        return parse(FormulaSource.of(expr, offset, length));
+    }
+
+    /**
+     * Same as parse(String), for a formula in UTF-8 in a range of a buffer, e.g. a line of a memory-mapped file or of a network message.
+     * The bytes are decoded while parsing, not copied. The position and limit of the buffer are left as they are.
+     * @param offset Absolute index of the first byte of the formula
+     * @param length Number of bytes
+     */
+    public static Expression parse(ByteBuffer utf8, int offset, int length) throws ParsingError {
+        return parse(FormulaSource.ofUtf8(utf8, offset, length));
+    }
+
+    /**
+     * Parses a formula that is going to be edited, e.g. in a formula editor. Doesn't throw: errors come with ParsedFormula.errors().<br>
+     * Variables of the result are the ones setVariable(String, double) sets, as if it had been parsed with parse().
+     */
+    public static ParsedFormula parseForEditing(String text) {
+        return FormulaTree.parse(text);
+    }
+
+    /**
+     * Parses a formula after an edit, going over only the innermost pair of parentheses around the edit again.
+     * Blocks in parentheses the edit doesn't touch are kept as they were parsed, only the chains around them get parsed again.
+     * It comes down to parsing all of it if the operators or named constants have changed since, or if the parentheses didn't match.<br>
+     * The result shares subtrees and variables with the previous one, which must not be used afterwards.
+     * Variables that stay in the formula keep their values.
+     * @param previous Result of parseForEditing() or reparse()
+     * @param offset Offset of the edit in previous.text()
+     * @param removedLength Number of chars the edit removes at the offset
+     * @param inserted Text the edit inserts at the offset
+     * @throws IllegalStateException if the previous result has been edited already
+     */
+    public static ParsedFormula reparse(ParsedFormula previous, int offset, int removedLength, CharSequence inserted) {
+        return previous.edit(offset, removedLength, inserted);
+    }
+
+    private static Expression parse(FormulaSource src) throws ParsingError {
+        ParseEvent event = FlightRecording.started() ? new ParseEvent() : null;
+        if (event != null) event.begin();
         knownVars.clear();
+        boolean measured = Metrics.enabled;
+        long start = measured ? System.nanoTime() : 0;
+
+        Lexer.Lexicon lexicon = lexicon();
+        if (measured) start = Metrics.PREPROCESSING.recordSince(start);
 
-        String normExpr = preprocessExpression(expr);
+        int formulaLength = Lexer.validate(lexicon, src);
+        src.rewind();
+        if (measured) start = Metrics.VALIDATION.recordSince(start);
 
-        if (!validChars.matcher(normExpr).matches()) throw new ParsingError("Invalid character detected");
+        if (!Lexer.parenthesesMatch(src)) throw new ParsingError("Invalid parenthesis structure");
+        src.rewind();
+        if (measured) start = Metrics.PARENTHESES.recordSince(start);
 
-        int errPos = checkParenthesesAreCorrect(normExpr);
-        if (errPos >= 0) throw new ParsingError("Invalid parenthesis structure");
+        Expression root = parseTokens(new Lexer(lexicon, src));
+        bindVariables(root, formulaLength);
+        if (measured) Metrics.TREE_BUILDING.recordSince(start);
 
-        return parseSubstring(normExpr);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.describe(root);
+                event.commit();
+            }
+        }
+        return root;
     }
 
-    // ============================= MAIN STRING PARSER =============================
+    /**
+     * Puts all variables of a freshly parsed expression into one scope. The root operator keeps the scope,
+     * so that it can answer dependsOnVariables() and allVariablesSet() without walking the tree.
+     */
+    static void bindVariables(Expression root, int formulaLength) {
+        VariableScope scope = new VariableScope(knownVars.keySet());
+        scope.formulaLength = formulaLength;
+        scope.operatorSetVersion = operatorSetVersion;
+        for (int slot = 0; slot < scope.size(); slot++) knownVars.get(scope.name(slot)).bind(scope, slot);
+        if (root instanceof OperatorInstance) ((OperatorInstance) root).scope = scope;
+    }
 
-    private static Expression parseSubstring(String expr) throws ParsingError {
+    // ============================= MAIN STRING PARSER =============================
 
-        List<Expression> parsedAtomsInParentheses = new ArrayList<>();
-        for(int x; (x = expr.indexOf('(')) >= 0; ) {
+    /**
+     * Builds the tree from the tokens of the lexer in one left-to-right pass. Open parenthesized blocks wait on an explicit stack
+     * rather than on the call stack, so nesting depth is limited only by heap.
+     */
+    private static Expression parseTokens(Lexer lexer) throws ParsingError {
+        ArrayDeque<Block> open = new ArrayDeque<>();
+        Block current = new Block();
+
+        for (int token = lexer.next(); token != Lexer.END; token = lexer.next()) {
+            switch (token) {
+                case Lexer.ATOM:
+                    current.chain.add(lexer.atom());
+                    break;
+                case Lexer.OPEN:
+                    open.push(current);
+                    current = new Block();
+                    break;
+                case Lexer.COMMA:                                       // Commas separate function arguments: "a, b" becomes an ArgumentList
+                    current.endArgument();
+                    break;
+                case Lexer.CLOSE:
+                    Expression block = current.close();
+                    current = open.pop();
+                    current.chain.add(block);
+                    break;
+            }
+        }
 
-            // Replace (...) blocks with "ATOM#)"
-            String atom = substringInParentheses(expr, x);
-            // Parse each atom with recursive call
-            parsedAtomsInParentheses.add(parseSubstring(atom));
-            int atomNum = parsedAtomsInParentheses.size() - 1;
+        Expression root = current.close();
+        if (root instanceof ArgumentList) throw new ParsingError("Argument list outside of function call");
+        return root;
+    }
 
-            expr = (expr.substring(0, x) + " ATOM" + atomNum + ' ' + expr.substring(x + atom.length() + 2)).trim();
+    /**
+     * Contents of a pair of parentheses (or of the whole expression) while it's being parsed.
+     */
+    private static final class Block {
+        final List<Object> chain = new ArrayList<>();              // Names (String), numbers (Constant) and already parsed (...) blocks (Expression)
+        List<Expression> arguments;                                // Arguments finished by commas, null if there were no commas
+
+        void endArgument() throws ParsingError {
+            if (arguments == null) arguments = new ArrayList<>();
+            arguments.add(parseChain(chain));
+            chain.clear();
         }
 
-        LinkedList<Expression> expressionChain = new LinkedList<>();
-        ArrayList<String> atoms = new ArrayList<>(Arrays.asList(expr.split(" ")));
-        if (atoms.size() == 0) throw new ParsingError("Empty expression");
+        Expression close() throws ParsingError {
+            Expression last = parseChain(chain);
+            if (arguments == null) return last;
+            arguments.add(last);
+            return new ArgumentList(arguments.toArray(new Expression[0]));
+        }
+    }
 
-        for(String a: atoms) {
-            // ============== Main recognizer. Adds recognized pieces as incomplete expressions (i. e. operators without operands)
+    /**
+     * Parses a chain of names, numbers and already parsed (...) blocks, containing no parentheses and commas.
+     * Errors tell the index of the atom they were found at, if there's one to tell.
+     */
+    static Expression parseChain(List<Object> atoms) throws ParsingError {
 
+        if (atoms.isEmpty()) throw new ParsingError("Empty expression");
+        ExpressionChain expressionChain = new ExpressionChain(atoms.size());
 
-            Matcher m = ATOM.matcher(a);
-            if (m.find()) {                                                           // Add already parsed (...) block as a complete Expression
-                int atomNum = Integer.valueOf(a.substring(m.end()));
-                expressionChain.add(parsedAtomsInParentheses.get(atomNum));
+        for(Object atom: atoms) {
+            // ============== Main recognizer. Adds recognized pieces as incomplete expressions (i. e. operators without operands)
 
-            } else if (IS_A_NUMBER.matcher(a).matches()) {                                          // A number is converted into a Constant
-                double d = Double.valueOf(a);
-                expressionChain.add(new Constant(d));
+            if (atom instanceof Expression) {                                                       // Add a number or an already parsed (...) block
+                expressionChain.add((Expression) atom);                                             // as a complete Expression
+                continue;
+            }
+            String a = (String) atom;
 
-            } else if (knownNamedConsts.keySet().contains(a)) {                                     // A named constant
+            if (knownNamedConsts.keySet().contains(a)) {                                     // A named constant
                 expressionChain.add(knownNamedConsts.get(a));
 
+            } else if (knownFunctions.containsKey(a)) {                                             // A function of an argument list
+                expressionChain.add(new OperatorInstance(knownFunctions.get(a)));
+
             } else {
                 boolean isUnary = knownUnaries.keySet().contains(a);
                 boolean isBinary = knownBinaries.keySet().contains(a);
@@ -119,156 +250,153 @@ public class ExpressionParser {
                         op = unaryA;                                            // If expression begins with an operator, it is always unary
                     else {
                         Expression prev = expressionChain.getLast();            // Guaranteed to exist
-                        op = prev.complete()? binaryA : unaryA;                 // "a - 2" is a - 2, not a*(-2)
-                        // (a+2)-3: binary '-', a+ -3: unary '-'
+                        op = prev.complete() || prev instanceof ArgumentList? binaryA : unaryA;     // "a - 2" is a - 2, not a*(-2)
+                        // (a+2)-3: binary '-', a+ -3: unary '-', max(a,2)-3: binary '-'
                     }
 
                     expressionChain.add(new OperatorInstance(op));
 
-                } else                                                          // Not a number, ATOM or operator? It's a variable.
+                } else                                                          // Not a number, block or operator? It's a variable.
                     expressionChain.add(addNewVariable(a));                     // addNewVariable() checks for duplicates.
             }
         }
 
-        for (OperatorInstance op: opsReorderedByPrecedence(expressionChain)) {
-            int opPos = expressionChain.indexOf(op);
-            if (opPos == expressionChain.size() - 1) throw new ParsingError("Operator " + op.token + " has no right operand");
+        for (int opPos: opsReorderedByPrecedence(expressionChain)) {
+            OperatorInstance op = (OperatorInstance) expressionChain.get(opPos);
+            if (expressionChain.next(opPos) < 0) throw ParsingError.inChain(opPos, "Operator " + op.token + " has no right operand");
+
+            if (op.kind == NARY || op.kind == LAZY) {                   // Functions take the whole argument list, or a single operand
+                Expression args = expressionChain.remove(expressionChain.next(opPos));
+                op.arguments = (args instanceof ArgumentList) ? ((ArgumentList) args).arguments : new Expression[] {args};
+                for (Expression arg: op.arguments)
+                    if (! arg.complete()) throw ParsingError.inChain(opPos, "Function " + op.token + " has incomplete argument");
+                if (op.arguments.length < op.minArgs || op.arguments.length > op.maxArgs)
+                    throw ParsingError.inChain(opPos, "Function " + op.token + " cannot take " + op.arguments.length + " argument(s)");
+                op.operandsAttached();
+                continue;
+            }
 
             // Only COMPLETE expressions may be removed from expressionChain to serve as operands
-            op.rightOperand = expressionChain.remove(opPos + 1);
-            if (! op.rightOperand.complete()) throw new ParsingError("Operator " + op.token + " has incomplete right operand");
+            op.rightOperand = expressionChain.remove(expressionChain.next(opPos));
+            if (! op.rightOperand.complete()) throw ParsingError.inChain(opPos, "Operator " + op.token + " has incomplete right operand");
             if (op.kind == BINARY) {
-                if (opPos == 0) throw new ParsingError("Operator " + op.token + " has no left operand");
-                op.leftOperand = expressionChain.remove(opPos - 1);
-                if (! op.leftOperand.complete()) throw new ParsingError("Operator " + op.token + " has incomplete left operand");
+                if (expressionChain.previous(opPos) < 0) throw ParsingError.inChain(opPos, "Operator " + op.token + " has no left operand");
+                op.leftOperand = expressionChain.remove(expressionChain.previous(opPos));
+                if (! op.leftOperand.complete()) throw ParsingError.inChain(opPos, "Operator " + op.token + " has incomplete left operand");
             }
+            op.operandsAttached();
         }
 
         if (expressionChain.size() > 1) {
             StringBuilder exps = new StringBuilder("Uncollapsed expression: [");
-
-            expressionChain.forEach(ex -> {
+            for (int i = expressionChain.first(); i >= 0; i = expressionChain.next(i)) {
                 exps.append(" {");
-                exps.append(ex.toLispString());
-                exps.append('}'); }
-                );
-/*            for (Expression ex: expressionChain) {
-                exps.append(" {");
-                exps.append(ex.toLispString());
+                exps.append(expressionChain.get(i).toLispString());
                 exps.append('}');
-            }*/
+            }
             exps.append(" ]");
-            throw new ParsingError(exps.toString());
+            throw ParsingError.inChain(expressionChain.next(expressionChain.first()), exps.toString());
         }
 
-        return expressionChain.getFirst();
+        return expressionChain.get(expressionChain.first());
     }
 
     /**
-     * Creates a list of operators ordered y execution precedence from a list of expressions.
+     * Creates a list of operator positions in the chain, ordered by execution precedence.
      * Constants, vars and COMPLETE operators (i.e. those who already have their right operand) are OMITTED.
-     * Input list is unaffected.
+     * Input chain is unaffected.
      */
-    private static List<OperatorInstance> opsReorderedByPrecedence(final Collection<Expression> expChain) {
+    private static int[] opsReorderedByPrecedence(final ExpressionChain expChain) {
 
-        LinkedList<Expression> unordered = (expChain instanceof LinkedList)? (LinkedList)expChain : new LinkedList<>(expChain);
-        List<OperatorInstance> reordered = new ArrayList<>();
+        int[] reordered = new int[expChain.size()];
+        int count = 0;
 
         // Loop for all precedences from highest to lowest
         for (Operator.Precedence currentPrec : Operator.Precedence.highToLow ) {
 
             // Functions and other unary operators are evaluated RTL, all other operators are evaluated LTR.
-            Iterator<Expression> pass = (currentPrec == Operator.Precedence.FUNC)? unordered.descendingIterator() : unordered.iterator();
-            for (; pass.hasNext();) {
-                Expression expr = pass.next();
+            boolean rtl = currentPrec == Operator.Precedence.FUNC;
+            for (int i = rtl? expChain.last() : expChain.first(); i >= 0; i = rtl? expChain.previous(i) : expChain.next(i)) {
+                Expression expr = expChain.get(i);
                 // Adding only operators with current precedence that have not enough operands.
                 // Operators with enough operands ("complete" ones) are produced by already-parsed expressions in parentheses.
                 if ( (expr instanceof OperatorInstance) &&
                         (((OperatorInstance) expr).prec == currentPrec) &&
                         (! expr.complete()) ) {
-                    reordered.add((OperatorInstance) expr);
+                    reordered[count++] = i;
                 }
             }
         }
-        return reordered;
-    }
-
-    private static String substringInParentheses(final String s, final int pos) {       // pos must point to opening parenthesis, string must be correct
-        int b = 1;
-        int p = pos;
-        do {
-            switch (s.charAt(++p)) {
-                case '(': b++;
-                    break;
-                case ')': b--;
-                    break;
-            }
-        } while (b > 0);
-        return s.substring(pos + 1, p);
+        return Arrays.copyOf(reordered, count);
     }
 
     /**
-     * Checks for correct parenthesis structure. Returns position of incorrect parenthesis, -1 if everything is correct,<p>
-     * i.e. all '('s have matching ')'s, s.length if there are not enough ')'s.
+     * Doubly linked list of expressions over arrays. Elements are addressed by the position they were added at,
+     * and operands can be taken out of the middle in constant time.
      */
-     private static int checkParenthesesAreCorrect(final String s) {
-         int errpos = -1;
-         int b = 0;
-         for (int i = 0; i < s.length(); i++) {
-             switch (s.charAt(i)) {
-                 case '(': b++;
-                     break;
-                 case ')': b--;
-                     break;
-             }
-             if (b < 0) {
-                 errpos = i;
-                 break;
-             }
-         }
-         if (b > 0) errpos = s.length();
+    private static final class ExpressionChain {
+        private final Expression[] items;
+        private final int[] prev;
+        private final int[] next;
+        private int added, size;
+        private int first = -1, last = -1;
+
+        ExpressionChain(int capacity) {
+            items = new Expression[capacity];
+            prev = new int[capacity];
+            next = new int[capacity];
+        }
+
+        void add(Expression e) {
+            items[added] = e;
+            prev[added] = last;
+            next[added] = -1;
+            if (last >= 0) next[last] = added; else first = added;
+            last = added++;
+            size++;
+        }
+
+        Expression remove(int pos) {
+            if (prev[pos] >= 0) next[prev[pos]] = next[pos]; else first = next[pos];
+            if (next[pos] >= 0) prev[next[pos]] = prev[pos]; else last = prev[pos];
+            size--;
+            return items[pos];
+        }
 
-         return errpos;
-     }
+        Expression get(int pos) { return items[pos]; }
+        Expression getLast() { return items[last]; }
+        int first() { return first; }
+        int last() { return last; }
+        int next(int pos) { return next[pos]; }
+        int previous(int pos) { return prev[pos]; }
+        int size() { return size; }
+    }
 
     /**
      * Loads default set of arithmetic operators, functions etc.<br>
      * It gets called automatically during static initiation. No need to call it again unless you clear known operator list using clearKnownOperators().<br>
-     *  All functions are implicitly unary operators.
+     *  Functions written without argument lists are implicitly unary operators.<br>
+     * Series functions sma(x, n), stdev(x, n), highest(x, n), lowest(x, n), lag(x, k) and ema(x, alpha) take x as a new sample
+     * every time they're calculated, see Operator.stateful() and Checkpoint.<br>
+     * Comparisons aren't loaded, see addComparisonOperators().
      */
     public static void loadDefaultKnownOperators() {
-        clearKnownOperators();
-
-        addOperator(new Operator("+", ADD, (x, y) -> x + y) );
-
-        addOperator(new Operator("-", ADD, (x, y) -> x - y) );
-
-        addOperator(new Operator("*", MUL, (x, y) -> x * y) );
-
-        addOperator(new Operator("/", MUL, (x, y) -> x / y) );
-
-        addOperator(new Operator("^", POW, Math::pow) );
-
-        addOperator(new Operator("-", FUNC, (x) -> -x ) );
-
-        addOperator(new Operator("+", FUNC, (x) -> x ) );
-
-        addOperator(new Operator("ln", FUNC, Math::log) );
-
-        addOperator(new Operator("exp", FUNC, Math::exp) );
-
-        addOperator(new Operator("sin", FUNC, Math::sin) );
-
-        addOperator(new Operator("cos", FUNC, Math::cos) );
-
-        addOperator(new Operator("tg", FUNC, Math::tan) );
-
-        addOperator(new Operator("sqrt", FUNC, Math::sqrt));
+        loadKnownOperators(false);
+    }
 
-        addOperator(new Operator("√", FUNC, Math::sqrt));
+    /**
+     * Loads the same operators as loadDefaultKnownOperators(), except that ^, ln, exp, sin, cos and tg use the approximations from FastMath.
+     * They are slightly less accurate than java.lang.Math: see FastMath for error bounds.<br>
+     * Affects expressions parsed after the call.
+     */
+    public static void loadFastMathKnownOperators() {
+        loadKnownOperators(true);
+    }
 
+    private static void loadKnownOperators(boolean fastMath) {
+        clearKnownOperators();
+        BuiltIns.load(fastMath);
 // TODO: add more standard functions
-        recalculateValidChars();
     }
 
     /**
@@ -276,16 +404,40 @@ public class ExpressionParser {
      */
     public static void resetNamedConstants() {
         knownNamedConsts.clear();
+        lexicon = null;
         addNamedConstant("pi", Math.PI);
         addNamedConstant("π", Math.PI);
         addNamedConstant("e", Math.E);
     }
 
-    private static void recalculateValidChars() {
-        StringBuilder validCh = new StringBuilder();
-        knownOps().values().forEach(validCh::append);//        for (String opToken:knownOps().values()) validCh.append(opToken);
+    static Lexer.Lexicon lexicon() {
+        if (lexicon == null) lexicon = new Lexer.Lexicon(knownOps().values(), knownNamedConsts.keySet());
+        return lexicon;
+    }
+
+    /**
+     * Adds the comparison operators &lt; and &gt;, which give 1 if true and 0 if false. They aren't among the default operators,
+     * since non-word operators can't be substrings of each other: they would keep out custom ones such as &lt;= or &lt;&lt;.<br>
+     * Affects expressions parsed after the call.
+     * @return {@code true} if successful, {@code false} if either conflicts with already known operators
+     */
+    public static boolean addComparisonOperators() {
+        return BuiltIns.loadComparisons();
+    }
+
+    /**
+     * @return Number that changes every time when adding or removing operators
+     */
+    static long operatorSetVersion() {
+        return operatorSetVersion;
+    }
 
-        validChars = Pattern.compile("[a-z\\s\\d\\.\\(\\)" + Pattern.quote(validCh.toString()) + "]*");
+    private static boolean isName(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if ((c < 'a' || c > 'z') && c != '_') return false;
+        }
+        return true;
     }
 
     /**
@@ -294,8 +446,10 @@ public class ExpressionParser {
     public static void clearKnownOperators() {
         knownUnaries.clear();
         knownBinaries.clear();
-        validChars = DEFAULT_VALID_CHARS;
-        knownOpsCache = null;
+        knownFunctions.clear();
+        publishKnownOps();
+        lexicon = null;
+        operatorSetVersion++;
     }
 
     /**
@@ -304,8 +458,9 @@ public class ExpressionParser {
      * OperatorInstance cannot be null.<br>
      * OperatorInstance token cannot include uppercase letters.<br>
      * OperatorInstance cannot have the same token and number of operands as existing operator.<br>
-     * OperatorInstance token cannot be a substring or superstring of any operator's token already in collection.<br>
-     * Two operators with the same token are possible if and only if one of them is unary and other is binary.
+     * OperatorInstance token cannot be a substring or superstring of any operator's token already in collection, unless both are names
+     * of letters, which the lexer takes as a whole.<br>
+     * Two operators with the same token are possible if and only if one of them is binary and other is unary or a function.
      * @param op Operator to add. Effect of the operator is implemented through "effect" parameter during creation of the Operator object.
      * @return Returns {@code true} if successful, {@code false} if the new operator conflicts with already known operators
      */
@@ -317,8 +472,9 @@ public class ExpressionParser {
 
         for(Map.Entry<Operator, String> knop: knownOps().entrySet()) {
             String knopToken = knop.getValue();
-            if ( (knop.getKey().kind == op.kind)&&(knopToken.equals(op.token)) ||
-                    (knopToken.contains(op.token) || op.token.contains(knopToken)) &&(op.token.length() != knopToken.length()) ) return false;
+            if ( ((knop.getKey().kind == BINARY) == (op.kind == BINARY))&&(knopToken.equals(op.token)) ||
+                    (knopToken.contains(op.token) || op.token.contains(knopToken)) &&(op.token.length() != knopToken.length())
+                            &&!(isName(op.token) && isName(knopToken)) ) return false;        // "floor" is no "or"
         }
 
         switch (op.kind) {
@@ -328,11 +484,16 @@ public class ExpressionParser {
             case BINARY:
                 knownBinaries.put(op.token, op);
                 break;
+            case NARY:
+            case LAZY:
+                knownFunctions.put(op.token, op);
+                break;
             default:
                 throw new InvalidOperatorKind(op.token);
         }
-        recalculateValidChars();
-        knownOpsCache = null;
+        publishKnownOps();
+        lexicon = null;
+        operatorSetVersion++;
         return true;
     }
 
@@ -356,9 +517,24 @@ public class ExpressionParser {
             return value == knownNamedConsts.get(name).calculate();
 
         knownNamedConsts.put(name, new NamedConstant(value, name));
+        lexicon = null;
         return true;
     }
 
+    /**
+     * @return true if parseChain() takes the name for a variable
+     */
+    static boolean isVariableName(String name) {
+        return !knownNamedConsts.containsKey(name) && !knownFunctions.containsKey(name) && !knownUnaries.containsKey(name) && !knownBinaries.containsKey(name);
+    }
+
+    /**
+     * Variables of the last parsed expression by name. parseChain() adds new ones to it.
+     */
+    static Map<String, Variable> variables() {
+        return knownVars;
+    }
+
     /**
      * All variables of the same name are intrinsically the same Variable object
      * DO NOT call this directly to avoid name clashes with operators and named constants
@@ -377,6 +553,71 @@ public class ExpressionParser {
         knownVars.get(varName).setValue(varVal);
     }
 
+    /**
+     * Same as setVariable(String, Double), without boxing the value.
+     */
+    public static void setVariable(String varName, double varVal) throws UnknownVariableException {
+        Variable v = knownVars.get(varName);
+        if (v == null) throw new UnknownVariableException(varName);
+        v.setValue(varVal);
+    }
+
+    /**
+     * Sets a variable of the given expression, which needn't be the last one parsed, i.e. one that came from a FormulaCache.
+     * @param expr Expression returned by parse(), or its compiled or adaptive form
+     * @throws UnknownVariableException if the expression doesn't depend on the variable
+     */
+    public static void setVariable(Expression expr, String varName, double varVal) throws UnknownVariableException {
+        VariableScope scope = VariableScope.of(expr);
+        int slot = (scope == null) ? -1 : scope.slotOf(varName);
+        if (slot < 0) throw new UnknownVariableException(varName);
+        scope.setValue(slot, varVal);
+    }
+
+    /**
+     * Calculates an expression for each row of a batch of inputs: for row i, variable names[j] is set to columns[j][i], and the result goes to results[i].<br>
+     * Variables are looked up in the expression itself, so it needn't be the last one parsed. They keep the values of the last row afterwards.
+     * Doesn't allocate, unless the expression has NARY functions.
+     * @param expr Expression returned by parse()
+     * @param names Names of variables to set, in any order
+     * @param columns Values of each variable, at least results.length of them
+     * @param results Receives the results. Its length is the number of rows.
+     * @throws UnknownVariableException if the expression doesn't depend on one of the names
+     */
+    public static void calculateBatch(Expression expr, String[] names, double[][] columns, double[] results) throws UnknownVariableException {
+        if (names.length != columns.length) throw new IllegalArgumentException("Got " + names.length + " variables and " + columns.length + " columns");
+        VariableScope scope = VariableScope.of(expr);
+        BatchSlots batch = BatchSlots.CURRENT.get();
+        if (batch.busy) batch = new BatchSlots();                   // An operator calculates a batch while calculating one itself
+        if (batch.slots.length < names.length) batch.slots = new int[names.length];
+        int[] slots = batch.slots;
+        for (int j = 0; j < names.length; j++) {
+            slots[j] = (scope == null) ? -1 : scope.slotOf(names[j]);
+            if (slots[j] < 0) throw new UnknownVariableException(names[j]);
+            if (columns[j].length < results.length) throw new IllegalArgumentException("Column too short: " + names[j]);
+        }
+
+        BatchEvaluationEvent event = FlightRecording.started() && BatchEvaluationEvent.TYPE.isEnabled() ? new BatchEvaluationEvent() : null;
+        if (event != null) event.begin();
+
+        batch.busy = true;
+        try {
+            for (int i = 0; i < results.length; i++) {
+                for (int j = 0; j < names.length; j++) scope.setValue(slots[j], columns[j][i]);
+                results[i] = expr.calculate();
+            }
+        } finally {
+            batch.busy = false;
+        }
+
+        if (event != null) event.end();
+        if (event != null && event.shouldCommit()) {
+            event.describe(expr);
+            event.rows = results.length;
+            event.commit();
+        }
+    }
+
 
     /** Static class, no instantiation
      */
@@ -384,33 +625,31 @@ public class ExpressionParser {
 
     private static final Map<String, Operator> knownUnaries = new HashMap<>();
     private static final Map<String, Operator> knownBinaries = new HashMap<>();
+    private static final Map<String, Operator> knownFunctions = new HashMap<>();
 
     /**
-     * Merges lists of known unary and binary operators. Uses caching for speed.
+     * Merges lists of known unary and binary operators. Read-only, and safe to read from other threads, such as those of JMX.
      * Note that (Key,Value) in knownOps is REVERSED, since it can contain up to two operators with the same token.
      */
-    private static Map<Operator, String> knownOps() {
-        if (null == knownOpsCache) {
-            knownOpsCache = new HashMap<>();
-
-            knownOpsCache = knownUnaries.entrySet().stream().collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));             // Reverse the map of unaries
-
-            knownOpsCache.putAll(knownBinaries.entrySet().stream().collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey)));      // Reverse the map of binaries and add to the same collection
-
-
-/*            for (Map.Entry<String, Operator> unOp: knownUnaries.entrySet()) {
-                knownOpsCache.put(unOp.getValue(), unOp.getKey());
-            }
-            for (Map.Entry<String, Operator> biOp: knownBinaries.entrySet()) {
-                knownOpsCache.put(biOp.getValue(), biOp.getKey());
-            }*/
-        }
+    static Map<Operator, String> knownOps() {
         return knownOpsCache;
     }
 
-    private static Pattern validChars = DEFAULT_VALID_CHARS;       // Gets updated when adding new known operators
+    /**
+     * Rebuilds knownOps() after a change of operators, and publishes it once it's complete
+     */
+    private static void publishKnownOps() {
+        Map<Operator, String> ops = new HashMap<>();                                // Reverse the maps of unaries, binaries and functions
+        for (Map.Entry<String, Operator> e: knownUnaries.entrySet()) ops.put(e.getValue(), e.getKey());
+        for (Map.Entry<String, Operator> e: knownBinaries.entrySet()) ops.put(e.getValue(), e.getKey());
+        for (Map.Entry<String, Operator> e: knownFunctions.entrySet()) ops.put(e.getValue(), e.getKey());
+        knownOpsCache = Collections.unmodifiableMap(ops);
+    }
+
+    private static Lexer.Lexicon lexicon;                           // Invalidate (= null) every time when operators or named constants change
 
-    private static Map<Operator, String> knownOpsCache;            // Invalidate (= null) every time when adding or removing operators
+    private static volatile Map<Operator, String> knownOpsCache = Collections.emptyMap();   // Rebuilt every time when adding or removing operators
+    private static volatile long operatorSetVersion;               // Incremented every time when adding or removing operators
     private static final Map<String, Variable> knownVars = new HashMap<>();
     private static final Map<String, Constant> knownNamedConsts = new HashMap<>();
 
@@ -437,3 +676,64 @@ public class ExpressionParser {
         return Optional.empty(); */
     }
 }
+
+/**
+ * Per-thread slots of the variables of ExpressionParser.calculateBatch(), looked up once per batch rather than once per row.
+ * Kept from one batch to the next, so that a batch allocates nothing.
+ */
+final class BatchSlots {
+    static final ThreadLocal<BatchSlots> CURRENT = new ThreadLocal<BatchSlots>() {
+        @Override
+        protected BatchSlots initialValue() {
+            return new BatchSlots();
+        }
+    };
+
+    int[] slots = new int[8];
+    boolean busy;
+}
+
+/**
+ * Comma-separated arguments in parentheses. Exists only during parsing, until taken by an NARY or LAZY function.
+ */
+class ArgumentList implements Expression {
+    final Expression[] arguments;
+
+    ArgumentList(Expression[] arguments) {
+        this.arguments = arguments;
+    }
+
+    @Override
+    public double calculate() {
+        throw new IllegalStateException("Argument list cannot be calculated");
+    }
+
+    @Override
+    public String toLispString() {
+        StringJoiner args = new StringJoiner(",", "(", ")");
+        for (Expression arg: arguments) args.add(arg.toLispString());
+        return args.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner args = new StringJoiner(", ", "(", ")");
+        for (Expression arg: arguments) args.add(arg.toString());
+        return args.toString();
+    }
+
+    @Override
+    public Set<String> dependsOnVariables() {
+        Set<String> r = new HashSet<>();
+        for (Expression arg: arguments) r.addAll(arg.dependsOnVariables());
+        return r;
+    }
+
+    /**
+     * Never complete, so that no operator except a function can take it as an operand.
+     */
+    @Override
+    public boolean complete() {
+        return false;
+    }
+}
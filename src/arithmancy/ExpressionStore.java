@@ -0,0 +1,512 @@
+package arithmancy;
+
+import java.util.*;
+
+import static arithmancy.Operator.Kind.LAZY;
+
+/**
+ * Compact storage for large numbers of parsed expressions. Nodes of all formulas live in shared primitive arrays
+ * and formulas are addressed by integer handles, so that a stored node costs 5 bytes (plus 8 for a constant)
+ * instead of an object of its own. Parsed trees can be dropped once they're added.<br>
+ * Nodes of a formula are laid out in post-order: an opcode in a byte array, and an int argument whose meaning depends on the opcode -
+ * index of a constant, slot of a variable, or operand count of an operator. Operands of a node are the subtrees right before it,
+ * so they need no references. Operands of LAZY functions are calculated only on demand: a SKIP node in front of them leads
+ * straight to the function, which finds its operands in a table of links.<br>
+ * Variables are numbered across the store: calculate() reads the value of a variable from the given array, at the slot returned by slotOf().<br>
+ * Formulas can be added, but not removed. Adding isn't thread-safe, but once formulas are added (and safely published),
+ * any number of threads may calculate them. Operator invocations aren't counted by Metrics.
+ */
+public final class ExpressionStore {
+    private static final int CONSTANT = 0;
+    private static final int NAMED_CONSTANT = 1;
+    private static final int VARIABLE = 2;
+    private static final int SKIP = 3;                      // Argument is the index of the LAZY node after the operands
+    private static final int FIRST_OPERATOR = 4;
+    /** Maximum number of distinct operators in one store. Opcodes are unsigned bytes. */
+    public static final int MAX_OPERATORS = 256 - FIRST_OPERATOR;
+
+    private byte[] codes = new byte[1024];
+    private int[] args = new int[1024];
+    private int nodeCount;
+    private double[] constants = new double[256];
+    private int constantCount;
+    private int[] links = new int[64];                      // Of each LAZY node: operand count, then the first node of each operand
+    private int linkCount;
+    private int[] starts = new int[64];                     // First node of each formula, and nodeCount after the last one
+    private int formulaCount;
+    private int maxStack = 1;                               // Deepest value stack any formula needs
+
+    private final OperatorInstance[] operators = new OperatorInstance[MAX_OPERATORS];
+    private int operatorCount;
+    private final Map<List<Object>, Integer> operatorCodes = new HashMap<>();
+    private final List<String> constantNames = new ArrayList<>();
+    private double[] namedValues = new double[0];
+    private final Map<List<Object>, Integer> namedConstantIndexes = new HashMap<>();
+    private final List<String> variableNames = new ArrayList<>();
+    private final Map<String, Integer> variableSlots = new HashMap<>();
+
+    private static final ThreadLocal<Evaluation> EVALUATION = ThreadLocal.withInitial(Evaluation::new);
+
+    /**
+     * Adds a parsed expression.
+     * @param expr Expression returned by ExpressionParser.parse()
+     * @return Handle of the stored formula
+     * @throws IllegalArgumentException if expr wasn't returned by ExpressionParser.parse(), or if it uses stateful functions
+     * @throws IllegalStateException if the store would have more than MAX_OPERATORS distinct operators
+     */
+    public int add(Expression expr) {
+        int nodeMark = nodeCount, constantMark = constantCount, linkMark = linkCount;
+        int operatorMark = operatorCount, namedMark = constantNames.size(), variableMark = variableNames.size();
+        rejectStateful(expr);
+        int need;
+        try {
+            need = emit(expr);
+        } catch (RuntimeException e) {
+            nodeCount = nodeMark;
+            constantCount = constantMark;
+            linkCount = linkMark;
+            rollBackTables(operatorMark, namedMark, variableMark);
+            throw e;
+        }
+        if (formulaCount + 2 > starts.length) starts = Arrays.copyOf(starts, starts.length * 2);
+        starts[++formulaCount] = nodeCount;
+        maxStack = Math.max(maxStack, need);
+        return formulaCount - 1;
+    }
+
+    /**
+     * Parses a formula and adds it, without keeping the tree.
+     * @return Handle of the stored formula
+     */
+    public int add(String formula) throws ParsingError {
+        return add(ExpressionParser.parse(formula));
+    }
+
+    /**
+     * Calculates a stored formula.
+     * @param handle Handle returned by add()
+     * @param values Values of variables, indexed by slotOf(name). Only slots of variables of this formula are read.
+     */
+    public double calculate(int handle, double[] values) {
+        checkHandle(handle);
+        Evaluation ev = EVALUATION.get();
+        if (ev.busy) ev = new Evaluation();                 // An operator calculates a stored formula while calculating one itself
+        if (ev.stack.length < maxStack) ev.stack = new double[maxStack];
+        ev.busy = true;
+        try {
+            return run(starts[handle], starts[handle + 1] - 1, values, ev, ev.stack, 0, 0);
+        } finally {
+            ev.busy = false;
+        }
+    }
+
+    /**
+     * @return Slot of the variable in arrays passed to calculate(), or -1 if no stored formula has it
+     */
+    public int slotOf(String name) {
+        Integer slot = variableSlots.get(name);
+        return (slot == null) ? -1 : slot;
+    }
+
+    /**
+     * @return Number of slots that arrays passed to calculate() may need
+     */
+    public int variableCount() {
+        return variableNames.size();
+    }
+
+    public String variableName(int slot) {
+        return variableNames.get(slot);
+    }
+
+    /**
+     * @return Names of variables of a stored formula
+     */
+    public Set<String> variablesOf(int handle) {
+        checkHandle(handle);
+        Set<String> vars = new HashSet<>();
+        for (int n = starts[handle]; n < starts[handle + 1]; n++) {
+            if (codes[n] == VARIABLE) vars.add(variableNames.get(args[n]));
+        }
+        return vars;
+    }
+
+    /**
+     * @return Formula as printed by Expression.toString() of the tree it was added from
+     */
+    public String toString(int handle) {
+        return print(handle, false);
+    }
+
+    /**
+     * @return Formula as printed by Expression.toLispString() of the tree it was added from
+     */
+    public String toLispString(int handle) {
+        return print(handle, true);
+    }
+
+    public int formulaCount() {
+        return formulaCount;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Shrinks the arrays to what the stored formulas take, i.e. once everything is added.
+     */
+    public void trimToSize() {
+        codes = Arrays.copyOf(codes, nodeCount);
+        args = Arrays.copyOf(args, nodeCount);
+        constants = Arrays.copyOf(constants, constantCount);
+        links = Arrays.copyOf(links, linkCount);
+        starts = Arrays.copyOf(starts, formulaCount + 1);
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= formulaCount) throw new IllegalArgumentException("Invalid handle: " + handle);
+    }
+
+    // ============================= ADDING =============================
+
+    /**
+     * Operator whose operands are being added
+     */
+    private static final class Frame {
+        final OperatorInstance op;
+        final int code;
+        int next;                                           // Next operand to add
+        int need = 1;                                       // Depth of the value stack the subtree needs
+        int link = -1;                                      // Links of a LAZY operator
+
+        Frame(OperatorInstance op, int code) {
+            this.op = op;
+            this.code = code;
+        }
+
+        void operandAdded(int i, int operandNeed) {
+            need = Math.max(need, (op.kind == LAZY) ? operandNeed : i + operandNeed);     // LAZY operands are calculated one at a time
+        }
+    }
+
+    /**
+     * Appends the nodes of a tree. Walks the tree with an explicit stack, so its height doesn't matter.
+     * @return Depth of the value stack the formula needs
+     */
+    private int emit(Expression root) {
+        if (!(root instanceof OperatorInstance)) {
+            emitLeaf(root);
+            return 1;
+        }
+        ArrayDeque<Frame> frames = new ArrayDeque<>();
+        frames.push(open((OperatorInstance) root));
+        while (true) {
+            Frame f = frames.peek();
+            if (f.next < f.op.operandCount()) {
+                int i = f.next++;
+                if (f.link >= 0) links[f.link + 1 + i] = nodeCount;
+                Expression operand = f.op.operand(i);
+                if (operand instanceof OperatorInstance) {
+                    frames.push(open((OperatorInstance) operand));
+                } else {
+                    emitLeaf(operand);
+                    f.operandAdded(i, 1);
+                }
+                continue;
+            }
+
+            int lazy = append(f.code, (f.link >= 0) ? f.link : f.op.operandCount());
+            if (f.link >= 0) args[links[f.link + 1] - 1] = lazy;                        // The SKIP node
+            frames.pop();
+            if (frames.isEmpty()) return f.need;
+            Frame parent = frames.peek();
+            parent.operandAdded(parent.next - 1, f.need);
+        }
+    }
+
+    private Frame open(OperatorInstance op) {
+        Frame f = new Frame(op, codeOf(op));
+        if (op.kind == LAZY) {
+            append(SKIP, -1);
+            int count = op.operandCount();
+            if (linkCount + count + 1 > links.length) links = Arrays.copyOf(links, Math.max(links.length * 2, linkCount + count + 1));
+            f.link = linkCount;
+            links[linkCount] = count;
+            linkCount += count + 1;
+        }
+        return f;
+    }
+
+    private void emitLeaf(Expression e) {
+        if (e instanceof NamedConstant) {
+            append(NAMED_CONSTANT, namedConstantIndexOf(e.toString(), e.calculate()));
+        } else if (e instanceof Constant) {
+            if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+            constants[constantCount] = e.calculate();
+            append(CONSTANT, constantCount++);
+        } else if (e instanceof Variable) {
+            append(VARIABLE, variableSlots.computeIfAbsent(((Variable) e).getName(), name -> {
+                variableNames.add(name);
+                return variableNames.size() - 1;
+            }));
+        } else {
+            throw new IllegalArgumentException("Not a parsed expression: " + e);
+        }
+    }
+
+    private int append(int code, int arg) {
+        if (nodeCount == codes.length) {
+            codes = Arrays.copyOf(codes, nodeCount * 2);
+            args = Arrays.copyOf(args, nodeCount * 2);
+        }
+        codes[nodeCount] = (byte) code;
+        args[nodeCount] = arg;
+        return nodeCount++;
+    }
+
+    /**
+     * Checks the whole tree before anything is added: stored formulas share their operators, which stateful functions can't do
+     */
+    private static void rejectStateful(Expression root) {
+        ArrayDeque<Expression> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Expression e = pending.pop();
+            if (!(e instanceof OperatorInstance)) continue;
+            OperatorInstance op = (OperatorInstance) e;
+            if (op.calculateL instanceof Operator.StatefulEffect) throw new IllegalArgumentException("Stateful functions can't be stored: " + op.token);
+            for (int i = 0; i < op.operandCount(); i++) pending.push(op.operand(i));
+        }
+    }
+
+    private int codeOf(OperatorInstance op) {
+        Object effect = (op.calculateBi != null) ? op.calculateBi
+                : (op.calculateU != null) ? op.calculateU
+                : (op.calculateN != null) ? op.calculateN : op.calculateL;
+        List<Object> key = Arrays.asList(op.kind, op.token, effect, op.cache);
+        Integer code = operatorCodes.get(key);
+        if (code != null) return code;
+
+        if (operatorCount == MAX_OPERATORS) throw new IllegalStateException("Too many distinct operators in one store: " + op.token);
+        operators[operatorCount] = new OperatorInstance(op);
+        code = FIRST_OPERATOR + operatorCount++;
+        operatorCodes.put(key, code);
+        return code;
+    }
+
+    /**
+     * Forgets operators, named constants and variables added since the marks, so that a formula that couldn't be added leaves nothing behind
+     */
+    private void rollBackTables(int operatorMark, int namedMark, int variableMark) {
+        operatorCodes.values().removeIf(code -> code >= FIRST_OPERATOR + operatorMark);
+        Arrays.fill(operators, operatorMark, operatorCount, null);
+        operatorCount = operatorMark;
+
+        namedConstantIndexes.values().removeIf(index -> index >= namedMark);
+        constantNames.subList(namedMark, constantNames.size()).clear();
+        namedValues = Arrays.copyOf(namedValues, namedMark);
+
+        for (String name: variableNames.subList(variableMark, variableNames.size())) variableSlots.remove(name);
+        variableNames.subList(variableMark, variableNames.size()).clear();
+    }
+
+    int operatorCount() {
+        return operatorCount;
+    }
+
+    private int namedConstantIndexOf(String name, double value) {
+        return namedConstantIndexes.computeIfAbsent(Arrays.asList(name, value), key -> {
+            constantNames.add(name);
+            namedValues = Arrays.copyOf(namedValues, namedValues.length + 1);
+            namedValues[namedValues.length - 1] = value;
+            return namedValues.length - 1;
+        });
+    }
+
+    // ============================= CALCULATION =============================
+
+    /**
+     * Per-thread scratch space, so that calculation allocates nothing
+     */
+    private static final class Evaluation {
+        double[] stack = new double[64];
+        LazyArguments[] arguments = new LazyArguments[8];   // One per nesting level of LAZY functions
+        double[][] naryArguments = new double[8][];         // One per argument count of NARY functions
+        boolean busy;
+
+        LazyArguments arguments(int level) {
+            if (level == arguments.length) arguments = Arrays.copyOf(arguments, level * 2);
+            if (arguments[level] == null) arguments[level] = new LazyArguments();
+            return arguments[level];
+        }
+
+        double[] naryArguments(int count) {
+            if (count >= naryArguments.length) naryArguments = Arrays.copyOf(naryArguments, Math.max(count + 1, naryArguments.length * 2));
+            if (naryArguments[count] == null) naryArguments[count] = new double[count];
+            return naryArguments[count];
+        }
+    }
+
+    /**
+     * Operands of a LAZY function, calculated on demand on the value stack above the function's own place.
+     */
+    private static final class LazyArguments implements Operator.Arguments {
+        ExpressionStore store;
+        int node;
+        double[] values;
+        Evaluation ev;
+        double[] stack;
+        int base;
+        int level;
+
+        @Override
+        public int count() {
+            return store.links[store.args[node]];
+        }
+
+        @Override
+        public double value(int i) {
+            int link = store.args[node];
+            int count = store.links[link];
+            Objects.checkIndex(i, count);
+            int from = store.links[link + 1 + i];
+            int to = (i + 1 < count) ? store.links[link + 2 + i] - 1 : node - 1;
+            return store.run(from, to, values, ev, stack, base, level + 1);
+        }
+    }
+
+    /**
+     * Calculates the subtree made of nodes from..to, with a value stack starting at base.
+     */
+    private double run(int from, int to, double[] values, Evaluation ev, double[] stack, int base, int level) {
+        int top = base;
+        for (int n = from; n <= to; n++) {
+            int code = codes[n] & 0xFF;
+            switch (code) {
+                case CONSTANT:
+                    stack[top++] = constants[args[n]];
+                    continue;
+                case NAMED_CONSTANT:
+                    stack[top++] = namedValues[args[n]];
+                    continue;
+                case VARIABLE:
+                    stack[top++] = values[args[n]];
+                    continue;
+                case SKIP:
+                    int lazy = args[n];
+                    LazyArguments a = ev.arguments(level);
+                    a.store = this;
+                    a.node = lazy;
+                    a.values = values;
+                    a.ev = ev;
+                    a.stack = stack;
+                    a.base = top;
+                    a.level = level;
+                    stack[top] = operators[(codes[lazy] & 0xFF) - FIRST_OPERATOR].calculateL.apply(a);
+                    top++;
+                    n = lazy;
+                    continue;
+            }
+
+            OperatorInstance op = operators[code - FIRST_OPERATOR];
+            switch (op.kind) {
+                case UNARY:
+                    stack[top - 1] = op.applyUnary(stack[top - 1]);
+                    break;
+                case BINARY:
+                    top--;
+                    stack[top - 1] = op.applyBinary(stack[top - 1], stack[top]);
+                    break;
+                default:                                    // NARY
+                    int count = args[n];
+                    top -= count;
+                    double[] operands = ev.naryArguments(count);
+                    System.arraycopy(stack, top, operands, 0, count);
+                    stack[top] = op.applyNary(operands);
+                    top++;
+            }
+        }
+        return stack[base];
+    }
+
+    // ============================= PRINTING =============================
+
+    /**
+     * Prints a formula the way ExpressionTrees.print() prints its tree.
+     */
+    private String print(int handle, boolean lisp) {
+        checkHandle(handle);
+        int from = starts[handle];
+        int[] subtreeStarts = subtreeStarts(from, starts[handle + 1] - 1);
+
+        StringBuilder sb = new StringBuilder();
+        ArrayDeque<Object> pending = new ArrayDeque<>();            // Nodes to print and pieces of text between them
+        pending.push(starts[handle + 1] - 1);
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+            if (next instanceof String) {
+                sb.append((String) next);
+                continue;
+            }
+            int n = (Integer) next;
+            int code = codes[n] & 0xFF;
+            switch (code) {
+                case CONSTANT:
+                    sb.append(constants[args[n]]);
+                    continue;
+                case NAMED_CONSTANT:
+                    sb.append(constantNames.get(args[n]));
+                    continue;
+                case VARIABLE:
+                    sb.append(variableNames.get(args[n]));
+                    continue;
+            }
+
+            OperatorInstance op = operators[code - FIRST_OPERATOR];
+            int count = (op.kind == LAZY) ? links[args[n]] : args[n];
+            int[] operands = new int[count];                        // Last nodes of operands
+            operands[count - 1] = n - 1;
+            for (int i = count - 2; i >= 0; i--) operands[i] = subtreeStarts[operands[i + 1] - from] - 1;
+
+            pending.push(")");
+            if (op.kind == Operator.Kind.BINARY && !lisp) {
+                pending.push(operands[1]);
+                pending.push(" " + op.token + " ");
+                pending.push(operands[0]);
+                pending.push("(");
+                continue;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                pending.push(operands[i]);
+                if (i > 0) pending.push((lisp || op.kind == Operator.Kind.BINARY) ? "," : ", ");
+            }
+            pending.push(op.token + '(');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return First node of the subtree of each node from..to, indexed from 0
+     */
+    private int[] subtreeStarts(int from, int to) {
+        int[] result = new int[to - from + 1];
+        int[] pending = new int[16];                                // Starts of subtrees not yet taken as operands
+        int top = 0;
+        for (int n = from; n <= to; n++) {
+            int code = codes[n] & 0xFF;
+            int start = n;
+            if (code == SKIP) continue;                             // Counted as the start of its LAZY function
+            if (code >= FIRST_OPERATOR) {
+                OperatorInstance op = operators[code - FIRST_OPERATOR];
+                int count = (op.kind == LAZY) ? links[args[n]] : args[n];
+                top -= count;
+                start = (op.kind == LAZY) ? links[args[n] + 1] - 1 : pending[top];
+            }
+            if (top == pending.length) pending = Arrays.copyOf(pending, top * 2);
+            pending[top++] = start;
+            result[n - from] = start;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,172 @@
+package arithmancy;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static arithmancy.Operator.Kind.LAZY;
+
+/**
+ * Walks of Expression trees that use explicit stacks instead of the call stack, so that tree depth is limited only by heap.<br>
+ * A machine-generated sum of 200 000 terms makes a tree 200 000 levels deep.
+ */
+final class ExpressionTrees {
+    /**
+     * Trees up to this height are calculated recursively. It's fast and keeps well within the default thread stack.
+     */
+    static final int MAX_RECURSIVE_HEIGHT = 256;
+
+    private ExpressionTrees() {}
+
+    /**
+     * @return Parsed tree of an expression, or of its compiled or adaptive form
+     */
+    static Expression treeOf(Expression e) {
+        if (e instanceof AdaptiveExpression) return treeOf(((AdaptiveExpression) e).source());
+        if (e instanceof CompiledExpression) return ((CompiledExpression) e).source();
+        return e;
+    }
+
+    static int heightOf(Expression e) {
+        return (e instanceof OperatorInstance) ? ((OperatorInstance) e).height : 0;
+    }
+
+    /**
+     * Calculates a deep tree in post-order. Operands of LAZY functions are left to the functions themselves,
+     * so only nesting of LAZY functions in each other uses the call stack.
+     */
+    static double calculate(OperatorInstance root) {
+        OperatorInstance[] nodes = new OperatorInstance[64];
+        int[] done = new int[64];                           // Number of operands of the node already calculated
+        double[] values = new double[64];
+        int depth = 0;
+        int top = 0;
+
+        nodes[depth++] = root;
+        while (depth > 0) {
+            OperatorInstance node = nodes[depth - 1];
+            int count = node.operandCount();
+            int next = done[depth - 1];
+
+            if (node.kind != LAZY && next < count) {        // Go on with the next operand
+                done[depth - 1]++;
+                Expression operand = node.operand(next);
+                if (heightOf(operand) > MAX_RECURSIVE_HEIGHT) {
+                    if (depth == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, depth * 2);
+                        done = Arrays.copyOf(done, depth * 2);
+                    }
+                    nodes[depth] = (OperatorInstance) operand;
+                    done[depth++] = 0;
+                } else {
+                    if (top == values.length) values = Arrays.copyOf(values, top * 2);
+                    values[top++] = operand.calculate();
+                }
+                continue;
+            }
+
+            double result;                                  // All operands are on the value stack
+            if (Metrics.enabled && node != root) node.invocations.increment();     // The root was counted by its calculate()
+            switch (node.kind) {
+                case UNARY:
+                    result = node.applyUnary(values[top - 1]);
+                    break;
+                case BINARY:
+                    result = node.applyBinary(values[top - 2], values[top - 1]);
+                    break;
+                case NARY:
+                    result = node.applyNary(Arrays.copyOfRange(values, top - count, top));
+                    break;
+                default:
+                    result = node.applyLazy();
+                    count = 0;
+            }
+            top -= count;
+            depth--;
+            if (top == values.length) values = Arrays.copyOf(values, top * 2);
+            values[top++] = result;
+        }
+        return values[0];
+    }
+
+    /**
+     * Collects names of all variables in the tree.
+     */
+    static Set<String> variables(Expression root) {
+        Set<String> vars = new HashSet<>();
+        ArrayDeque<Expression> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Expression e = pending.pop();
+            if (e instanceof OperatorInstance) {
+                OperatorInstance op = (OperatorInstance) e;
+                for (int i = 0; i < op.operandCount(); i++) pending.push(op.operand(i));
+            } else if (e instanceof Variable) {
+                vars.add(((Variable) e).getName());
+            } else if (!(e instanceof Constant)) {
+                vars.addAll(e.dependsOnVariables());
+            }
+        }
+        return vars;
+    }
+
+    /**
+     * Counts operators, variables and constants in the tree.
+     */
+    static int sizeOf(Expression root) {
+        int size = 0;
+        ArrayDeque<Expression> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Expression e = pending.pop();
+            size++;
+            if (e instanceof OperatorInstance) {
+                OperatorInstance op = (OperatorInstance) e;
+                for (int i = 0; i < op.operandCount(); i++) pending.push(op.operand(i));
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Prints the tree as a formula (see Expression.toString()) or in lisp style (see Expression.toLispString()).
+     */
+    static String print(Expression root, boolean lisp) {
+        StringBuilder sb = new StringBuilder();
+        ArrayDeque<Object> pending = new ArrayDeque<>();            // Expressions to print and pieces of text between them
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+            if (next instanceof String) {
+                sb.append((String) next);
+            } else if (next instanceof OperatorInstance) {
+                OperatorInstance op = (OperatorInstance) next;
+                switch (op.kind) {
+                    case UNARY:
+                        pushInReverse(pending, op.token + '(', op.rightOperand, ")");
+                        break;
+                    case BINARY:
+                        if (lisp) pushInReverse(pending, op.token + '(', op.leftOperand, ",", op.rightOperand, ")");
+                        else pushInReverse(pending, "(", op.leftOperand, " " + op.token + " ", op.rightOperand, ")");
+                        break;
+                    default:
+                        pending.push(")");
+                        for (int i = op.arguments.length - 1; i >= 0; i--) {
+                            pending.push(op.arguments[i]);
+                            if (i > 0) pending.push(lisp ? "," : ", ");
+                        }
+                        pending.push(op.token + '(');
+                }
+            } else {
+                Expression e = (Expression) next;
+                sb.append(lisp ? e.toLispString() : e.toString());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void pushInReverse(ArrayDeque<Object> stack, Object... items) {
+        for (int i = items.length - 1; i >= 0; i--) stack.push(items[i]);
+    }
+}
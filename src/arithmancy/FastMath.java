@@ -0,0 +1,211 @@
+package arithmancy;
+
+/**
+ * Polynomial approximations of transcendental functions, used by the fast-math operator set (see ExpressionParser.loadFastMathKnownOperators()).<br>
+ * Each function handles the common range with straight-line code: range reduction, a small table lookup, a short fixed-degree polynomial
+ * and an exponent rebuild, with no loops and no data-dependent branches, so that loops over arrays of arguments can be vectorized.
+ * Rare arguments (NaN, infinities, subnormals, overflow, huge angles) are passed to java.lang.Math.<br>
+ * Maximum errors are given in ULPs of the exact result and are checked against StrictMath by FastMathTest.
+ */
+public final class FastMath {
+
+    /** Maximum error of exp(), in ULPs */
+    public static final double EXP_MAX_ULP = 3;
+    /** Maximum error of log(), in ULPs */
+    public static final double LOG_MAX_ULP = 3;
+    /** Maximum error of sin() and cos(), in ULPs */
+    public static final double SIN_COS_MAX_ULP = 2;
+    /** Maximum error of tan(), in ULPs */
+    public static final double TAN_MAX_ULP = 4;
+    /**
+     * Maximum error of pow(x, y), in ULPs, is POW_MAX_ULP + |y·ln(x)| · POW_MAX_ULP_PER_LOG.<br>
+     * The second term comes from rounding of y·ln(x) and keeps the relative error below 1e-12 for all finite results.
+     */
+    public static final double POW_MAX_ULP = 4;
+    /** See POW_MAX_ULP */
+    public static final double POW_MAX_ULP_PER_LOG = 3;
+
+    private FastMath() {}
+
+    // ============================= EXP =============================
+
+    private static final int EXP_TABLE_BITS = 6;
+    private static final int EXP_TABLE_SIZE = 1 << EXP_TABLE_BITS;
+    private static final double[] EXP_TABLE = new double[EXP_TABLE_SIZE];      // 2^(j/64)
+
+    private static final double LN2_HI = 6.93147180369123816490e-01;       // ln(2) split in two: the upper part has 21 trailing zero bits,
+    private static final double LN2_LO = 1.90821492927058770002e-10;       // so k * LN2_HI / 64 is exact for |k| < 2^21
+    private static final double LN2_64_HI = LN2_HI / EXP_TABLE_SIZE;
+    private static final double LN2_64_LO = LN2_LO / EXP_TABLE_SIZE;
+    private static final double INV_LN2_64 = EXP_TABLE_SIZE / 6.93147180559945309417e-01;
+
+    // Inside these bounds exp(x) is a normal finite number
+    private static final double EXP_LOW = -708.0;
+    private static final double EXP_HIGH = 709.0;
+
+    /**
+     * e^x. Reduces x to r = x - (k/64)·ln(2), |r| &lt;= ln(2)/128, and computes 2^(k/64) · e^r as 2^(k div 64) · 2^((k mod 64)/64) · e^r,
+     * the middle factor coming from a 64-entry table and e^r - 1 from its Taylor series up to r^5 (truncation error below 2^-58).
+     */
+    public static double exp(double x) {
+        if (!(x > EXP_LOW && x < EXP_HIGH)) return Math.exp(x);
+
+        double k = Math.rint(x * INV_LN2_64);
+        double r = (x - k * LN2_64_HI) - k * LN2_64_LO;
+        int ik = (int) k;
+        double p = r * (1 + r * (1.0 / 2 + r * (1.0 / 6 + r * (1.0 / 24 + r * (1.0 / 120)))));
+        double t = EXP_TABLE[ik & (EXP_TABLE_SIZE - 1)];
+        return (t + t * p) * Double.longBitsToDouble((long) ((ik >> EXP_TABLE_BITS) + 1023) << 52);
+    }
+
+    // ============================= LOG =============================
+
+    private static final int LOG_TABLE_BITS = 7;
+    private static final int LOG_TABLE_SIZE = 1 << LOG_TABLE_BITS;
+    private static final double[] LOG_INV_C = new double[LOG_TABLE_SIZE + 1];  // 1/c for c = 1 + j/128
+    private static final double[] LOG_C_HI = new double[LOG_TABLE_SIZE + 1];   // ln(c), or ln(c/2) above sqrt(2), as a double-double
+    private static final double[] LOG_C_LO = new double[LOG_TABLE_SIZE + 1];
+    private static final int LOG_HALVED = 54;                                   // First j with c > sqrt(2)
+
+    private static final long MANTISSA = 0x000fffffffffffffL;
+
+    /**
+     * Natural logarithm. Splits x = 2^k · m, 1 &lt;= m &lt; 2, picks the nearest c = 1 + j/128 from a table, and computes
+     * k·ln(2) + ln(c) + ln(1 + u), u = (m - c)/c, |u| &lt;= 1/256, with the Taylor series of ln(1 + u) up to u^7 (truncation error below 2^-58 · u).
+     * Above sqrt(2), the table holds ln(c/2) and k gets incremented, so that x close to 1 never suffers from cancellation of k·ln(2).
+     */
+    public static double log(double x) {
+        if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) return Math.log(x);
+
+        long bits = Double.doubleToRawLongBits(x);
+        double m = Double.longBitsToDouble(bits & MANTISSA | 0x3ff0000000000000L);
+        int j = (int) ((bits & MANTISSA) + (1L << (51 - LOG_TABLE_BITS)) >>> (52 - LOG_TABLE_BITS));
+        double k = (int) (bits >>> 52) - 1023 + ((LOG_HALVED - 1 - j) >>> 31);
+
+        double f = m - (1 + j * (1.0 / LOG_TABLE_SIZE));                        // Exact
+        double u = f * LOG_INV_C[j];
+        double p = u * u * (-1.0 / 2 + u * (1.0 / 3 + u * (-1.0 / 4 + u * (1.0 / 5 + u * (-1.0 / 6 + u * (1.0 / 7))))));
+        double hi = k * LN2_HI + LOG_C_HI[j];                                   // Exact: both have enough trailing zero bits
+        return hi + (u + (p + (k * LN2_LO + LOG_C_LO[j])));
+    }
+
+    static {
+        for (int j = 0; j < EXP_TABLE_SIZE; j++) EXP_TABLE[j] = StrictMath.pow(2, (double) j / EXP_TABLE_SIZE);
+
+        for (int j = 0; j <= LOG_TABLE_SIZE; j++) {
+            double c = 1 + (double) j / LOG_TABLE_SIZE;
+            double ln = StrictMath.log(j < LOG_HALVED ? c : c / 2);
+            LOG_INV_C[j] = 1 / c;
+            LOG_C_HI[j] = Double.longBitsToDouble(Double.doubleToRawLongBits(ln) & 0xfffffffff0000000L);     // 24 low bits cut off
+            LOG_C_LO[j] = ln - LOG_C_HI[j];
+        }
+    }
+
+    // ============================= SIN, COS, TAN =============================
+
+    private static final double TWO_OVER_PI = 6.36619772367581382433e-01;
+    private static final double PIO2_1  = 1.57079632673412561417e+00;      // First 33 bits of pi/2
+    private static final double PIO2_1T = 6.07710050650619224932e-11;      // pi/2 - PIO2_1
+    private static final double PIO2_2  = 6.07710050630396597660e-11;      // Second 33 bits of pi/2
+    private static final double PIO2_2T = 2.02226624879595063154e-21;      // pi/2 - (PIO2_1 + PIO2_2)
+
+    // Reduction with the two-part pi/2 stays exact while the quadrant number fits in 20 bits
+    private static final double MAX_REDUCIBLE = 823_549.0;                  // About 2^19 · pi/2
+
+    // Minimax coefficients of fdlibm's __kernel_sin and __kernel_cos. Both are good to below 1 ULP on [-pi/4, pi/4].
+    private static final double S1 = -1.66666666666666324348e-01;
+    private static final double S2 =  8.33333333332248946124e-03;
+    private static final double S3 = -1.98412698298579493134e-04;
+    private static final double S4 =  2.75573137070700676789e-06;
+    private static final double S5 = -2.50507602534068634195e-08;
+    private static final double S6 =  1.58969099521155010221e-10;
+
+    private static final double C1 =  4.16666666666666019037e-02;
+    private static final double C2 = -1.38888888888741095749e-03;
+    private static final double C3 =  2.48015872894767294178e-05;
+    private static final double C4 = -2.75573143513906633035e-07;
+    private static final double C5 =  2.08757232129817482790e-09;
+    private static final double C6 = -1.13596475577881948265e-11;
+
+    /**
+     * Sine. Reduces x by a multiple of pi/2 to a double-double (hi, lo) in [-pi/4, pi/4], then applies fdlibm's sine or cosine kernel.
+     */
+    public static double sin(double x) {
+        if (!(Math.abs(x) <= MAX_REDUCIBLE)) return Math.sin(x);
+
+        double n = Math.rint(x * TWO_OVER_PI);
+        double t = x - n * PIO2_1;
+        double w = n * PIO2_2;
+        double r = t - w;
+        w = n * PIO2_2T - ((t - r) - w);
+        double hi = r - w;
+        double lo = (r - hi) - w;
+
+        int q = (int) n & 3;
+        double v = ((q & 1) == 0) ? kernelSin(hi, lo) : kernelCos(hi, lo);
+        return (q >= 2) ? -v : v;
+    }
+
+    /**
+     * Cosine. Same reduction as sin(), with the quadrant shifted by one.
+     */
+    public static double cos(double x) {
+        if (!(Math.abs(x) <= MAX_REDUCIBLE)) return Math.cos(x);
+
+        double n = Math.rint(x * TWO_OVER_PI);
+        double t = x - n * PIO2_1;
+        double w = n * PIO2_2;
+        double r = t - w;
+        w = n * PIO2_2T - ((t - r) - w);
+        double hi = r - w;
+        double lo = (r - hi) - w;
+
+        int q = (int) n & 3;
+        double v = ((q & 1) == 0) ? kernelCos(hi, lo) : kernelSin(hi, lo);
+        return (q == 1 || q == 2) ? -v : v;
+    }
+
+    /**
+     * Tangent, as a quotient of the sine and cosine kernels of the reduced argument.
+     */
+    public static double tan(double x) {
+        if (!(Math.abs(x) <= MAX_REDUCIBLE)) return Math.tan(x);
+
+        double n = Math.rint(x * TWO_OVER_PI);
+        double t = x - n * PIO2_1;
+        double w = n * PIO2_2;
+        double r = t - w;
+        w = n * PIO2_2T - ((t - r) - w);
+        double hi = r - w;
+        double lo = (r - hi) - w;
+
+        double s = kernelSin(hi, lo);
+        double c = kernelCos(hi, lo);
+        return (((int) n & 1) == 0) ? s / c : -c / s;
+    }
+
+    private static double kernelSin(double x, double y) {
+        double z = x * x;
+        double v = z * x;
+        double r = S2 + z * (S3 + z * (S4 + z * (S5 + z * S6)));
+        return x - ((z * (0.5 * y - v * r) - y) - v * S1);
+    }
+
+    private static double kernelCos(double x, double y) {
+        double z = x * x;
+        double r = z * (C1 + z * (C2 + z * (C3 + z * (C4 + z * (C5 + z * C6)))));
+        double hz = 0.5 * z;
+        double w = 1 - hz;
+        return w + (((1 - w) - hz) + (z * r - x * y));
+    }
+
+    // ============================= POW =============================
+
+    /**
+     * x^y as exp(y·ln(x)) for positive finite x and finite y. Everything else, including negative bases, goes to Math.pow().
+     */
+    public static double pow(double x, double y) {
+        if (!(x > 0 && x < Double.POSITIVE_INFINITY && Math.abs(y) < Double.POSITIVE_INFINITY)) return Math.pow(x, y);
+        return exp(y * log(x));
+    }
+}
@@ -0,0 +1,360 @@
+package arithmancy;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calculates a fixed set of formulas as their variables change, and publishes the results as a java.util.concurrent.Flow.Publisher.<br>
+ * Variable updates come from publishers passed to listenTo(), or from update() calls. An update only sets the value and marks
+ * the formulas that depend on the variable as changed. Formulas get calculated when a subscriber asks for results, so a burst
+ * of updates between two requests costs one calculation of each formula it touched, however long it was. A subscriber gets
+ * at most one Result per formula and request, with the latest value. Updates that don't change a value change nothing.
+ * Formulas whose variables aren't all set yet are left out until they are.<br>
+ * New subscribers start with the current values of all formulas. Each subscriber is served by one task at a time on the executor,
+ * the way SubmissionPublisher does it.<br>
+ * The evaluator owns its formulas: don't set their variables or calculate them elsewhere while it's open.
+ */
+public final class FlowEvaluator implements Flow.Publisher<FlowEvaluator.Result>, AutoCloseable {
+    private final Expression[] formulas;
+    private final VariableScope[] scopes;                   // null for formulas without variables
+    private final Map<String, Dependents> dependents = new HashMap<>();
+    private final Executor executor;
+
+    // Guarded by this
+    private final double[] latest;
+    private final BitSet stale = new BitSet();              // Formulas whose latest value is out of date
+    private boolean closed;
+    private Throwable closedWith;
+
+    private final List<Delivery> deliveries = new CopyOnWriteArrayList<>();
+    private final List<Flow.Subscription> sources = new CopyOnWriteArrayList<>();
+
+    /**
+     * Formulas that use a variable, and the slots of the variable in their scopes
+     */
+    private static final class Dependents {
+        int[] formulas = new int[2];
+        int[] slots = new int[2];
+        int count;
+
+        void add(int formula, int slot) {
+            if (count == formulas.length) {
+                formulas = Arrays.copyOf(formulas, count * 2);
+                slots = Arrays.copyOf(slots, count * 2);
+            }
+            formulas[count] = formula;
+            slots[count++] = slot;
+        }
+    }
+
+    /**
+     * New value of a variable
+     */
+    public static final class Update {
+        private final String name;
+        private final double value;
+
+        public Update(String name, double value) {
+            this.name = Objects.requireNonNull(name);
+            this.value = value;
+        }
+
+        public String name() { return name; }
+
+        public double value() { return value; }
+
+        @Override
+        public String toString() {
+            return name + " = " + value;
+        }
+    }
+
+    /**
+     * Latest value of a formula
+     */
+    public static final class Result {
+        private final int formula;
+        private final Expression expression;
+        private final double value;
+
+        Result(int formula, Expression expression, double value) {
+            this.formula = formula;
+            this.expression = expression;
+            this.value = value;
+        }
+
+        /**
+         * @return Index of the formula, in the order they were passed to the constructor
+         */
+        public int formula() { return formula; }
+
+        public Expression expression() { return expression; }
+
+        public double value() { return value; }
+
+        @Override
+        public String toString() {
+            return expression + " = " + value;
+        }
+    }
+
+    /**
+     * Serves subscribers on ForkJoinPool.commonPool()
+     * @param formulas Expressions returned by ExpressionParser.parse(), possibly compiled
+     */
+    public FlowEvaluator(Expression... formulas) {
+        this(ForkJoinPool.commonPool(), formulas);
+    }
+
+    /**
+     * @param executor Runs the deliveries to subscribers
+     * @param formulas Expressions returned by ExpressionParser.parse(), possibly compiled
+     */
+    public FlowEvaluator(Executor executor, Expression... formulas) {
+        this.executor = Objects.requireNonNull(executor);
+        this.formulas = formulas.clone();
+        scopes = new VariableScope[formulas.length];
+        latest = new double[formulas.length];
+        for (int f = 0; f < formulas.length; f++) {
+            scopes[f] = VariableScope.of(formulas[f]);
+            for (String name: formulas[f].dependsOnVariables()) {
+                Dependents d = dependents.get(name);
+                if (d == null) dependents.put(name, d = new Dependents());
+                d.add(f, scopes[f].slotOf(name));
+            }
+        }
+        stale.set(0, formulas.length);
+    }
+
+    /**
+     * Takes variable updates from the publisher, as fast as it gives them: updates are never queued, so there's no need to hold them back.
+     * An error of the publisher closes the evaluator with that error. Completion of the publisher doesn't close it.
+     */
+    public void listenTo(Flow.Publisher<? extends Update> publisher) {
+        publisher.subscribe(new Source());
+    }
+
+    /**
+     * Sets a variable of all formulas that use it. Variables that no formula uses are ignored.
+     */
+    public void update(String name, double value) {
+        Dependents d = dependents.get(name);
+        if (d == null) return;
+        boolean changed = false;
+        synchronized (this) {
+            if (closed) return;
+            for (int i = 0; i < d.count; i++) {
+                int f = d.formulas[i];
+                VariableScope scope = scopes[f];
+                if (scope.isSet(d.slots[i]) && Double.doubleToLongBits(scope.values[d.slots[i]]) == Double.doubleToLongBits(value)) continue;
+                scope.setValue(d.slots[i], value);
+                stale.set(f);
+                for (Delivery delivery: deliveries) delivery.pending.set(f);
+                changed = true;
+            }
+        }
+        if (changed) for (Delivery delivery: deliveries) if (delivery.demand.get() > 0) delivery.signal();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Result> subscriber) {
+        Delivery delivery = new Delivery(Objects.requireNonNull(subscriber));
+        synchronized (this) {
+            delivery.pending.set(0, formulas.length);
+            if (!closed) deliveries.add(delivery);
+        }
+        subscriber.onSubscribe(delivery);
+        delivery.signal();                                  // Completes it right away if closed
+    }
+
+    /**
+     * Stops taking updates. Subscribers get the changes they have asked for already, then onComplete().
+     */
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Stops taking updates and calls onError() of all subscribers, as soon as they're done with the current onNext().
+     */
+    public void closeExceptionally(Throwable error) {
+        close(Objects.requireNonNull(error));
+    }
+
+    private void close(Throwable error) {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            closedWith = error;
+        }
+        for (Flow.Subscription source: sources) source.cancel();
+        for (Delivery delivery: deliveries) delivery.signal();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return Number of current subscribers
+     */
+    public int subscriberCount() {
+        return deliveries.size();
+    }
+
+    /**
+     * @return Latest value of the formula, calculated now if it has changed, or null if its variables aren't all set
+     */
+    private Result resultOf(int f) {                        // Called holding the lock
+        if (scopes[f] != null && !scopes[f].allSet()) return null;
+        if (stale.get(f)) {
+            latest[f] = formulas[f].calculate();
+            stale.clear(f);
+        }
+        return new Result(f, formulas[f], latest[f]);
+    }
+
+    // ============================= SUBSCRIPTIONS =============================
+
+    /**
+     * One subscriber: its demand and the formulas that changed since it last got them
+     */
+    private final class Delivery implements Flow.Subscription, Runnable {
+        final Flow.Subscriber<? super Result> subscriber;
+        final AtomicLong demand = new AtomicLong();
+        final BitSet pending = new BitSet();                // Guarded by FlowEvaluator.this
+        final AtomicInteger work = new AtomicInteger();    // Number of signals not handled yet, runs while > 0
+        volatile boolean cancelled;
+        volatile Throwable failure;                         // Of request() or of a formula, ends the subscription
+        int next;                                           // Formula to look at first, so that all formulas get their turn
+
+        Delivery(Flow.Subscriber<? super Result> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                long d, sum;
+                do {
+                    d = demand.get();
+                    sum = d + n;
+                } while (!demand.compareAndSet(d, (sum < 0) ? Long.MAX_VALUE : sum));
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            deliveries.remove(this);
+        }
+
+        void signal() {
+            if (work.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (drain()) return;
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * @return true if the subscription has ended
+         */
+        private boolean drain() {
+            while (!cancelled) {
+                Result r;
+                boolean closing;
+                Throwable error;
+                synchronized (FlowEvaluator.this) {
+                    closing = closed;
+                    error = (failure != null) ? failure : closedWith;
+                    r = (error == null && demand.get() > 0) ? nextResult() : null;
+                }
+                if (error != null || failure != null) return fail((error != null) ? error : failure);
+                if (r == null) {
+                    if (!closing) return false;
+                    cancel();
+                    subscriber.onComplete();
+                    return true;
+                }
+                if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                try {
+                    subscriber.onNext(r);
+                } catch (RuntimeException e) {                 // Against the rules of Flow, but mustn't stop other deliveries
+                    return fail(e);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return Next pending result, or null if there's none
+         */
+        private Result nextResult() {                       // Called holding the lock
+            while (true) {
+                int f = pending.nextSetBit(next);
+                if (f < 0 && next > 0) f = pending.nextSetBit(0);
+                if (f < 0) return null;
+                pending.clear(f);
+                next = f + 1;
+                Result r;
+                try {
+                    r = resultOf(f);
+                } catch (RuntimeException e) {
+                    failure = e;
+                    return null;
+                }
+                if (r != null) return r;
+            }
+        }
+
+        private boolean fail(Throwable error) {
+            cancel();
+            subscriber.onError(error);
+            return true;
+        }
+    }
+
+    /**
+     * Subscriber to one publisher of updates
+     */
+    private final class Source implements Flow.Subscriber<Update> {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            boolean open;
+            synchronized (FlowEvaluator.this) {
+                open = !closed;
+                if (open) sources.add(subscription);
+            }
+            if (open) subscription.request(Long.MAX_VALUE);
+            else subscription.cancel();
+        }
+
+        @Override
+        public void onNext(Update item) {
+            update(item.name(), item.value());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            closeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {}
+    }
+}
@@ -0,0 +1,122 @@
+package arithmancy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of parsed formulas keyed on the structural hash of their canonical form (see Canonicalizer), so that equivalent formulas,
+ * such as "b+a" and "a + b", get the same AdaptiveExpression and so share one compiled form.<br>
+ * Formula strings seen before are answered without parsing. Both formula strings and canonical forms are evicted in least recently used order.
+ * Adding or removing operators (see ExpressionParser.addOperator()) empties the cache, since formulas may parse differently with them.
+ * Thread-safe.<br>
+ * Expressions from the cache are shared, and so are the values of their variables and the state of their series functions: set them with ExpressionParser.setVariable(Expression, ...)
+ * or calculateBatch(), and don't calculate the same expression from several threads at a time.
+ */
+public final class FormulaCache {
+    private final int capacity;
+    private final boolean reassociate;
+    private final LinkedHashMap<String, Entry> byFormula;
+    private final LinkedHashMap<Long, Entry> byHash;
+    private long operatorSetVersion;                            // Of the cached formulas
+    private long hits;
+    private long misses;
+
+    private static final class Entry {
+        final Expression canonical;
+        final long hash;
+        final AdaptiveExpression shared;
+
+        Entry(Expression canonical, long hash) {
+            this.canonical = canonical;
+            this.hash = hash;
+            shared = new AdaptiveExpression(canonical);
+        }
+    }
+
+    /**
+     * Creates a cache that makes exact transformations only.
+     * @param capacity Maximum number of canonical forms, and of formula strings, to keep
+     */
+    public FormulaCache(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity Maximum number of canonical forms, and of formula strings, to keep
+     * @param reassociate Regroup chains of associative operators, see Canonicalizer.canonicalize(Expression, boolean)
+     */
+    public FormulaCache(int capacity, boolean reassociate) {
+        if (capacity < 1) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        this.reassociate = reassociate;
+        operatorSetVersion = ExpressionParser.operatorSetVersion();
+        byFormula = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > FormulaCache.this.capacity;
+            }
+        };
+        byHash = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > FormulaCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return Shared expression for the formula, parsed and canonicalized unless an equivalent formula is cached
+     */
+    public synchronized Expression get(String formula) throws ParsingError {
+        long version = ExpressionParser.operatorSetVersion();
+        if (version != operatorSetVersion) {
+            clear();
+            operatorSetVersion = version;
+        }
+        Entry entry = byFormula.get(formula);                   // Even if a formula with the same hash has taken its place in byHash
+        if (entry != null) {
+            hits++;
+            byHash.get(entry.hash);                             // Recently used
+            return entry.shared;
+        }
+
+        Expression canonical = Canonicalizer.canonicalize(ExpressionParser.parse(formula), reassociate);
+        long hash = Canonicalizer.hash(canonical);
+        entry = byHash.get(hash);
+        if (entry != null && Canonicalizer.sameStructure(entry.canonical, canonical)) {
+            hits++;
+        } else {
+            misses++;                                       // Different formulas with the same hash are rare, so the newer one just takes the place
+            entry = new Entry(canonical, hash);
+            byHash.put(hash, entry);
+        }
+        byFormula.put(formula, entry);
+        return entry.shared;
+    }
+
+    /**
+     * @return Number of get() calls answered from the cache
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of get() calls that found no equivalent formula
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return Number of canonical forms cached
+     */
+    public synchronized int size() {
+        return byHash.size();
+    }
+
+    public synchronized void clear() {
+        byFormula.clear();
+        byHash.clear();
+    }
+}
@@ -0,0 +1,73 @@
+package arithmancy;
+
+import jdk.jfr.*;
+
+/**
+ * Base of Java Flight Recorder events about a formula. Field values are filled in only for events that are going to be committed.
+ */
+@Category("Arithmancy")
+@StackTrace(false)
+abstract class FormulaEvent extends Event {
+    @Label("Formula Length")
+    @Description("Length of the formula as passed to ExpressionParser.parse(), in characters")
+    int formulaLength;
+
+    @Label("Node Count")
+    @Description("Number of operators, variables and constants in the expression tree")
+    int nodeCount;
+
+    @Label("Variable Count")
+    int variableCount;
+
+    @Label("Operator Set Version")
+    @Description("Changes every time an operator is added to or removed from ExpressionParser")
+    long operatorSetVersion;
+
+    void describe(Expression root) {
+        VariableScope scope = VariableScope.of(root);
+        if (scope != null) {
+            formulaLength = scope.formulaLength;
+            variableCount = scope.size();
+            operatorSetVersion = scope.operatorSetVersion;
+        }
+        nodeCount = ExpressionTrees.sizeOf(root);
+    }
+}
+
+@Name("arithmancy.Parse")
+@Label("Formula Parse")
+@Description("ExpressionParser.parse()")
+@Threshold("1 ms")
+class ParseEvent extends FormulaEvent {
+}
+
+@Name("arithmancy.Compile")
+@Label("Formula Compilation")
+@Description("ExpressionCompiler.compile(), called directly or by AdaptiveExpression")
+@Threshold("0 ms")
+class CompileEvent extends FormulaEvent {
+}
+
+@Name("arithmancy.BatchEvaluation")
+@Label("Batch Evaluation")
+@Description("ExpressionParser.calculateBatch()")
+@Threshold("10 ms")
+class BatchEvaluationEvent extends FormulaEvent {
+    // Checked before the event is created, so that batches don't allocate while recording is off
+    static final EventType TYPE = EventType.getEventType(BatchEvaluationEvent.class);
+
+    @Label("Rows")
+    int rows;
+}
+
+/**
+ * Tells whether Flight Recorder has been started in this JVM. Asking doesn't load it, while loading an event class does,
+ * so events are made only after it has started.
+ */
+final class FlightRecording {
+    private FlightRecording() {}
+
+    static boolean started() {
+        return FlightRecorder.isInitialized();
+    }
+}
@@ -0,0 +1,139 @@
+package arithmancy;
+
+import javax.management.ConstructorParameters;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, after the fashion of HdrHistogram:
+ * each power of 2 is split into 2^SUB_BUCKET_BITS equal buckets, so every recorded value is known to within 1/32 of itself.<br>
+ * Recording is lock-free and allocates nothing. Snapshots are taken without stopping writers, so a snapshot taken under load
+ * may be off by the few values recorded while it was being taken.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(new Max(), 0);
+
+    private static final class Max implements LongBinaryOperator {             // Not a lambda: histograms get made at startup
+        @Override
+        public long applyAsLong(long a, long b) {
+            return Math.max(a, b);
+        }
+    }
+
+    LatencyHistogram() {}
+
+    /**
+     * Records a latency. Negative values count as 0.
+     * @param nanos Latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long v = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(v));
+        total.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * Records the time elapsed since start.
+     * @param start Value of System.nanoTime() at the start of the measured interval
+     * @return Current System.nanoTime(), to be used as the start of the next interval
+     */
+    long recordSince(long start) {
+        long now = System.nanoTime();
+        record(now - start);
+        return now;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.reset();
+        max.reset();
+    }
+
+    public Snapshot snapshot() {
+        long[] c = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += c[i] = counts.get(i);
+        return new Snapshot(n, (n == 0) ? 0 : (double) total.sum() / n,
+                percentile(c, n, 0.5), percentile(c, n, 0.9), percentile(c, n, 0.99), percentile(c, n, 0.999), max.get());
+    }
+
+    static int bucketOf(long v) {
+        if (v < SUB_BUCKETS) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);                  // >= SUB_BUCKET_BITS
+        int sub = (int) (v >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return Largest value that falls into the bucket
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BUCKET_BITS);
+        return low + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static long percentile(long[] counts, long n, double q) {
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return highestValueOf(i);
+        }
+        return highestValueOf(counts.length - 1);
+    }
+
+    /**
+     * Summary of a histogram at some moment. Percentiles are upper bounds of their buckets. All values are in nanoseconds.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorParameters({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+        public Snapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+
+        public double getMean() { return mean; }
+
+        public long getP50() { return p50; }
+
+        public long getP90() { return p90; }
+
+        public long getP99() { return p99; }
+
+        public long getP999() { return p999; }
+
+        public long getMax() { return max; }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.0f p50=%d p90=%d p99=%d p99.9=%d max=%d", count, mean, p50, p90, p99, p999, max);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package arithmancy;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Splits a formula into tokens straight from its source, in one pass and without copying the source. Gives the same tokens
+ * as ExpressionParser.preprocessExpression() followed by splitting on spaces, parentheses and commas:
+ * letters are lowercased one by one while scanning, non-word operators and non-ASCII named constants are tokens wherever they are,
+ * numbers (digits with an optional decimal point) are tokens wherever they are, and whitespace separates tokens.<br>
+ * Numbers come out as Constants. Names come out as Strings: known operators and named constants as the Strings they were registered with,
+ * and other names (variables) as one new String per distinct name. Characters of the current token are collected
+ * in a small reusable buffer, since a UTF-8 source can't be looked at in place.
+ */
+final class Lexer {
+    static final int END = 0;
+    static final int ATOM = 1;                              // A name or a number, see atom()
+    static final int OPEN = 2;
+    static final int CLOSE = 3;
+    static final int COMMA = 4;
+
+    private final Lexicon lexicon;
+    private final FormulaSource src;
+    private final NameTable newNames = new NameTable();
+    private final long origin;                              // Mark of the start of the source
+    private char[] buf = new char[32];
+    private int len;
+    private int c;                                          // Current char, lowercased, or -1 at the end
+    private int read;                                       // Chars read from the source, including c
+    private int start, pendingStart;                        // Offsets of the last token and of pendingSpecial
+    private String pendingSpecial;                          // Special token found right after a name, to be returned next
+    private Object atom;
+
+    Lexer(Lexicon lexicon, FormulaSource src) throws ParsingError {
+        this.lexicon = lexicon;
+        this.src = src;
+        origin = src.mark();
+        advance();
+    }
+
+    /**
+     * @return String or Constant of the last ATOM
+     */
+    Object atom() {
+        return atom;
+    }
+
+    /**
+     * @return Offset in chars of the last token from the start of the source
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * Goes on from the given offset, skipping what's in between. Only for sources whose marks are char offsets, i.e. not UTF-8 ones.
+     */
+    void jump(int offset) throws ParsingError {
+        src.reset(origin + offset);
+        read = offset;
+        pendingSpecial = null;
+        advance();
+    }
+
+    int next() throws ParsingError {
+        if (pendingSpecial != null) {
+            atom = pendingSpecial;
+            start = pendingStart;
+            pendingSpecial = null;
+            return ATOM;
+        }
+        while (isWhitespace(c)) advance();
+        start = (c < 0) ? read : read - 1;
+        switch (c) {
+            case -1:
+                return END;
+            case '(':
+                advance();
+                return OPEN;
+            case ')':
+                advance();
+                return CLOSE;
+            case ',':
+                advance();
+                return COMMA;
+        }
+
+        String special = matchSpecial();
+        if (special != null) {
+            atom = special;
+            return ATOM;
+        }
+        if (isDigit(c)) {
+            atom = number();
+            return ATOM;
+        }
+
+        len = 0;
+        int hash = 0;
+        while (c >= 0 && !isWhitespace(c) && c != '(' && c != ')' && c != ',' && !isDigit(c)) {
+            if ((pendingSpecial = matchSpecial()) != null) {
+                pendingStart = start + len;
+                break;
+            }
+            append((char) c);
+            hash = 31 * hash + c;
+            advance();
+        }
+        atom = name(hash);
+        return ATOM;
+    }
+
+    private void advance() throws ParsingError {
+        int r = src.read();
+        if (r >= 0) read++;
+        c = (r < 0) ? -1 : Character.toLowerCase((char) r);
+    }
+
+    private void append(char ch) {
+        if (len == buf.length) buf = Arrays.copyOf(buf, len * 2);
+        buf[len++] = ch;
+    }
+
+    /**
+     * Takes the longest special token (non-word operator or non-ASCII named constant) that starts at the current char, if any
+     */
+    private String matchSpecial() throws ParsingError {
+        if (c < 0 || !lexicon.mayStartSpecial((char) c)) return null;
+        for (String s: lexicon.specials) {
+            if (s.charAt(0) != c) continue;
+            long mark = src.mark();
+            int i = 1;
+            for (; i < s.length(); i++) {
+                int r = src.read();
+                if (r < 0 || Character.toLowerCase((char) r) != s.charAt(i)) break;
+            }
+            if (i == s.length()) {
+                read += i - 1;
+                advance();
+                return s;
+            }
+            src.reset(mark);
+        }
+        return null;
+    }
+
+    /**
+     * Reads digits with an optional decimal point. Values with up to 15 significant digits are calculated exactly right here,
+     * other ones are left to Double.parseDouble().
+     */
+    private Constant number() throws ParsingError {
+        len = 0;
+        long mantissa = 0;
+        int digits = 0, fractionDigits = 0;
+        boolean point = false;
+        while (true) {
+            if (isDigit(c)) {
+                if (mantissa != 0 || c != '0') digits++;
+                mantissa = (digits <= 18) ? mantissa * 10 + (c - '0') : mantissa;
+                if (point) fractionDigits++;
+            } else if (c == '.' && !point && !lexicon.mayStartSpecial('.')) {
+                point = true;
+            } else {
+                break;
+            }
+            append((char) c);
+            advance();
+        }
+        if (digits <= 15 && fractionDigits < POWERS_OF_10.length) return new Constant(mantissa / POWERS_OF_10[fractionDigits]);
+        return new Constant(Double.parseDouble(new String(buf, 0, len)));
+    }
+
+    // Exact in double, so that mantissa / 10^k is correctly rounded as long as the mantissa is exact too
+    private static final double[] POWERS_OF_10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private String name(int hash) {
+        String known = lexicon.names.find(buf, len, hash);
+        if (known != null) return known;
+        known = newNames.find(buf, len, hash);
+        if (known != null) return known;
+        String name = new String(buf, 0, len);
+        newNames.add(name);
+        return name;
+    }
+
+    static boolean isWhitespace(int c) {                    // Same as \s of regular expressions
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(char c) {             // Same as \w of regular expressions
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || isDigit(c) || c == '_';
+    }
+
+    // ============================= CHECKS BEFORE PARSING =============================
+
+    /**
+     * Checks that every char, lowercased, is valid: a letter a-z, a digit, whitespace, '.', ',', '(', ')' or a char of a known operator.
+     * @return Length of the formula in chars
+     */
+    static int validate(Lexicon lexicon, FormulaSource src) throws ParsingError {
+        int length = 0;
+        for (int r = src.read(); r >= 0; r = src.read(), length++) {
+            if (!lexicon.isValid(Character.toLowerCase((char) r))) throw new ParsingError("Invalid character detected");
+        }
+        return length;
+    }
+
+    /**
+     * @return true if all '('s have matching ')'s
+     */
+    static boolean parenthesesMatch(FormulaSource src) throws ParsingError {
+        int depth = 0;
+        for (int r = src.read(); r >= 0; r = src.read()) {
+            if (r == '(') depth++;
+            if (r == ')' && --depth < 0) return false;
+        }
+        return depth == 0;
+    }
+
+    // ============================= TABLES =============================
+
+    /**
+     * What the lexer needs to know about known operators and named constants. Built once per change of either.
+     */
+    static final class Lexicon {
+        private final boolean[] validAscii = new boolean[128];
+        private final char[] validOther;                    // Sorted
+        final String[] specials;                            // Longest first
+        private final char[] specialStarts;                 // Sorted
+        final NameTable names = new NameTable();
+
+        private static final Comparator<String> LONGEST_FIRST = new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Integer.compare(b.length(), a.length());
+            }
+        };
+
+        Lexicon(Collection<String> operatorTokens, Collection<String> constantNames) {
+            for (char ch = 'a'; ch <= 'z'; ch++) validAscii[ch] = true;
+            for (char ch = '0'; ch <= '9'; ch++) validAscii[ch] = true;
+            for (char ch: " \t\n\u000B\f\r.,()".toCharArray()) validAscii[ch] = true;
+
+            StringBuilder other = new StringBuilder();
+            List<String> special = new ArrayList<>();
+            for (String token: operatorTokens) {
+                for (char ch: token.toCharArray()) {
+                    if (ch < 128) validAscii[ch] = true;
+                    else other.append(ch);
+                }
+                if (noWordChars(token)) special.add(token);
+                names.add(token);
+            }
+            for (String name: constantNames) {
+                if (allNonAscii(name)) special.add(name);
+                names.add(name);
+            }
+            validOther = sortedUnique(other.toString());
+            special.sort(LONGEST_FIRST);
+            specials = special.toArray(new String[0]);
+            StringBuilder starts = new StringBuilder();
+            for (String s: specials) starts.append(s.charAt(0));
+            specialStarts = sortedUnique(starts.toString());
+        }
+
+        private static boolean noWordChars(String s) {
+            for (int i = 0; i < s.length(); i++) if (isWordChar(s.charAt(i))) return false;
+            return !s.isEmpty();
+        }
+
+        private static boolean allNonAscii(String s) {
+            for (int i = 0; i < s.length(); i++) if (s.charAt(i) <= 0x7F) return false;
+            return !s.isEmpty();
+        }
+
+        private static char[] sortedUnique(String chars) {
+            char[] a = chars.toCharArray();
+            Arrays.sort(a);
+            int n = 0;
+            for (int i = 0; i < a.length; i++) if (n == 0 || a[n - 1] != a[i]) a[n++] = a[i];
+            return Arrays.copyOf(a, n);
+        }
+
+        boolean isValid(char c) {
+            return (c < 128) ? validAscii[c] : Arrays.binarySearch(validOther, c) >= 0;
+        }
+
+        boolean mayStartSpecial(char c) {
+            return specialStarts.length > 0 && Arrays.binarySearch(specialStarts, c) >= 0;
+        }
+    }
+
+    /**
+     * Set of Strings that can be looked up by chars, without making a String of them. Open addressing, hashes as of String.hashCode().
+     */
+    static final class NameTable {
+        private String[] slots = new String[16];
+        private int count;
+
+        String find(char[] chars, int len, int hash) {
+            for (int i = spread(hash) & (slots.length - 1); slots[i] != null; i = (i + 1) & (slots.length - 1)) {
+                String s = slots[i];
+                if (s.hashCode() == hash && s.length() == len && sameChars(s, chars, len)) return s;
+            }
+            return null;
+        }
+
+        void add(String s) {
+            if (find(s.toCharArray(), s.length(), s.hashCode()) != null) return;
+            if (2 * (count + 1) > slots.length) {
+                String[] old = slots;
+                slots = new String[old.length * 2];
+                for (String o: old) if (o != null) insert(o);
+            }
+            insert(s);
+            count++;
+        }
+
+        private void insert(String s) {
+            int i = spread(s.hashCode()) & (slots.length - 1);
+            while (slots[i] != null) i = (i + 1) & (slots.length - 1);
+            slots[i] = s;
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean sameChars(String s, char[] chars, int len) {
+            for (int i = 0; i < len; i++) if (s.charAt(i) != chars[i]) return false;
+            return true;
+        }
+    }
+}
+
+/**
+ * Formula text as the lexer reads it: one char at a time, with the possibility to go back to a marked position or to the start.
+ */
+abstract class FormulaSource {
+    /**
+     * @return Next char, or -1 at the end
+     */
+    abstract int read() throws ParsingError;
+
+    abstract long mark();
+
+    abstract void reset(long mark);
+
+    /**
+     * Goes back to the start
+     */
+    abstract void rewind();
+
+    static FormulaSource of(CharSequence s) {
+        return new CharSequenceSource(s, 0, s.length());
+    }
+
+    static FormulaSource of(CharSequence s, int start, int end) {
+        Objects.checkFromToIndex(start, end, s.length());
+        return new CharSequenceSource(s, start, end);
+    }
+
+    static FormulaSource of(char[] chars, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, chars.length);
+        return new CharArraySource(chars, offset, offset + length);
+    }
+
+    static FormulaSource ofUtf8(ByteBuffer bytes, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, bytes.limit());
+        return new Utf8Source(bytes, offset, offset + length);
+    }
+}
+
+final class CharSequenceSource extends FormulaSource {
+    private final CharSequence s;
+    private final int start, end;
+    private int pos;
+
+    CharSequenceSource(CharSequence s, int start, int end) {
+        this.s = s;
+        this.start = start;
+        this.end = end;
+        pos = start;
+    }
+
+    @Override int read() { return (pos < end) ? s.charAt(pos++) : -1; }
+    @Override long mark() { return pos; }
+    @Override void reset(long mark) { pos = (int) mark; }
+    @Override void rewind() { pos = start; }
+}
+
+final class CharArraySource extends FormulaSource {
+    private final char[] chars;
+    private final int start, end;
+    private int pos;
+
+    CharArraySource(char[] chars, int start, int end) {
+        this.chars = chars;
+        this.start = start;
+        this.end = end;
+        pos = start;
+    }
+
+    @Override int read() { return (pos < end) ? chars[pos++] : -1; }
+    @Override long mark() { return pos; }
+    @Override void reset(long mark) { pos = (int) mark; }
+    @Override void rewind() { pos = start; }
+}
+
+/**
+ * Decodes UTF-8 on the fly, with absolute gets, so the position of the buffer stays as it is.
+ * Characters outside the Basic Multilingual Plane come out as surrogate pairs, the way a String would hold them.
+ */
+final class Utf8Source extends FormulaSource {
+    private final ByteBuffer bytes;
+    private final int start, end;
+    private int pos;
+    private char pendingLowSurrogate;                       // 0 if none
+
+    Utf8Source(ByteBuffer bytes, int start, int end) {
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+        pos = start;
+    }
+
+    @Override
+    int read() throws ParsingError {
+        if (pendingLowSurrogate != 0) {
+            char low = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+            return low;
+        }
+        if (pos >= end) return -1;
+        int b = bytes.get(pos++);
+        if (b >= 0) return b;                               // ASCII
+
+        int extra, cp;
+        if ((b & 0xE0) == 0xC0) { extra = 1; cp = b & 0x1F; }
+        else if ((b & 0xF0) == 0xE0) { extra = 2; cp = b & 0x0F; }
+        else if ((b & 0xF8) == 0xF0) { extra = 3; cp = b & 0x07; }
+        else throw new ParsingError("Invalid UTF-8 at byte " + (pos - 1 - start));
+        if (pos + extra > end) throw new ParsingError("Truncated UTF-8 at byte " + (pos - 1 - start));
+        for (int i = 0; i < extra; i++) {
+            int cont = bytes.get(pos++);
+            if ((cont & 0xC0) != 0x80) throw new ParsingError("Invalid UTF-8 at byte " + (pos - 1 - start));
+            cp = (cp << 6) | (cont & 0x3F);
+        }
+        if (cp < MIN_CODE_POINT[extra] || cp > Character.MAX_CODE_POINT || Character.isSurrogate((char) cp) && cp <= 0xFFFF)
+            throw new ParsingError("Invalid UTF-8 at byte " + (pos - 1 - extra - start));
+        if (cp <= 0xFFFF) return cp;
+        pendingLowSurrogate = Character.lowSurrogate(cp);
+        return Character.highSurrogate(cp);
+    }
+
+    private static final int[] MIN_CODE_POINT = {0, 0x80, 0x800, 0x10000};           // Shorter encodings are overlong
+
+    @Override long mark() { return (long) pos << 16 | pendingLowSurrogate; }
+    @Override void reset(long mark) { pos = (int) (mark >>> 16); pendingLowSurrogate = (char) mark; }
+    @Override void rewind() { pos = start; pendingLowSurrogate = 0; }
+}
@@ -0,0 +1,221 @@
+package arithmancy;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Bounded cache of results of a pure operator, keyed on the exact bits of its arguments.<br>
+ * The table is a flat long[] split into buckets of WAYS slots. A key is looked for only within its own bucket (open addressing with a bounded probe),
+ * and when the bucket is full, one of its slots gets overwritten. Lookups and inserts allocate nothing.<br>
+ * Buckets are guarded by striped StampedLocks: readers go optimistic, writers that meet contention skip caching instead of waiting.
+ * Thus the cache is safe under concurrent evaluation.<br>
+ * Create it with Operator.memoize(). Calls with more arguments than MAX_KEY_WIDTH bypass the cache.
+ */
+public final class MemoCache {
+    /** Maximum number of arguments that make a cache key */
+    public static final int MAX_KEY_WIDTH = 4;
+    /** Maximum capacity, so that the table of the widest keys still fits in an array */
+    public static final int MAX_CAPACITY = 1 << 28;
+
+    private static final int WAYS = 8;                  // Slots per bucket, power of 2
+    private static final int MAX_STRIPES = 64;
+
+    private final int width;                            // Number of key words per slot
+    private final int stride;                           // Slot layout: [argument count, key bits * width, result bits]
+    private final int bucketMask;
+    private final long[] table;                         // Argument count 0 marks an empty slot
+    private final StampedLock[] locks;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    MemoCache(int keyWidth, int capacity) {
+        if (keyWidth < 1 || keyWidth > MAX_KEY_WIDTH) throw new IllegalArgumentException("Invalid key width: " + keyWidth);
+        if (capacity < 1 || capacity > MAX_CAPACITY) throw new IllegalArgumentException("Invalid cache capacity: " + capacity);
+
+        int slots = Math.max(WAYS, Integer.highestOneBit(capacity - 1) << 1);
+        width = keyWidth;
+        stride = keyWidth + 2;
+        bucketMask = slots / WAYS - 1;
+        table = new long[slots * stride];
+        locks = new StampedLock[Math.min(MAX_STRIPES, slots / WAYS)];
+        for (int i = 0; i < locks.length; i++) locks[i] = new StampedLock();
+    }
+
+    /**
+     * @return Number of slots. It's the requested capacity rounded up to a power of 2.
+     */
+    public int capacity() {
+        return table.length / stride;
+    }
+
+    /**
+     * @return Number of calls that were served from the cache
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of calls that had to apply the operator
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Share of hits among all cached calls, or 0 if there were none
+     */
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    /**
+     * Removes all entries and resets hit/miss counters.
+     */
+    public void clear() {
+        for (int stripe = 0; stripe < locks.length; stripe++) {
+            long stamp = locks[stripe].writeLock();
+            try {
+                for (int b = stripe; b <= bucketMask; b += locks.length)
+                    Arrays.fill(table, b * WAYS * stride, (b + 1) * WAYS * stride, 0L);
+            } finally {
+                locks[stripe].unlockWrite(stamp);
+            }
+        }
+        hits.reset();
+        misses.reset();
+    }
+
+    double unary(double x, DoubleUnaryOperator effect) {
+        long k0 = Double.doubleToRawLongBits(x);
+        long hash = mix(k0 + 1);
+        long slot = find(hash, 1, k0, 0, null);
+        if (slot != NOT_FOUND) return Double.longBitsToDouble(slot);
+
+        double r = effect.applyAsDouble(x);
+        store(hash, 1, k0, 0, null, r);
+        return r;
+    }
+
+    double binary(double x, double y, DoubleBinaryOperator effect) {
+        long k0 = Double.doubleToRawLongBits(x);
+        long k1 = Double.doubleToRawLongBits(y);
+        long hash = mix(mix(k0 + 2) ^ k1);
+        long slot = find(hash, 2, k0, k1, null);
+        if (slot != NOT_FOUND) return Double.longBitsToDouble(slot);
+
+        double r = effect.applyAsDouble(x, y);
+        store(hash, 2, k0, k1, null, r);
+        return r;
+    }
+
+    double nary(double[] args, Operator.NaryEffect effect) {
+        int n = args.length;
+        if (n > width) return effect.apply(args);
+
+        long hash = n;
+        for (double a: args) hash = mix(hash ^ Double.doubleToRawLongBits(a));
+        long slot = find(hash, n, 0, 0, args);
+        if (slot != NOT_FOUND) return Double.longBitsToDouble(slot);
+
+        double r = effect.apply(args);
+        store(hash, n, 0, 0, args, r);
+        return r;
+    }
+
+    // ============================= TABLE ACCESS =============================
+
+    // A NaN payload no arithmetic produces. Results with exactly these bits are never stored.
+    private static final long NOT_FOUND = 0x7ff8dead0000beefL;
+
+    /**
+     * Returns bits of the cached result, or NOT_FOUND. Keys are (k0, k1) for up to two arguments, or args otherwise.
+     */
+    private long find(long hash, int n, long k0, long k1, double[] args) {
+        int bucket = (int) hash & bucketMask;
+        StampedLock lock = locks[bucket % locks.length];
+
+        long stamp = lock.tryOptimisticRead();
+        int base = probe(bucket, n, k0, k1, args);
+        long bits = (base < 0) ? 0 : table[base + width + 1];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                base = probe(bucket, n, k0, k1, args);
+                bits = (base < 0) ? 0 : table[base + width + 1];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        if (base < 0) {
+            misses.increment();
+            return NOT_FOUND;
+        }
+        hits.increment();
+        return bits;
+    }
+
+    private void store(long hash, int n, long k0, long k1, double[] args, double result) {
+        long bits = Double.doubleToRawLongBits(result);
+        if (bits == NOT_FOUND) return;
+
+        int bucket = (int) hash & bucketMask;
+        StampedLock lock = locks[bucket % locks.length];
+        long stamp = lock.tryWriteLock();
+        if (stamp == 0) return;                     // Somebody else is writing: skip caching rather than wait
+        try {
+            int base = probe(bucket, n, k0, k1, args);
+            if (base < 0) base = vacantSlot(bucket, hash);
+            table[base] = n;
+            for (int i = 0; i < n; i++) table[base + 1 + i] = key(i, k0, k1, args);
+            table[base + width + 1] = bits;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns start of the slot holding the key, or -1.
+     */
+    private int probe(int bucket, int n, long k0, long k1, double[] args) {
+        int base = bucket * WAYS * stride;
+        for (int way = 0; way < WAYS; way++, base += stride) {
+            if (table[base] != n) continue;
+            boolean match = true;
+            for (int i = 0; match && i < n; i++) match = table[base + 1 + i] == key(i, k0, k1, args);
+            if (match) return base;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns start of an empty slot in the bucket. If there is none, picks a victim using the spare bits of the hash.
+     */
+    private int vacantSlot(int bucket, long hash) {
+        int base = bucket * WAYS * stride;
+        for (int way = 0; way < WAYS; way++)
+            if (table[base + way * stride] == 0) return base + way * stride;
+        return base + (int) (hash >>> 58 & (WAYS - 1)) * stride;
+    }
+
+    private static long key(int i, long k0, long k1, double[] args) {
+        if (args != null) return Double.doubleToRawLongBits(args[i]);
+        return (i == 0) ? k0 : k1;
+    }
+
+    private static long mix(long h) {                   // Finalizer of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,133 @@
+package arithmancy;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Optional instrumentation: latency of parsing phases and of evaluation, invocation counts of operators and hit rates of their caches.<br>
+ * Off by default. Turn it on with setEnabled(true) or with the system property arithmancy.metrics=true.
+ * When off, the only cost is a check of a volatile static flag per operator invocation, which is a plain load on x86.<br>
+ * Turning it on registers a MetricsMXBean with the platform MBean server, so the numbers can also be read over JMX.
+ */
+public final class Metrics {
+    static volatile boolean enabled;                                // Volatile, so that loops the JIT has inlined calculate() into see changes
+
+    static final LatencyHistogram PREPROCESSING = new LatencyHistogram();
+    static final LatencyHistogram VALIDATION = new LatencyHistogram();
+    static final LatencyHistogram PARENTHESES = new LatencyHistogram();
+    static final LatencyHistogram TREE_BUILDING = new LatencyHistogram();
+    static final LatencyHistogram EVALUATION = new LatencyHistogram();
+
+    private static final String OBJECT_NAME = "arithmancy:type=Metrics";
+    private static boolean registered;
+
+    private Metrics() {}
+
+    static {
+        if (Boolean.getBoolean("arithmancy.metrics")) setEnabled(true);
+    }
+
+    /**
+     * Turns metrics on or off. Threads that are calculating at the moment notice it from their next operator invocation.
+     */
+    public static synchronized void setEnabled(boolean on) {
+        enabled = on;
+        if (on && !registered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+            }
+            registered = true;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Clears all histograms and invocation counters of known operators.
+     */
+    public static void reset() {
+        PREPROCESSING.reset();
+        VALIDATION.reset();
+        PARENTHESES.reset();
+        TREE_BUILDING.reset();
+        EVALUATION.reset();
+        ExpressionParser.knownOps().keySet().forEach(op -> op.invocations.reset());
+    }
+
+    public static LatencyHistogram.Snapshot preprocessing() { return PREPROCESSING.snapshot(); }
+
+    public static LatencyHistogram.Snapshot validation() { return VALIDATION.snapshot(); }
+
+    public static LatencyHistogram.Snapshot parentheses() { return PARENTHESES.snapshot(); }
+
+    public static LatencyHistogram.Snapshot treeBuilding() { return TREE_BUILDING.snapshot(); }
+
+    public static LatencyHistogram.Snapshot evaluation() { return EVALUATION.snapshot(); }
+
+    /**
+     * @return Invocation counts of known operators, keyed by kind and token, i.e. "binary -" and "unary -"
+     */
+    public static Map<String, Long> operatorInvocations() {
+        Map<String, Long> r = new TreeMap<>();
+        ExpressionParser.knownOps().forEach((op, token) -> r.put(keyOf(op, token), op.invocations()));
+        return r;
+    }
+
+    /**
+     * @return Hit rates of caches of memoized known operators, keyed like operatorInvocations()
+     */
+    public static Map<String, Double> cacheHitRates() {
+        Map<String, Double> r = new TreeMap<>();
+        ExpressionParser.knownOps().forEach((op, token) -> {
+            if (op.memoCache() != null) r.put(keyOf(op, token), op.memoCache().hitRate());
+        });
+        return r;
+    }
+
+    private static String keyOf(Operator op, String token) {
+        return op.kind.name().toLowerCase() + ' ' + token;
+    }
+
+    /**
+     * Calculation of an operator while metrics are on. Roots of parsed expressions get timed.
+     */
+    static double calculate(OperatorInstance op) {
+        op.invocations.increment();
+        if (op.scope == null) return op.evaluate();
+        long start = System.nanoTime();
+        try {
+            return op.evaluate();
+        } finally {
+            EVALUATION.recordSince(start);
+        }
+    }
+
+    private static final class Bean implements MetricsMXBean {
+        @Override public boolean isEnabled() { return Metrics.isEnabled(); }
+
+        @Override public void setEnabled(boolean enabled) { Metrics.setEnabled(enabled); }
+
+        @Override public LatencyHistogram.Snapshot getPreprocessing() { return preprocessing(); }
+
+        @Override public LatencyHistogram.Snapshot getValidation() { return validation(); }
+
+        @Override public LatencyHistogram.Snapshot getParentheses() { return parentheses(); }
+
+        @Override public LatencyHistogram.Snapshot getTreeBuilding() { return treeBuilding(); }
+
+        @Override public LatencyHistogram.Snapshot getEvaluation() { return evaluation(); }
+
+        @Override public Map<String, Long> getOperatorInvocations() { return operatorInvocations(); }
+
+        @Override public Map<String, Double> getCacheHitRates() { return cacheHitRates(); }
+
+        @Override public void reset() { Metrics.reset(); }
+    }
+}
@@ -0,0 +1,35 @@
+package arithmancy;
+
+import java.util.Map;
+
+/**
+ * JMX view of Metrics, registered as "arithmancy:type=Metrics". All latencies are in nanoseconds.
+ */
+public interface MetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /** Parsing, phase 1: preparation of the lexer for the known operators and named constants, if they changed */
+    LatencyHistogram.Snapshot getPreprocessing();
+
+    /** Parsing, phase 2: check of characters against the known operators */
+    LatencyHistogram.Snapshot getValidation();
+
+    /** Parsing, phase 3: check of parentheses */
+    LatencyHistogram.Snapshot getParentheses();
+
+    /** Parsing, phase 4: splitting into tokens and building of the tree, in one pass */
+    LatencyHistogram.Snapshot getTreeBuilding();
+
+    /** calculate() of expressions returned by ExpressionParser.parse() */
+    LatencyHistogram.Snapshot getEvaluation();
+
+    /** Invocations of each known operator, keyed by kind and token, i.e. "binary -" */
+    Map<String, Long> getOperatorInvocations();
+
+    /** Hit rates of memoized known operators, keyed like getOperatorInvocations() */
+    Map<String, Double> getCacheHitRates();
+
+    void reset();
+}
@@ -1,6 +1,6 @@
 package arithmancy;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
 
 class Constant implements Expression {
@@ -26,7 +26,12 @@ class Constant implements Expression {
 
     @Override
     public Set<String> dependsOnVariables() {
-        return new HashSet<>();
+        return Collections.emptySet();
+    }
+
+    @Override
+    public boolean allVariablesSet() {
+        return true;
     }
 
     @Override
@@ -1,94 +1,199 @@
 package arithmancy;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
 
 import static arithmancy.Operator.Kind;
-import static arithmancy.Operator.Kind.BINARY;
-import static arithmancy.Operator.Kind.UNARY;
+import static arithmancy.Operator.Kind.*;
 import static arithmancy.Operator.Precedence;
 import static java.util.Collections.unmodifiableSortedSet;
 
 /**
  * Operator as used in calculable expressions, such as Expression tree.
  */
-class OperatorInstance implements Expression {
+class OperatorInstance implements Expression, Operator.Arguments {
 
     final Precedence prec;
     final Kind kind;
     final String token;
+    final int minArgs;
+    final int maxArgs;
 
-    private final java.util.function.BiFunction<Double, Double, Double> calculateBi;
-    private final java.util.function.Function<Double, Double> calculateU;
+    final DoubleBinaryOperator calculateBi;
+    final DoubleUnaryOperator calculateU;
+    final Operator.NaryEffect calculateN;
+    final Operator.LazyEffect calculateL;
+    final MemoCache cache;                                          // null unless the prototype is memoized
+    final boolean pure;
+    final boolean commutative;
+    final boolean associative;
+    final LongAdder invocations;                                    // Shared with the prototype
 
     OperatorInstance(Operator proto) {
         this.kind = proto.kind;
         this.prec = proto.prec;
         this.token = proto.token;
+        this.minArgs = proto.minArgs;
+        this.maxArgs = proto.maxArgs;
         calculateBi = proto.calculateBi;
         calculateU = proto.calculateU;
+        calculateN = proto.calculateN;
+        calculateL = (proto.newState != null) ? proto.newState.create() : proto.calculateL;         // Own state for every use
+        cache = proto.cache;
+        pure = proto.isPure();
+        commutative = proto.isCommutative();
+        associative = proto.isAssociative();
+        invocations = proto.invocations;
+    }
+
+    /**
+     * Copy of an operator without its operands, for ExpressionStore's operator table and for trees rebuilt by Canonicalizer.
+     * The copy of a stateful function shares the state of the original.
+     */
+    OperatorInstance(OperatorInstance op) {
+        this.kind = op.kind;
+        this.prec = op.prec;
+        this.token = op.token;
+        this.minArgs = op.minArgs;
+        this.maxArgs = op.maxArgs;
+        calculateBi = op.calculateBi;
+        calculateU = op.calculateU;
+        calculateN = op.calculateN;
+        calculateL = op.calculateL;
+        cache = op.cache;
+        pure = op.pure;
+        commutative = op.commutative;
+        associative = op.associative;
+        invocations = op.invocations;
     }
 
     Expression leftOperand;
     Expression rightOperand;
+    Expression[] arguments;                 // Operands of NARY and LAZY operators, in order
+    int height;                             // Length of the longest path to a leaf. Set by operandsAttached()
+    VariableScope scope;                    // Variables of the whole expression. Set on the root only
 
-    @Override
-    public double calculate() {
+    /**
+     * Called by the parser once all operands are in place.
+     */
+    void operandsAttached() {
+        int h = 0;
+        for (int i = 0; i < operandCount(); i++) h = Math.max(h, ExpressionTrees.heightOf(operand(i)));
+        height = h + 1;
+    }
+
+    int operandCount() {
         switch (kind) {
             case UNARY:
-                return calculateU.apply(rightOperand.calculate());
+                return 1;
             case BINARY:
-                return calculateBi.apply(leftOperand.calculate(), rightOperand.calculate());
+                return 2;
         }
-        throw new RuntimeException(new InvalidOperatorKind(token));                 // Should never happen
+        return arguments.length;
     }
 
-    @Override
-    public Set<String> dependsOnVariables() {
-
-        Set<String> r = new HashSet<>();
+    Expression operand(int i) {
         switch (kind) {
-            case BINARY:
-                r.addAll(leftOperand.dependsOnVariables());
             case UNARY:
-                r.addAll(rightOperand.dependsOnVariables());
+                return rightOperand;
+            case BINARY:
+                return (i == 0) ? leftOperand : rightOperand;
         }
-        return r;
+        return arguments[i];
     }
 
+    /**
+     * Shallow trees are calculated recursively, which is the fastest. Deep ones go to an explicit-stack evaluator, which descends recursively
+     * again as soon as it meets a shallow enough subtree.
+     */
     @Override
-    public boolean complete() {
-        boolean complete = true;
-            switch (kind) {
-                case BINARY:
-                    complete = leftOperand != null && leftOperand.complete();
-                case UNARY:
-                    complete &= rightOperand != null && rightOperand.complete();
-            }
-        return complete;
+    public double calculate() {
+        if (Metrics.enabled) return Metrics.calculate(this);
+        return evaluate();
     }
 
-    @Override
-    public String toLispString() {
+    double evaluate() {
+        if (height > ExpressionTrees.MAX_RECURSIVE_HEIGHT) return ExpressionTrees.calculate(this);
         switch (kind) {
             case UNARY:
-                return token + '(' + rightOperand.toLispString() + ')';
+                double x = rightOperand.calculate();
+                return (cache == null) ? calculateU.applyAsDouble(x) : cache.unary(x, calculateU);
             case BINARY:
-                return token + '(' + leftOperand.toLispString() + ',' + rightOperand.toLispString() + ')';
+                double l = leftOperand.calculate();
+                double r = rightOperand.calculate();
+                return (cache == null) ? calculateBi.applyAsDouble(l, r) : cache.binary(l, r, calculateBi);
+            case NARY:
+                double[] values = new double[arguments.length];
+                for (int i = 0; i < values.length; i++) values[i] = arguments[i].calculate();
+                return applyNary(values);
+            case LAZY:
+                return applyLazy();
         }
-        throw new InvalidOperatorKind(token);
+        throw new RuntimeException(new InvalidOperatorKind(token));                 // Should never happen
+    }
+
+    double applyUnary(double x) {
+        return (cache == null) ? calculateU.applyAsDouble(x) : cache.unary(x, calculateU);
+    }
+
+    double applyBinary(double l, double r) {
+        return (cache == null) ? calculateBi.applyAsDouble(l, r) : cache.binary(l, r, calculateBi);
+    }
+
+    double applyNary(double[] values) {
+        return (cache == null) ? calculateN.apply(values) : cache.nary(values, calculateN);
+    }
+
+    double applyLazy() {
+        return calculateL.apply(this);                                              // Operands get calculated on demand
     }
 
     @Override
-    public String toString() {
+    public int count() {
+        return arguments.length;
+    }
+
+    @Override
+    public double value(int i) {
+        return arguments[i].calculate();
+    }
+
+    @Override
+    public Set<String> dependsOnVariables() {
+        return (scope != null) ? scope.names() : ExpressionTrees.variables(this);
+    }
+
+    @Override
+    public boolean allVariablesSet() {
+        return (scope != null) ? scope.allSet() : Expression.super.allVariablesSet();
+    }
+
+    /**
+     * Operands are checked for completeness when the parser attaches them, so an operator is complete as soon as it has all its operands.
+     */
+    @Override
+    public boolean complete() {
         switch (kind) {
-            case UNARY:
-                return token + '(' + rightOperand.toString() + ')';
             case BINARY:
-                return '(' + leftOperand.toString() + ' ' + token + ' ' + rightOperand.toString() + ')';
+                return leftOperand != null && rightOperand != null;
+            case UNARY:
+                return rightOperand != null;
         }
-        throw new InvalidOperatorKind(token);
+        return arguments != null;
+    }
+
+    @Override
+    public String toLispString() {
+        return ExpressionTrees.print(this, true);
+    }
+
+    @Override
+    public String toString() {
+        return ExpressionTrees.print(this, false);
     }
 }
 
@@ -102,6 +207,8 @@ public class Operator {
      * For normal execution of composite functions (i.e. exp sin x == exp(sin(x))), all UNARY operators (including functions) must have precedence FUNC.
      */
     public enum Precedence {
+        /** comparisons */
+        CMP(0),
         /** addition/subtraction */
         ADD(1),
         /** multiplication/division */
@@ -132,7 +239,12 @@ public class Operator {
         public static final SortedSet<Precedence> highToLow;
 
         static {
-            SortedSet<Precedence> desc = new TreeSet<>((v1, v2) -> v2.val - v1.val);
+            SortedSet<Precedence> desc = new TreeSet<>(new Comparator<Precedence>() {       // Not a lambda, to spin no class at startup
+                @Override
+                public int compare(Precedence v1, Precedence v2) {
+                    return v2.val - v1.val;
+                }
+            });
             desc.addAll(Arrays.asList(Precedence.values()));
             highToLow = unmodifiableSortedSet(desc);
         }
@@ -146,30 +258,270 @@ public class Operator {
         /** Unary operator or function */
         UNARY,
         /** Binary operator */
-        BINARY }
+        BINARY,
+        /** Function of a comma-separated argument list, i.e. max(a, b, c). All arguments are calculated before the call */
+        NARY,
+        /** Function of a comma-separated argument list whose arguments are calculated only when the function asks for them, i.e. if(c, a, b) */
+        LAZY }
+
+    /**
+     * Value of maxArgs for functions that accept any number of arguments.
+     */
+    public static final int VARIADIC = Integer.MAX_VALUE;
+
+    /**
+     * Effect of an NARY function. Receives the calculated values of all arguments.
+     * The array may be reused once the call returns, so don't keep it.
+     */
+    @FunctionalInterface
+    public interface NaryEffect {
+        double apply(double[] args);
+    }
+
+    /**
+     * Effect of a LAZY function. Receives its arguments uncalculated and calculates only those it needs.
+     */
+    @FunctionalInterface
+    public interface LazyEffect {
+        double apply(Arguments args);
+    }
+
+    /**
+     * Effect of a stateful function, see stateful(). Every place the function is used in a formula gets its own effect object,
+     * which keeps what the function remembers between calculations, such as a window of past values.
+     */
+    public interface StatefulEffect extends LazyEffect {
+        /** @return Copy of the state, for a Checkpoint */
+        double[] save();
+
+        /**
+         * Replaces the state with one returned by save()
+         * @throws IllegalArgumentException if it isn't one
+         */
+        void restore(double[] state);
+
+        /** Forgets everything, as if the function had never been calculated */
+        void reset();
+    }
+
+    /**
+     * Makes a new effect, with a blank state, for each use of a stateful function
+     */
+    @FunctionalInterface
+    public interface StateFactory {
+        StatefulEffect create();
+    }
+
+    /**
+     * Arguments of a LAZY function. Each call to value() calculates the argument anew, so call it at most once per argument.
+     */
+    public interface Arguments {
+        /** @return Number of arguments */
+        int count();
+
+        /**
+         * Calculates an argument.
+         * @param i Index of the argument, from 0 to count() - 1
+         * @return Result of calculation
+         */
+        double value(int i);
+    }
 
     final Precedence prec;
     final Kind kind;
     final String token;
+    final int minArgs;
+    final int maxArgs;
+
+    final DoubleBinaryOperator calculateBi;
+    final DoubleUnaryOperator calculateU;
+    final NaryEffect calculateN;
+    final LazyEffect calculateL;
 
-    final java.util.function.BiFunction<Double, Double, Double> calculateBi;
-    final java.util.function.Function<Double, Double> calculateU;
+    StateFactory newState;                                         // null unless stateful
+    private boolean pure;
+    private boolean commutative;
+    private boolean associative;
+    MemoCache cache;
+    final LongAdder invocations = new LongAdder();
 
+    /**
+     * Creates a binary operator whose effect works on boxed Doubles, so that every calculation allocates. Prefer binary().
+     */
     public Operator(String token, Precedence prec, BiFunction<Double, Double, Double> effect) {
-        this.prec = prec;
-        this.kind = BINARY;
-        this.token = token;
-        this.calculateBi = effect;
-        this.calculateU = null;
+        this(token, prec, BINARY, 2, 2, (x, y) -> effect.apply(x, y), null, null, null);
     }
 
+    /**
+     * Creates a unary operator whose effect works on boxed Doubles, so that every calculation allocates. Prefer unary().
+     */
     public Operator(String token, Precedence prec, Function<Double, Double> effect) {
+        this(token, prec, UNARY, 1, 1, null, x -> effect.apply(x), null, null);
+    }
+
+    private Operator(String token, Precedence prec, Kind kind, int minArgs, int maxArgs,
+                     DoubleBinaryOperator calculateBi, DoubleUnaryOperator calculateU,
+                     NaryEffect calculateN, LazyEffect calculateL) {
         this.prec = prec;
-        this.kind = UNARY;
+        this.kind = kind;
         this.token = token;
-        this.calculateBi = null;
-        this.calculateU = effect;
+        this.minArgs = minArgs;
+        this.maxArgs = maxArgs;
+        this.calculateBi = calculateBi;
+        this.calculateU = calculateU;
+        this.calculateN = calculateN;
+        this.calculateL = calculateL;
+    }
+
+    /**
+     * Creates a binary operator, such as "a + b". Calculation doesn't allocate.
+     * @param token Operator token
+     * @param prec Precedence
+     * @param effect Effect of the operator
+     * @return New BINARY operator
+     */
+    public static Operator binary(String token, Precedence prec, DoubleBinaryOperator effect) {
+        return new Operator(token, prec, BINARY, 2, 2, effect, null, null, null);
+    }
+
+    /**
+     * Creates a unary operator or function, such as "-a" or "sin a". Calculation doesn't allocate.
+     * @param token Operator token
+     * @param prec Precedence, normally FUNC
+     * @param effect Effect of the operator
+     * @return New UNARY operator
+     */
+    public static Operator unary(String token, Precedence prec, DoubleUnaryOperator effect) {
+        return new Operator(token, prec, UNARY, 1, 1, null, effect, null, null);
+    }
+
+    /**
+     * Creates a function of a comma-separated argument list, such as "max(a, b, c)". All arguments are calculated before the effect is applied.<br>
+     * Each calculation allocates the array of arguments. Functions that must not allocate can be created with lazy() instead.
+     * @param token Function name
+     * @param minArgs Minimum number of arguments
+     * @param maxArgs Maximum number of arguments, or VARIADIC
+     * @param effect Effect of the function
+     * @return New NARY operator with precedence FUNC
+     */
+    public static Operator nary(String token, int minArgs, int maxArgs, NaryEffect effect) {
+        checkArgCount(minArgs, maxArgs);
+        return new Operator(token, Precedence.FUNC, NARY, minArgs, maxArgs, null, null, effect, null);
+    }
+
+    /**
+     * Creates a function of a comma-separated argument list, such as "if(c, a, b)", that calculates only the arguments it asks for.
+     * @param token Function name
+     * @param minArgs Minimum number of arguments
+     * @param maxArgs Maximum number of arguments, or VARIADIC
+     * @param effect Effect of the function
+     * @return New LAZY operator with precedence FUNC
+     */
+    public static Operator lazy(String token, int minArgs, int maxArgs, LazyEffect effect) {
+        checkArgCount(minArgs, maxArgs);
+        return new Operator(token, Precedence.FUNC, LAZY, minArgs, maxArgs, null, null, null, effect);
+    }
+
+    /**
+     * Creates a LAZY function that remembers things between calculations, such as a moving average "sma(x, 20)".
+     * Every place the function is used in a formula gets its own state, made by newState, and every calculation of it is a new sample.
+     * States can be saved and restored with Checkpoint. Stateful functions are never pure.
+     * @param token Function name
+     * @param minArgs Minimum number of arguments
+     * @param maxArgs Maximum number of arguments, or VARIADIC
+     * @param newState Makes the effect of one use of the function
+     * @return New LAZY operator with precedence FUNC
+     */
+    public static Operator stateful(String token, int minArgs, int maxArgs, StateFactory newState) {
+        checkArgCount(minArgs, maxArgs);
+        Operator op = new Operator(token, Precedence.FUNC, LAZY, minArgs, maxArgs, null, null, null, null);
+        op.newState = Objects.requireNonNull(newState);
+        return op;
+    }
+
+    /**
+     * Marks this operator as pure: its result depends on nothing but its arguments, and it has no side effects.
+     * @return This operator
+     * @throws IllegalStateException if the operator is stateful
+     */
+    public Operator pure() {
+        if (newState != null) throw new IllegalStateException("Stateful function cannot be pure: " + token);
+        pure = true;
+        return this;
+    }
+
+    /**
+     * @return true if the operator was marked pure
+     */
+    public boolean isPure() {
+        return pure;
+    }
+
+    public boolean isStateful() {
+        return newState != null;
+    }
+
+    /**
+     * Marks this operator as commutative: any order of its operands gives exactly the same result, as with + and * in floating point.
+     * Canonicalizer sorts operands of commutative operators, so that i.e. "x * 2" and "2 * x" end up the same.
+     * @return This operator
+     */
+    public Operator commutative() {
+        commutative = true;
+        return this;
+    }
+
+    public boolean isCommutative() {
+        return commutative;
+    }
+
+    /**
+     * Marks this binary operator as associative: (a op b) op c == a op (b op c), at least mathematically.
+     * In floating point this rarely holds exactly, so Canonicalizer regroups chains of associative operators only when asked to.
+     * @return This operator
+     * @throws IllegalStateException if the operator isn't BINARY
+     */
+    public Operator associative() {
+        if (kind != BINARY) throw new IllegalStateException("Only binary operators can be associative: " + token);
+        associative = true;
+        return this;
+    }
+
+    public boolean isAssociative() {
+        return associative;
     }
 
+    /**
+     * Marks this operator as pure and attaches a cache of its results, keyed on argument values.<br>
+     * Worth it for expensive effects that get called with the same arguments again and again, such as interpolation on a curve.
+     * Every expression that uses this operator shares the cache. Call this before parsing expressions with the operator.
+     * @param capacity Maximum number of cached results. Gets rounded up to a power of 2.
+     * @return This operator
+     * @throws IllegalStateException if the operator is LAZY, since its arguments aren't known in advance
+     * @throws IllegalArgumentException if the capacity is below 1 or above MemoCache.MAX_CAPACITY
+     */
+    public Operator memoize(int capacity) {
+        if (kind == LAZY) throw new IllegalStateException("Lazy function cannot be memoized: " + token);
+        cache = new MemoCache(Math.min(maxArgs, MemoCache.MAX_KEY_WIDTH), capacity);
+        return pure();
+    }
 
-}
\ No newline at end of file
+    /**
+     * @return Number of times the operator was applied while Metrics were on, across all expressions that use it
+     */
+    public long invocations() {
+        return invocations.sum();
+    }
+
+    /**
+     * @return Cache attached with memoize(), or null. Use it to read hit/miss statistics.
+     */
+    public MemoCache memoCache() {
+        return cache;
+    }
+
+    private static void checkArgCount(int minArgs, int maxArgs) {
+        if (minArgs < 1 || maxArgs < minArgs) throw new IllegalArgumentException("Invalid argument count: " + minArgs + ".." + maxArgs);
+    }
+
+}
@@ -0,0 +1,438 @@
+package arithmancy;
+
+import java.util.*;
+
+/**
+ * Text of a formula being edited, with what it parses to. Made by ExpressionParser.parseForEditing(), and by ExpressionParser.reparse()
+ * from the previous one and an edit. Unlike parse(), these don't throw on the first error: all errors found come in a list,
+ * with their offsets in the text.
+ */
+public final class ParsedFormula {
+    private final String text;
+    private final Expression expression;
+    private final List<ParsingError> errors;
+    private FormulaTree tree;                           // Null once edited, or if the parentheses don't match
+    private boolean edited;
+    final int lexed;                                    // Chars gone over to get this result
+
+    ParsedFormula(String text, FormulaTree tree, Expression expression, List<ParsingError> errors, int lexed) {
+        this.text = text;
+        this.tree = tree;
+        this.expression = expression;
+        this.errors = errors;
+        this.lexed = lexed;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    /**
+     * @return Root of the tree, or null if there are errors
+     */
+    public Expression expression() {
+        return expression;
+    }
+
+    /**
+     * @return Errors ordered by position, see ParsingError.getPosition(). Empty if the formula parses.
+     */
+    public List<ParsingError> errors() {
+        return errors;
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    ParsedFormula edit(int offset, int removedLength, CharSequence inserted) {
+        Objects.checkFromIndexSize(offset, removedLength, text.length());
+        if (edited) throw new IllegalStateException("Formula has been edited already");
+        edited = true;
+        String newText = new StringBuilder(text.length() - removedLength + inserted.length())
+                .append(text, 0, offset).append(inserted).append(text, offset + removedLength, text.length()).toString();
+
+        FormulaTree t = tree;
+        tree = null;
+        if (t == null || t.lexicon != ExpressionParser.lexicon()) return FormulaTree.parse(newText);
+        return t.edit(newText, offset, removedLength, inserted.length());
+    }
+}
+
+/**
+ * Parenthesized blocks of a formula, each with its tokens and what they parse to. An edit gets the innermost block around it
+ * lexed and parsed again, the blocks in it that the edit doesn't touch being taken as they are. The blocks around it only get
+ * their chains parsed again, with the new tree of the block in place of the old one.<br>
+ * Offsets are kept relative to the enclosing block, so that an edit moves only the blocks that follow it in the blocks around it.
+ * Variables are the same objects for the whole life of the tree, and are counted by the blocks they're in, so that the ones
+ * that are no longer in the formula can be dropped.
+ */
+final class FormulaTree {
+    private static final Object COMMA = new Object();
+    private static final Region[] NONE = new Region[0];
+    private static final int[] NO_OFFSETS = new int[0];
+
+    private static final Comparator<ParsingError> BY_POSITION = new Comparator<ParsingError>() {
+        @Override
+        public int compare(ParsingError a, ParsingError b) {
+            return Integer.compare(a.pos, b.pos);
+        }
+    };
+
+    /**
+     * Contents of a pair of parentheses, or of the whole formula
+     */
+    static final class Region {
+        Region parent;
+        int from, to;                                   // Interior, from after '(' up to ')', relative to the interior of the parent
+        int at;                                         // Absolute offset of the interior, while it's being lexed
+        final List<Object> atoms = new ArrayList<>();   // Names (String), numbers (Constant), blocks (Region) and COMMA
+        int[] offsets = new int[8];                     // Of each atom, '(' for a block
+        final List<Region> children = new ArrayList<>();
+        int[] segments = new int[1];                    // Offsets of the comma-separated segments
+        int segmentCount = 1;
+        final List<ParsingError> problems = new ArrayList<>();      // Invalid chars
+        final List<ParsingError> failures = new ArrayList<>();      // Chains that don't parse
+        final List<String> variables = new ArrayList<>();           // Names in atoms that are variables
+        Expression value;                               // Null if it doesn't parse
+        int errors;                                     // Of this block and the ones in it
+        boolean kept;
+
+        /**
+         * @return Child the range is in, not counting its parentheses, or null
+         */
+        Region childAround(int lo, int hi) {
+            int l = 0, h = children.size() - 1;
+            while (l <= h) {                            // Last child starting at lo or before
+                int m = (l + h) >>> 1;
+                if (children.get(m).from <= lo) l = m + 1;
+                else h = m - 1;
+            }
+            return (h >= 0 && hi <= children.get(h).to) ? children.get(h) : null;
+        }
+
+        void add(Object atom, int offset) {
+            if (atoms.size() == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[atoms.size()] = offset;
+            atoms.add(atom);
+        }
+
+        void addSegment(int offset) {
+            if (segmentCount == segments.length) segments = Arrays.copyOf(segments, segmentCount * 2);
+            segments[segmentCount++] = offset;
+        }
+
+        /**
+         * Moves what comes after the offset by delta
+         */
+        void shiftAfter(int offset, int delta) {
+            for (int i = children.size() - 1; i >= 0 && children.get(i).from > offset; i--) {
+                children.get(i).from += delta;
+                children.get(i).to += delta;
+            }
+            for (int i = 0; i < atoms.size(); i++) if (offsets[i] > offset) offsets[i] += delta;
+            for (int i = 0; i < segmentCount; i++) if (segments[i] > offset) segments[i] += delta;
+            for (ParsingError p: problems) if (p.pos > offset) p.pos += delta;
+        }
+
+        void clear() {
+            atoms.clear();
+            children.clear();
+            segmentCount = 1;
+            problems.clear();
+            failures.clear();
+            variables.clear();
+            value = null;
+        }
+    }
+
+    final Lexer.Lexicon lexicon;
+    private final Region root = new Region();
+    private final Map<String, Variable> variables = new HashMap<>();
+    private final Map<String, int[]> uses = new HashMap<>();       // Number of times each variable is in the formula
+    private String text;
+    private int lexed;
+    private Expression bound;                           // Last root bound to a scope, and the scope
+    private VariableScope scope;
+    private boolean renamed = true;                     // Variables have come or gone since the scope was made
+
+    private FormulaTree(Lexer.Lexicon lexicon, String text) {
+        this.lexicon = lexicon;
+        this.text = text;
+    }
+
+    static ParsedFormula parse(String text) {
+        FormulaTree tree = new FormulaTree(ExpressionParser.lexicon(), text);
+        ExpressionParser.variables().clear();
+        tree.root.to = text.length();
+        int unmatched = tree.relex(tree.root, 0, text.length(), NONE, NO_OFFSETS, 0);
+        return (unmatched >= 0) ? tree.unmatched(unmatched) : tree.finish();
+    }
+
+    ParsedFormula edit(String newText, int offset, int removed, int inserted) {
+        int delta = inserted - removed;
+        Map<String, Variable> known = ExpressionParser.variables();
+        known.clear();
+        known.putAll(variables);
+        text = newText;
+        lexed = 0;
+
+        Region r = root;
+        int at = 0;                                     // Absolute offset of the interior of r, which the edit doesn't move
+        for (Region c; (c = r.childAround(offset - at, offset + removed - at)) != null; r = c) at += c.from;
+
+        while (true) {
+            Region[] keep = new Region[r.children.size()];
+            int[] keepAt = new int[keep.length];
+            int kept = 0;
+            for (Region c: r.children) {                // Blocks before or after the edit, with the new offsets of their '('
+                int open = at + c.from - 1;
+                if (at + c.to < offset) {
+                    keep[kept] = c;
+                    keepAt[kept++] = open;
+                } else if (open >= offset + removed) {
+                    keep[kept] = c;
+                    keepAt[kept++] = open + delta;
+                }
+            }
+            int unmatched = relex(r, at, at - r.from + r.to + delta, keep, keepAt, kept);
+            if (unmatched < 0) break;
+            if (r.parent == null) return unmatched(unmatched);
+            at -= r.from;
+            r = r.parent;
+        }
+
+        r.to += delta;
+        for (Region c = r, p = r.parent; p != null; c = p, p = p.parent) {
+            p.shiftAfter(c.from, delta);
+            p.to += delta;
+            chain(p);
+        }
+        return finish();
+    }
+
+    /**
+     * Lexes and parses the text from at to end anew as the interior of r, except for the blocks to keep, which are taken as they are.
+     * @param keepAt Offsets of the '(' of the blocks to keep in the text, ascending
+     * @return Offset of a parenthesis without a pair, or -1 if they match and r has been rebuilt
+     */
+    private int relex(Region r, int at, int end, Region[] keep, int[] keepAt, int kept) {
+        // Parentheses and chars first, so that r stays as it is if it has to be given up for its parent
+        int[] opens = new int[8], invalid = NO_OFFSETS;
+        int depth = 0, invalidCount = 0;
+        for (int i = at, k = 0; i < end; i++) {
+            if (k < kept && i == keepAt[k]) {
+                i += keep[k].to - keep[k].from + 1;
+                k++;
+                continue;
+            }
+            lexed++;
+            char ch = text.charAt(i);
+            if (ch == '(') {
+                if (depth == opens.length) opens = Arrays.copyOf(opens, depth * 2);
+                opens[depth++] = i;
+            } else if (ch == ')') {
+                if (depth == 0) return i;
+                depth--;
+            } else if (!lexicon.isValid(Character.toLowerCase(ch))) {
+                if (invalidCount == invalid.length) invalid = Arrays.copyOf(invalid, Math.max(4, invalidCount * 2));
+                invalid[invalidCount++] = i;
+            }
+        }
+        if (depth > 0) return opens[depth - 1];
+
+        for (int k = 0; k < kept; k++) keep[k].kept = true;
+        ArrayDeque<Region> gone = new ArrayDeque<>();
+        gone.push(r);
+        while (!gone.isEmpty()) {
+            Region g = gone.pop();
+            for (String v: g.variables) release(v);
+            for (Region c: g.children) if (!c.kept) gone.push(c);
+        }
+        for (int k = 0; k < kept; k++) keep[k].kept = false;
+        r.clear();
+        r.at = at;
+
+        try {
+            Lexer lexer = new Lexer(lexicon, FormulaSource.of(text, at, end));
+            ArrayDeque<Region> open = new ArrayDeque<>();
+            Region current = r;
+            int k = 0, inv = 0;
+            for (int token = lexer.next(); ; token = lexer.next()) {
+                int pos = at + lexer.start();
+                while (inv < invalidCount && invalid[inv] < pos) {
+                    current.problems.add(new ParsingError(invalid[inv++] - current.at, "Invalid character detected"));
+                }
+                if (token == Lexer.END) break;
+
+                switch (token) {
+                    case Lexer.ATOM:
+                        Object atom = lexer.atom();
+                        current.add(atom, pos - current.at);
+                        if (atom instanceof String && ExpressionParser.isVariableName((String) atom)) {
+                            current.variables.add((String) atom);
+                            use((String) atom);
+                        }
+                        break;
+                    case Lexer.OPEN:
+                        if (k < kept && keepAt[k] == pos) {         // A block the edit doesn't touch: take it and go on after it
+                            Region c = keep[k++];
+                            int length = c.to - c.from;
+                            c.parent = current;
+                            c.from = pos + 1 - current.at;
+                            c.to = c.from + length;
+                            current.add(c, pos - current.at);
+                            current.children.add(c);
+                            lexer.jump(pos + 2 + length - at);
+                        } else {
+                            Region c = new Region();
+                            c.parent = current;
+                            c.from = pos + 1 - current.at;
+                            c.at = pos + 1;
+                            open.push(current);
+                            current = c;
+                        }
+                        break;
+                    case Lexer.COMMA:
+                        current.add(COMMA, pos - current.at);
+                        current.addSegment(pos + 1 - current.at);
+                        break;
+                    case Lexer.CLOSE:
+                        current.to = pos - current.parent.at;
+                        chain(current);
+                        Region done = current;
+                        current = open.pop();
+                        current.add(done, done.from - 1);
+                        current.children.add(done);
+                        break;
+                }
+            }
+        } catch (ParsingError e) {
+            throw new IllegalStateException(e);                     // Reading a String doesn't fail
+        }
+        chain(r);
+        return -1;
+    }
+
+    /**
+     * Parses the chains of r, the blocks in it being parsed already. A chain with a block that doesn't parse isn't parsed at all,
+     * so that an error doesn't bring about more errors around it.
+     */
+    private static void chain(Region r) {
+        r.failures.clear();
+        List<Object> segment = new ArrayList<>();
+        List<Expression> arguments = null;
+        int s = 0, first = 0;
+        for (int i = 0; i < r.atoms.size(); i++) {
+            Object atom = r.atoms.get(i);
+            if (atom == COMMA) {
+                if (arguments == null) arguments = new ArrayList<>();
+                arguments.add(chainSegment(r, segment, s++, first));
+                segment.clear();
+                first = i + 1;
+            } else {
+                segment.add((atom instanceof Region) ? ((Region) atom).value : atom);
+            }
+        }
+
+        Expression value = chainSegment(r, segment, s, first);
+        if (arguments != null) {
+            arguments.add(value);
+            value = arguments.contains(null) ? null : new ArgumentList(arguments.toArray(new Expression[0]));
+        }
+        if (r.parent == null && value instanceof ArgumentList) {
+            r.failures.add(new ParsingError(0, "Argument list outside of function call"));
+            value = null;
+        }
+        r.value = r.problems.isEmpty() ? value : null;
+        r.errors = r.problems.size() + r.failures.size();
+        for (Region c: r.children) r.errors += c.errors;
+    }
+
+    /**
+     * @param s Index of the segment
+     * @param first Index of its first atom
+     */
+    private static Expression chainSegment(Region r, List<Object> segment, int s, int first) {
+        if (segment.contains(null)) return null;
+        try {
+            return ExpressionParser.parseChain(segment);
+        } catch (ParsingError e) {
+            r.failures.add(e.at((e.atom >= 0) ? r.offsets[first + e.atom] : r.segments[s]));      // At the atom, if it's known
+            return null;
+        }
+    }
+
+    private void use(String variable) {
+        int[] count = uses.get(variable);
+        if (count == null) {
+            uses.put(variable, new int[] {1});
+            renamed = true;
+        } else {
+            count[0]++;
+        }
+    }
+
+    private void release(String variable) {
+        int[] count = uses.get(variable);
+        if (--count[0] > 0) return;
+        uses.remove(variable);
+        ExpressionParser.variables().remove(variable);
+        renamed = true;
+    }
+
+    private ParsedFormula unmatched(int offset) {
+        ExpressionParser.variables().clear();
+        return new ParsedFormula(text, null, null, List.of(new ParsingError(offset, "Invalid parenthesis structure")), lexed);
+    }
+
+    /**
+     * Binds the variables to a scope if the formula parses. The same variables keep the same scope.
+     */
+    private ParsedFormula finish() {
+        Expression e = root.value;
+        if (e != null) {
+            if (bound instanceof OperatorInstance && bound != e) ((OperatorInstance) bound).scope = null;     // Not a root any more
+            if (renamed || scope == null) {
+                variables.clear();
+                variables.putAll(ExpressionParser.variables());
+                ExpressionParser.bindVariables(e, text.length());
+                VariableScope newScope = VariableScope.of(e);
+                for (int slot = 0; scope != null && newScope != null && slot < newScope.size(); slot++) {
+                    int old = scope.slotOf(newScope.name(slot));
+                    if (old >= 0 && scope.isSet(old)) newScope.setValue(slot, scope.values[old]);
+                }
+                if (newScope != null) scope = newScope;
+                renamed = false;
+            } else {
+                scope.formulaLength = text.length();
+                if (e instanceof OperatorInstance) ((OperatorInstance) e).scope = scope;
+            }
+            bound = e;
+        } else {
+            variables.clear();
+            variables.putAll(ExpressionParser.variables());
+        }
+        return new ParsedFormula(text, this, e, errors(), lexed);
+    }
+
+    private List<ParsingError> errors() {
+        if (root.errors == 0) return Collections.emptyList();
+        List<ParsingError> errors = new ArrayList<>();
+        ArrayDeque<Region> regions = new ArrayDeque<>();
+        root.at = 0;
+        regions.push(root);
+        while (!regions.isEmpty()) {
+            Region r = regions.pop();
+            for (ParsingError p: r.problems) errors.add(p.at(r.at + p.pos));
+            for (ParsingError f: r.failures) errors.add(f.at(r.at + f.pos));
+            for (Region c: r.children) {
+                if (c.errors == 0) continue;
+                c.at = r.at + c.from;
+                regions.push(c);
+            }
+        }
+        errors.sort(BY_POSITION);
+        return Collections.unmodifiableList(errors);
+    }
+}
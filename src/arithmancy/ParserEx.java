@@ -5,7 +5,7 @@ import java.util.regex.Pattern;
 import static arithmancy.ParserEx.ADD_SPACES_AROUND;
 
 /**
- * Regex patterns used by arithmetic parser
+ * Regex patterns of ExpressionParser.preprocessExpression(). Parsing doesn't use them, so they get compiled only if it's called.
  */
 interface ParserEx {
     // Pattern BEGINS_WITH_A_NUMBER = Pattern.compile("^(\\d+\\.?\\d*)");       - obsolete
@@ -13,13 +13,9 @@ interface ParserEx {
     Pattern NONWORD_SEQUENCE = Pattern.compile("\\W+");
     Pattern NONASCII_SEQUENCE = Pattern.compile("[^\\x00-\\x7F]+");
 
-    // Gets re-calculated when adding new known operators.
-    //  All characters included in operator tokens are automatically valid.
-    Pattern DEFAULT_VALID_CHARS = Pattern.compile("[a-z\\s\\d\\.\\(\\)]*");
     Pattern ANY_NUMBER = Pattern.compile("(\\d+\\.?\\d*)");
     Pattern ANY_WHITESPACE = Pattern.compile("\\s+");
     Pattern SPACES_AROUND_PARENTHESES = Pattern.compile("\\s*(\\(|\\))\\s*");
-    Pattern ATOM = Pattern.compile("ATOM");
 
     // These replacements require regex with a capture group
     String REMOVE_SPACES_AROUND = "$1";
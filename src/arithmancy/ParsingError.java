@@ -2,14 +2,40 @@ package arithmancy;
 
 public class ParsingError extends Exception {
     int pos = -1;
+    int atom = -1;                              // Index of the atom where ExpressionParser.parseChain() found the error, if it did
+    private final String reason;                // The message without the prefix
 
     ParsingError(String message) {
         super("Parse error: " + message);
+        reason = message;
     }
     ParsingError(int pos, String message) {
         this(message);
         this.pos = pos;
     }
+
+    /**
+     * @return Offset in chars of the error in the formula, or -1 if it isn't known
+     */
+    public int getPosition() {
+        return pos;
+    }
+
+    /**
+     * Error in a chain of atoms, at the given atom
+     */
+    static ParsingError inChain(int atom, String message) {
+        ParsingError e = new ParsingError(message);
+        e.atom = atom;
+        return e;
+    }
+
+    /**
+     * @return Same error at another offset
+     */
+    ParsingError at(int pos) {
+        return new ParsingError(pos, reason);
+    }
 }
 
 class InvalidOperatorKind extends RuntimeException {
@@ -0,0 +1,452 @@
+package arithmancy;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds roots and minima of a parsed expression over some of its variables, the unknowns: f(x) = target for one unknown
+ * with Brent's method or Newton's, and the minimum of f over any number of unknowns with the Nelder-Mead simplex method.<br>
+ * The expression is copied into an ExpressionStore of the solver's own, so that it's calculated from a Frame: a plain array
+ * of variable values, set by slot. Frames are reused from one solution to the next, and solving allocates nothing.
+ * A solver may be used by any number of threads, each with frames of its own. solveAll() solves many independent instances in parallel.<br>
+ * Variables that aren't set in a frame are 0. Solutions are NaN when there is none to be found: when the root isn't bracketed,
+ * when the method hits a NaN, or when it doesn't converge within the maximum number of iterations.
+ */
+public final class Solver {
+    /** Default tolerance: roots and minimum points are good to this much, relative to their size if it's over 1 */
+    public static final double DEFAULT_TOLERANCE = 1e-12;
+    /** Default maximum number of iterations of a method, per unknown for Nelder-Mead */
+    public static final int DEFAULT_MAX_ITERATIONS = 1000;
+
+    private static final double EPSILON = Math.ulp(1.0);
+
+    private final ExpressionStore store = new ExpressionStore();
+    private final int function;
+    private final int derivative;                           // -1 if there's none
+    private final int[] unknowns;                           // Slots
+    private final String[] unknownNames;
+    private double tolerance = DEFAULT_TOLERANCE;
+    private int maxIterations = DEFAULT_MAX_ITERATIONS;
+
+    /**
+     * Solves without derivatives: Newton's method takes them by finite differences.
+     * @param f Expression returned by ExpressionParser.parse(), or its compiled or adaptive form
+     * @param unknowns Variables to solve for. Root finding needs exactly one.
+     * @throws UnknownVariableException if f doesn't depend on one of the unknowns
+     * @throws IllegalArgumentException if f uses stateful functions
+     */
+    public Solver(Expression f, String... unknowns) {
+        this(f, null, unknowns);
+    }
+
+    /**
+     * @param f Expression returned by ExpressionParser.parse(), or its compiled or adaptive form
+     * @param derivative Derivative of f with respect to the unknown, for Newton's method. May depend on variables f doesn't.
+     * @param unknown Variable to solve for
+     * @throws UnknownVariableException if f doesn't depend on the unknown
+     * @throws IllegalArgumentException if f or its derivative use stateful functions
+     */
+    public Solver(Expression f, Expression derivative, String unknown) {
+        this(f, Objects.requireNonNull(derivative), new String[] {unknown});
+    }
+
+    private Solver(Expression f, Expression derivative, String[] unknowns) {
+        if (unknowns.length == 0) throw new IllegalArgumentException("No unknowns");
+        function = store.add(ExpressionTrees.treeOf(f));
+        this.derivative = (derivative == null) ? -1 : store.add(ExpressionTrees.treeOf(derivative));
+        this.unknowns = new int[unknowns.length];
+        unknownNames = unknowns.clone();
+        for (int i = 0; i < unknowns.length; i++) {
+            if (!f.dependsOnVariables().contains(unknowns[i])) throw new UnknownVariableException(unknowns[i]);
+            this.unknowns[i] = store.slotOf(unknowns[i]);
+        }
+        store.trimToSize();
+    }
+
+    /**
+     * Sets the tolerance of all methods. Set it before solving.
+     * @return This solver
+     */
+    public Solver setTolerance(double tolerance) {
+        if (!(tolerance > 0)) throw new IllegalArgumentException("Invalid tolerance: " + tolerance);
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of iterations of all methods. Set it before solving.
+     * @return This solver
+     */
+    public Solver setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) throw new IllegalArgumentException("Invalid maximum number of iterations: " + maxIterations);
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    /**
+     * @return Slot of the variable in frames, or -1 if neither the expression nor its derivative depends on it
+     */
+    public int slotOf(String name) {
+        return store.slotOf(name);
+    }
+
+    /**
+     * @return New frame, with all variables 0. A frame belongs to one thread at a time.
+     */
+    public Frame newFrame() {
+        return new Frame();
+    }
+
+    /**
+     * One instance of a problem, solved in solveAll()
+     */
+    @FunctionalInterface
+    public interface Instance {
+        /**
+         * Sets the variables of the instance in the frame, solves it, and stores the solution
+         * @param frame Frame of the calling thread, with the values left by the last instance it solved
+         * @param index Number of the instance
+         */
+        void solve(Frame frame, int index);
+    }
+
+    /**
+     * Solves instances 0 to count - 1 in parallel, on ForkJoinPool.commonPool(). Every thread gets a frame of its own.
+     * Returns when all instances are solved. An exception thrown by an instance is thrown again by solveAll(),
+     * and the instances that weren't solved by then are skipped.
+     */
+    public void solveAll(int count, Instance instance) {
+        Objects.requireNonNull(instance);
+        if (count < 0) throw new IllegalArgumentException("Invalid count: " + count);
+        int grain = Math.max(1, count / (ForkJoinPool.getCommonPoolParallelism() * 8));
+        ForkJoinPool.commonPool().invoke(new Slice(instance, 0, count, grain));
+    }
+
+    /**
+     * Finds a root of f(x) = targets[i] for every row i with Brent's method, in parallel. Other variables of row i are names[j] = columns[j][i].
+     * @param lo Lower end of the bracket, for all rows
+     * @param hi Upper end of the bracket, for all rows
+     * @param roots Receives the roots. Its length is the number of rows.
+     * @throws UnknownVariableException if the expression doesn't depend on one of the names
+     */
+    public void findRoots(String[] names, double[][] columns, double[] targets, double lo, double hi, double[] roots) {
+        if (names.length != columns.length) throw new IllegalArgumentException("Got " + names.length + " variables and " + columns.length + " columns");
+        int[] slots = new int[names.length];
+        for (int j = 0; j < names.length; j++) {
+            slots[j] = slotOf(names[j]);
+            if (slots[j] < 0) throw new UnknownVariableException(names[j]);
+            if (columns[j].length < roots.length) throw new IllegalArgumentException("Column too short: " + names[j]);
+        }
+        if (targets.length < roots.length) throw new IllegalArgumentException("Too few targets");
+        solveAll(roots.length, (frame, i) -> {
+            for (int j = 0; j < slots.length; j++) frame.set(slots[j], columns[j][i]);
+            roots[i] = frame.brent(targets[i], lo, hi);
+        });
+    }
+
+    private final class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Instance instance;
+        private final int from, to, grain;
+
+        Slice(Instance instance, int from, int to, int grain) {
+            this.instance = instance;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Slice(instance, from, middle, grain), new Slice(instance, middle, to, grain));
+                return;
+            }
+            Frame frame = new Frame();
+            for (int i = from; i < to; i++) instance.solve(frame, i);
+        }
+    }
+
+    // ============================= FRAMES =============================
+
+    /**
+     * Values of the variables for one thread, and scratch space of the methods. Set the known variables, then call a method.
+     * Methods leave the unknowns at the solution they return.
+     */
+    public final class Frame {
+        private final double[] values = new double[store.variableCount()];
+        private final double[] simplex;                     // Nelder-Mead: n + 1 points of n unknowns, one after another
+        private final double[] simplexValues;
+        private final double[] centroid, reflected, expanded;
+        private int iterations;
+
+        private Frame() {
+            int n = unknowns.length;
+            simplex = new double[(n + 1) * n];
+            simplexValues = new double[n + 1];
+            centroid = new double[n];
+            reflected = new double[n];
+            expanded = new double[n];
+        }
+
+        /**
+         * @param slot Slot returned by Solver.slotOf()
+         * @return This frame
+         */
+        public Frame set(int slot, double value) {
+            values[slot] = value;
+            return this;
+        }
+
+        /**
+         * @return This frame
+         * @throws UnknownVariableException if neither the expression nor its derivative depends on the variable
+         */
+        public Frame set(String name, double value) {
+            int slot = store.slotOf(name);
+            if (slot < 0) throw new UnknownVariableException(name);
+            values[slot] = value;
+            return this;
+        }
+
+        public double get(String name) {
+            int slot = store.slotOf(name);
+            if (slot < 0) throw new UnknownVariableException(name);
+            return values[slot];
+        }
+
+        /**
+         * @return Value of the expression at the current values of the frame
+         */
+        public double calculate() {
+            return store.calculate(function, values);
+        }
+
+        /**
+         * @return Number of iterations the last method took
+         */
+        public int iterations() {
+            return iterations;
+        }
+
+        private double f(double x, double target) {
+            values[unknowns[0]] = x;
+            return store.calculate(function, values) - target;
+        }
+
+        private void checkOneUnknown() {
+            if (unknowns.length != 1) throw new IllegalStateException("Root finding needs one unknown, got " + Arrays.toString(unknownNames));
+        }
+
+        /**
+         * Finds x in [lo, hi] where f(x) = target with Brent's method: inverse quadratic interpolation or the secant method
+         * where they work, bisection where they don't. Sure to converge if f is continuous and f(lo) - target and f(hi) - target differ in sign.
+         * @return Root, or NaN if f(lo) - target and f(hi) - target have the same sign
+         */
+        public double brent(double target, double lo, double hi) {
+            checkOneUnknown();
+            iterations = 0;
+            double a = lo, b = hi, fa = f(a, target), fb = f(b, target);
+            if (fa == 0) return f0(a);
+            if (fb == 0) return f0(b);
+            if (!(fa < 0 ^ fb < 0) || fa != fa || fb != fb) return nan();
+            double c = a, fc = fa, d = b - a, e = d;
+            while (iterations++ < maxIterations) {
+                if ((fb > 0) == (fc > 0)) {                 // Keep the root between b and c
+                    c = a;
+                    fc = fa;
+                    d = e = b - a;
+                }
+                if (Math.abs(fc) < Math.abs(fb)) {          // b is the best guess so far
+                    a = b; b = c; c = a;
+                    fa = fb; fb = fc; fc = fa;
+                }
+                double tol = 2 * EPSILON * Math.abs(b) + 0.5 * tolerance;
+                double m = 0.5 * (c - b);
+                if (Math.abs(m) <= tol || fb == 0) return f0(b);
+
+                if (Math.abs(e) >= tol && Math.abs(fa) > Math.abs(fb)) {
+                    double s = fb / fa, p, q;
+                    if (a == c) {                           // Secant
+                        p = 2 * m * s;
+                        q = 1 - s;
+                    } else {                                // Inverse quadratic
+                        double r = fb / fc;
+                        q = fa / fc;
+                        p = s * (2 * m * q * (q - r) - (b - a) * (r - 1));
+                        q = (q - 1) * (r - 1) * (s - 1);
+                    }
+                    if (p > 0) q = -q;
+                    else p = -p;
+                    if (2 * p < Math.min(3 * m * q - Math.abs(tol * q), Math.abs(e * q))) {
+                        e = d;
+                        d = p / q;
+                    } else {
+                        d = m;
+                        e = m;
+                    }
+                } else {                                    // Bisection
+                    d = m;
+                    e = m;
+                }
+                a = b;
+                fa = fb;
+                b += (Math.abs(d) > tol) ? d : Math.copySign(tol, m);
+                fb = f(b, target);
+                if (fb != fb) return nan();
+            }
+            return nan();
+        }
+
+        /**
+         * Finds x where f(x) = target with Newton's method, from a guess. Converges fast near a simple root, but may fail
+         * or find another root from a poor guess: use brent() when a bracket is known.
+         * Derivatives come from the derivative expression given to the solver, or else from central differences.
+         * @return Root, or NaN if the method fails
+         */
+        public double newton(double target, double guess) {
+            checkOneUnknown();
+            iterations = 0;
+            double x = guess;
+            while (iterations++ < maxIterations) {
+                double fx = f(x, target);
+                if (fx == 0) return x;
+                double slope = slope(x);
+                double step = fx / slope;
+                if (step != step || Double.isInfinite(step)) return nan();
+                x -= step;
+                if (Math.abs(step) <= tolerance + 2 * EPSILON * Math.abs(x)) return f0(x);
+            }
+            return nan();
+        }
+
+        private double slope(double x) {
+            if (derivative >= 0) {
+                values[unknowns[0]] = x;
+                return store.calculate(derivative, values);
+            }
+            double h = Math.cbrt(EPSILON) * Math.max(1, Math.abs(x));
+            return (f(x + h, 0) - f(x - h, 0)) / (2 * h);
+        }
+
+        /**
+         * Sets the unknown to x and returns it
+         */
+        private double f0(double x) {
+            values[unknowns[0]] = x;
+            return x;
+        }
+
+        private double nan() {
+            for (int slot: unknowns) values[slot] = Double.NaN;
+            return Double.NaN;
+        }
+
+        /**
+         * Minimizes f over the unknowns with the Nelder-Mead simplex method, from a starting point. Needs no derivatives,
+         * and copes with functions that have none, but finds a local minimum only.
+         * @param point Starting values of the unknowns, in the order given to the solver. Receives the minimum point.
+         * @param step Initial size of the simplex, along each unknown
+         * @return Value of f at the minimum, or NaN if the method doesn't converge
+         */
+        public double minimize(double[] point, double step) {
+            int n = unknowns.length;
+            if (point.length != n) throw new IllegalArgumentException("Got " + point.length + " values for " + n + " unknowns");
+            if (!(step > 0)) throw new IllegalArgumentException("Invalid step: " + step);
+            iterations = 0;
+            for (int v = 0; v <= n; v++) {
+                System.arraycopy(point, 0, simplex, v * n, n);
+                if (v > 0) simplex[v * n + v - 1] += step;
+                simplexValues[v] = at(simplex, v * n);
+            }
+
+            int limit = maxIterations * n;
+            while (true) {
+                int best = 0, worst = 0, second = 0;        // Second worst
+                for (int v = 1; v <= n; v++) {
+                    if (simplexValues[v] < simplexValues[best]) best = v;
+                    if (simplexValues[v] > simplexValues[worst]) worst = v;
+                }
+                if (worst == 0) second = 1;
+                for (int v = 0; v <= n; v++) {
+                    if (v != worst && simplexValues[v] > simplexValues[second]) second = v;
+                }
+                double fBest = simplexValues[best], fWorst = simplexValues[worst];
+                if (fBest != fBest || fWorst != fWorst) return failed(point);
+                if (fWorst - fBest <= tolerance * Math.max(1, Math.abs(fBest)) && collapsed(best)) {  // A simplex may straddle the minimum with equal values
+                    System.arraycopy(simplex, best * n, point, 0, n);
+                    at(point, 0);
+                    return fBest;
+                }
+                if (iterations++ >= limit) return failed(point);
+
+                Arrays.fill(centroid, 0);
+                for (int v = 0; v <= n; v++) {
+                    if (v == worst) continue;
+                    for (int i = 0; i < n; i++) centroid[i] += simplex[v * n + i] / n;
+                }
+                double fReflected = along(reflected, worst, -1);
+                if (fReflected < fBest) {
+                    double fExpanded = along(expanded, worst, -2);
+                    if (fExpanded < fReflected) replace(worst, expanded, fExpanded);
+                    else replace(worst, reflected, fReflected);
+                } else if (fReflected < simplexValues[second]) {
+                    replace(worst, reflected, fReflected);
+                } else {
+                    boolean outside = fReflected < fWorst;
+                    double fContracted = along(expanded, worst, outside ? -0.5 : 0.5);
+                    if (fContracted < (outside ? fReflected : fWorst)) {
+                        replace(worst, expanded, fContracted);
+                    } else {                                // Shrink towards the best point
+                        for (int v = 0; v <= n; v++) {
+                            if (v == best) continue;
+                            for (int i = 0; i < n; i++) simplex[v * n + i] = simplex[best * n + i] + 0.5 * (simplex[v * n + i] - simplex[best * n + i]);
+                            simplexValues[v] = at(simplex, v * n);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Puts centroid + t * (vertex - centroid) into the point, and calculates f there
+         */
+        private double along(double[] point, int vertex, double t) {
+            int n = unknowns.length;
+            for (int i = 0; i < n; i++) point[i] = centroid[i] + t * (simplex[vertex * n + i] - centroid[i]);
+            return at(point, 0);
+        }
+
+        private void replace(int vertex, double[] point, double value) {
+            System.arraycopy(point, 0, simplex, vertex * unknowns.length, unknowns.length);
+            simplexValues[vertex] = value;
+        }
+
+        /**
+         * @return true if all points of the simplex are within the tolerance of the best one
+         */
+        private boolean collapsed(int best) {
+            int n = unknowns.length;
+            for (int v = 0; v <= n; v++) {
+                for (int i = 0; i < n; i++) {
+                    double x = simplex[best * n + i];
+                    if (Math.abs(simplex[v * n + i] - x) > tolerance * Math.max(1, Math.abs(x))) return false;
+                }
+            }
+            return true;
+        }
+
+        private double at(double[] point, int offset) {
+            for (int i = 0; i < unknowns.length; i++) values[unknowns[i]] = point[offset + i];
+            return store.calculate(function, values);
+        }
+
+        private double failed(double[] point) {
+            Arrays.fill(point, Double.NaN);
+            return nan();
+        }
+    }
+}
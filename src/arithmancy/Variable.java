@@ -1,6 +1,6 @@
 package arithmancy;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Optional;
 import java.util.Set;
 
@@ -26,22 +26,36 @@ class UnknownVariableException extends RuntimeException {
  */
 class Variable implements Expression {
     private final String name;              // Used ONLY in toString() and toLispString()
-    private Double val;                     // null if not set
+    private VariableScope scope;            // Holds the value
+    private int slot;
 
     Variable(String name) {
         this.name = name;
+        bind(new VariableScope(Collections.singleton(name)), 0);
+    }
+
+    /**
+     * Moves the variable to a slot of a shared scope. The parser calls it once all variables of an expression are known.
+     */
+    void bind(VariableScope scope, int slot) {
+        this.scope = scope;
+        this.slot = slot;
     }
 
     String getName() { return name; }
 
+    VariableScope scope() { return scope; }
+
+    int slot() { return slot; }
+
     /**
      * @return Value of the variable
      * @throws VariableNotSetException when variable not set
      */
     @Override
     public double calculate() throws VariableNotSetException {
-        if (val == null) throw new VariableNotSetException(name);
-        return val;
+        if (!scope.isSet(slot)) throw new VariableNotSetException(name);
+        return scope.values[slot];
     }
 
     @Override
@@ -57,9 +71,12 @@ class Variable implements Expression {
 
     @Override
     public Set<String> dependsOnVariables() {
-        HashSet<String> thisv = new HashSet<>();
-        thisv.add(this.name);
-        return thisv;
+        return Collections.singleton(name);
+    }
+
+    @Override
+    public boolean allVariablesSet() {
+        return isSet();
     }
 
     @Override
@@ -68,14 +85,14 @@ class Variable implements Expression {
     }
 
     Optional<Double> getValueOrEmpty() {
-        return Optional.ofNullable(val);
+        return Optional.ofNullable(getValueOrNull());
     }
 
     /**
      * Return value of the variable, null if not set
      */
     Double getValueOrNull() {
-        return val;
+        return isSet() ? scope.values[slot] : null;
     }
 
     /**
@@ -83,19 +100,19 @@ class Variable implements Expression {
      * @param value Value to be used in calculate()
      */
     void setValue(double value) {
-        val = value;
+        scope.setValue(slot, value);
     }
 
     /**
     * Unsets the value of this variable. <p>
     * Variable must be set again with setValue(). Otherwise calculate() will throw VariableNotSet().
     */
-    void unsetValue() { val = null; }
+    void unsetValue() { scope.unsetValue(slot); }
 
     /**
      * Returns true is the var is set
      */
     boolean isSet() {
-        return val != null;
+        return scope.isSet(slot);
     }
 }
@@ -0,0 +1,83 @@
+package arithmancy;
+
+import java.util.*;
+
+/**
+ * Values of all variables of one parsed expression, in dense slots numbered in alphabetical order of variable names.<br>
+ * Which slots are set is tracked by a bitset, so checking that all variables are set costs one comparison per 64 variables.
+ * Names are kept as an immutable set, built once at parse time.
+ */
+final class VariableScope {
+    private final String[] names;                   // Sorted, index is the slot
+    private final Set<String> nameSet;
+    final double[] values;
+    private final long[] set;                       // Bit i is on if slot i has a value
+    private final long[] all;                       // Bits of all slots
+
+    int formulaLength;                              // What the expression was parsed from, for JFR events
+    long operatorSetVersion;
+
+    VariableScope(Collection<String> varNames) {
+        names = varNames.toArray(new String[0]);
+        Arrays.sort(names);
+        nameSet = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(names)));
+        values = new double[names.length];
+        set = new long[(names.length + 63) >>> 6];
+        all = new long[set.length];
+        for (int i = 0; i < names.length; i++) all[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * @return Scope of a parsed expression, or null if it has no variables
+     */
+    static VariableScope of(Expression expr) {
+        if (expr instanceof AdaptiveExpression) return of(((AdaptiveExpression) expr).source());
+        if (expr instanceof CompiledExpression) return ((CompiledExpression) expr).source().scope;
+        if (expr instanceof OperatorInstance) return ((OperatorInstance) expr).scope;
+        if (expr instanceof Variable) return ((Variable) expr).scope();
+        return null;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * @return Slot of the variable, or a negative number if there's no such variable
+     */
+    int slotOf(String name) {
+        return Arrays.binarySearch(names, name);
+    }
+
+    /**
+     * @return Unmodifiable set of variable names
+     */
+    Set<String> names() {
+        return nameSet;
+    }
+
+    boolean isSet(int slot) {
+        return (set[slot >>> 6] & 1L << slot) != 0;
+    }
+
+    void setValue(int slot, double value) {
+        values[slot] = value;
+        set[slot >>> 6] |= 1L << slot;
+    }
+
+    void unsetValue(int slot) {
+        set[slot >>> 6] &= ~(1L << slot);
+    }
+
+    void unsetAll() {
+        Arrays.fill(set, 0L);
+    }
+
+    boolean allSet() {
+        return Arrays.equals(set, all);
+    }
+}
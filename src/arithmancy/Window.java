@@ -0,0 +1,311 @@
+package arithmancy;
+
+/**
+ * State of a built-in series function over a window of the latest samples, see BuiltIns.Series. Series functions take one sample
+ * per calculation and update their result in O(1) time, amortized: moments are updated as samples come and go,
+ * and extremes are kept in a monotonic deque.
+ * Until a window is full, results cover the samples seen so far. NaN samples make the result NaN until they leave the window.
+ * A change of the window size starts the window over.
+ */
+abstract class Window implements Operator.StatefulEffect {
+    static final int MAX_SIZE = 1 << 20;
+
+    double[] ring = new double[0];                          // Samples, ring.length is the window size
+    int head;                                               // Where the next sample goes
+    int count;                                              // Samples in the window
+    int nans;                                               // NaN samples in the window
+
+    /**
+     * Adds a sample, and drops the oldest one if the window is full
+     */
+    final void push(double x, int size) {
+        if (size != ring.length) {
+            reset();
+            ring = new double[size];
+            resized(size);
+        }
+        if (count == size) {
+            double old = ring[head];
+            if (old != old) nans--;
+            else removed(old);
+        } else {
+            count++;
+        }
+        ring[head] = x;
+        if (x != x) nans++;
+        else added(x);
+        head = (head + 1 == size) ? 0 : head + 1;
+    }
+
+    /**
+     * @param back 0 for the latest sample, 1 for the one before etc.
+     */
+    final double sample(int back) {
+        int i = head - 1 - back;
+        return ring[(i < 0) ? i + ring.length : i];
+    }
+
+    abstract void added(double x);
+    abstract void removed(double x);
+    void resized(int size) {}
+
+    @Override
+    public void reset() {
+        head = count = nans = 0;
+    }
+
+    /**
+     * @return Window size, the extra values, then the samples from the oldest to the latest
+     */
+    final double[] state(double... extra) {
+        double[] state = new double[1 + extra.length + count];
+        state[0] = ring.length;
+        System.arraycopy(extra, 0, state, 1, extra.length);
+        for (int i = 0; i < count; i++) state[state.length - 1 - i] = sample(i);
+        return state;
+    }
+
+    /**
+     * Puts back the samples of state(), without calling added()
+     */
+    final void reload(double[] state, int extras) {
+        if (state.length < 1 + extras) throw invalid();
+        int size = sizeOf(state[0], "window size");
+        if (state.length - 1 - extras > size) throw invalid();
+        reset();
+        if (size != ring.length) {
+            ring = new double[size];
+            resized(size);
+        }
+        count = state.length - 1 - extras;
+        System.arraycopy(state, 1 + extras, ring, 0, count);
+        head = (count == size) ? 0 : count;
+        for (int i = 0; i < count; i++) if (ring[i] != ring[i]) nans++;
+    }
+
+    static int sizeOf(double v, String what) {
+        if (!(v >= 1 && v <= MAX_SIZE) || v != Math.rint(v)) throw new IllegalArgumentException("Invalid " + what + ": " + v);
+        return (int) v;
+    }
+
+    static IllegalArgumentException invalid() {
+        return new IllegalArgumentException("Invalid state");
+    }
+}
+
+/**
+ * sma(x, n) and stdev(x, n): mean and sample standard deviation of the last n samples. Mean and sum of squared deviations are updated
+ * the way Welford does it, as samples come and go, and recalculated from the window every n samples so that errors don't pile up.
+ */
+final class MovingMoments extends Window {
+    private final boolean deviation;
+    private int valid;                                      // Non-NaN samples in the window
+    private double mean, squares;
+    private int updates;                                    // Since the last recalculation
+
+    MovingMoments(boolean deviation) {
+        this.deviation = deviation;
+    }
+
+    @Override
+    public double apply(Operator.Arguments a) {
+        double x = a.value(0);
+        push(x, sizeOf(a.value(1), "window size"));
+        if (++updates >= ring.length) recalculate();
+        if (nans > 0 || valid < (deviation ? 2 : 1)) return Double.NaN;
+        return deviation ? Math.sqrt(squares / (valid - 1)) : mean;
+    }
+
+    @Override
+    void added(double x) {
+        double d = x - mean;
+        mean += d / ++valid;
+        squares += d * (x - mean);
+    }
+
+    @Override
+    void removed(double x) {
+        if (--valid == 0) {
+            mean = squares = 0;
+            return;
+        }
+        double d = x - mean;
+        mean -= d / valid;
+        squares = Math.max(squares - d * (x - mean), 0);
+    }
+
+    private void recalculate() {
+        updates = 0;
+        double sum = 0;                                     // From the oldest sample, so that a restored window gives the same sums
+        for (int i = count - 1; i >= 0; i--) {
+            double x = sample(i);
+            if (x == x) sum += x;
+        }
+        mean = (valid > 0) ? sum / valid : 0;
+        squares = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            double x = sample(i);
+            if (x == x) squares += (x - mean) * (x - mean);
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        valid = updates = 0;
+        mean = squares = 0;
+    }
+
+    @Override
+    public double[] save() {
+        return state(mean, squares, updates);
+    }
+
+    @Override
+    public void restore(double[] state) {
+        reload(state, 3);
+        valid = count - nans;
+        mean = state[1];
+        squares = state[2];
+        updates = (int) state[3];
+    }
+}
+
+/**
+ * highest(x, n) and lowest(x, n): extremes of the last n samples. The deque keeps the samples that may still become the extreme,
+ * in the order they came: every sample that comes after a bigger one (for highest) is dropped, since it will leave the window first.
+ */
+final class MovingExtreme extends Window {
+    private final boolean highest;
+    private double[] values = new double[0];                // Deque, a ring of the window size
+    private long[] indexes = new long[0];                   // Sample numbers of the values
+    private int front, length;
+    private long next;                                      // Number of the next sample
+
+    MovingExtreme(boolean highest) {
+        this.highest = highest;
+    }
+
+    @Override
+    public double apply(Operator.Arguments a) {
+        double x = a.value(0);
+        push(x, sizeOf(a.value(1), "window size"));
+        if (x != x) next++;                                 // Numbered all the same
+        return (nans > 0 || length == 0) ? Double.NaN : values[front];
+    }
+
+    @Override
+    void added(double x) {
+        long index = next++;
+        int size = values.length;
+        while (length > 0 && indexes[front] <= index - size) {
+            front = (front + 1 == size) ? 0 : front + 1;
+            length--;
+        }
+        while (length > 0) {
+            int back = (front + length - 1) % size;
+            if (highest ? values[back] > x : values[back] < x) break;
+            length--;
+        }
+        int at = (front + length++) % size;
+        values[at] = x;
+        indexes[at] = index;
+    }
+
+    @Override
+    void removed(double x) {}                               // Left behind by added()
+
+    @Override
+    void resized(int size) {
+        values = new double[size];
+        indexes = new long[size];
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        front = length = 0;
+        next = 0;
+    }
+
+    @Override
+    public double[] save() {
+        return state();
+    }
+
+    @Override
+    public void restore(double[] state) {
+        reload(state, 0);
+        front = length = 0;
+        next = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            double x = sample(i);
+            if (x == x) added(x);
+            else next++;
+        }
+    }
+}
+
+/**
+ * lag(x, k): the sample taken k calculations ago, NaN until there is one
+ */
+final class Lag extends Window {
+    @Override
+    public double apply(Operator.Arguments a) {
+        double x = a.value(0), k = a.value(1);
+        if (!(k >= 0 && k < MAX_SIZE) || k != Math.rint(k)) throw new IllegalArgumentException("Invalid lag: " + k);
+        int size = (int) k + 1;
+        push(x, size);
+        return (count == size) ? sample(size - 1) : Double.NaN;
+    }
+
+    @Override void added(double x) {}
+    @Override void removed(double x) {}
+
+    @Override
+    public double[] save() {
+        return state();
+    }
+
+    @Override
+    public void restore(double[] state) {
+        reload(state, 0);
+    }
+}
+
+/**
+ * ema(x, alpha): exponential moving average, alpha * x + (1 - alpha) * previous. The first sample starts it off.
+ * A NaN sample gives NaN and leaves the average as it was.
+ */
+final class ExponentialAverage implements Operator.StatefulEffect {
+    private boolean started;
+    private double average;
+
+    @Override
+    public double apply(Operator.Arguments a) {
+        double x = a.value(0), alpha = a.value(1);
+        if (!(alpha > 0 && alpha <= 1)) throw new IllegalArgumentException("Invalid smoothing factor: " + alpha);
+        if (x != x) return Double.NaN;
+        average = started ? average + alpha * (x - average) : x;
+        started = true;
+        return average;
+    }
+
+    @Override
+    public double[] save() {
+        return started ? new double[] {average} : new double[0];
+    }
+
+    @Override
+    public void restore(double[] state) {
+        if (state.length > 1) throw Window.invalid();
+        started = state.length == 1;
+        average = started ? state[0] : 0;
+    }
+
+    @Override
+    public void reset() {
+        started = false;
+        average = 0;
+    }
+}
@@ -0,0 +1,164 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static arithmancy.AdaptiveExpression.Tier.*;
+import static arithmancy.Operator.Precedence.FUNC;
+import static org.junit.Assert.*;
+
+public class AdaptiveExpressionTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final List<String> transitions = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
+        AdaptiveExpression.setTierListener((e, from, to) -> transitions.add(from + " -> " + to));
+    }
+
+    @After
+    public void tearDown() {
+        AdaptiveExpression.setTierListener(null);
+        ExpressionCompiler.setBudget(ExpressionCompiler.DEFAULT_THREADS, ExpressionCompiler.DEFAULT_QUEUE_CAPACITY);
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    private static void awaitTier(AdaptiveExpression e, AdaptiveExpression.Tier tier) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (e.tier() != tier) {
+            assertTrue("Still " + e.tier() + ", expected " + tier, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertCompiledLikeInterpreted(String formula, double... xs) throws ParsingError {
+        Expression e = ExpressionParser.parse(formula);
+        Expression compiled = ExpressionCompiler.compile(e);
+        assertNotSame(formula, e, compiled);
+        for (double x: xs) {
+            ExpressionParser.setVariable("x", x);
+            if (e.dependsOnVariables().contains("y")) ExpressionParser.setVariable("y", x / 2 + 1);
+            assertEquals(formula + " at " + x, e.calculate(), compiled.calculate(), 0);
+        }
+    }
+
+    @Test
+    public void compiledResultsMatchInterpreted() throws ParsingError {
+        assertCompiledLikeInterpreted("(x + 2) * (y - x) / 3 + x * (x - 1) * y - (y + 1) * (x - 2)", -3, 0, 0.5, 7);
+        assertCompiledLikeInterpreted("-x ^ 2 + sin(x) * ln(y) - exp(-x) / sqrt(y)", -1, 0, 0.5, 7);
+        assertCompiledLikeInterpreted("if(x > y, max(x, y, 3), clamp(x - y, -1, 1)) + min(x, 2 * 3)", -3, 0, 0.5, 7);
+        assertCompiledLikeInterpreted("x / 0 + ln(-y)", 1, 2);                               // NaN and infinity alike
+
+        StringBuilder deep = new StringBuilder("x");
+        for (int i = 0; i < 1000; i++) deep.append(i % 2 == 0 ? " + x" : " - y");
+        assertCompiledLikeInterpreted(deep.toString(), 1, 2.5);
+    }
+
+    @Test
+    public void customOperatorsAreCompiled() throws ParsingError {
+        ExpressionParser.addOperator(Operator.unary("gauss", FUNC, x -> Math.exp(-x * x / 2)).memoize(16));
+        ExpressionParser.addOperator(Operator.nary("sum", 1, 8, a -> {
+            double s = 0;
+            for (double v: a) s += v;
+            return s;
+        }));
+        ExpressionParser.addOperator(Operator.lazy("firstpositive", 1, 8, a -> {
+            for (int i = 0; i < a.count(); i++) if (a.value(i) > 0) return a.value(i);
+            return 0;
+        }));
+        assertCompiledLikeInterpreted("gauss(x) + sum(x, y, gauss(y), 4) * firstpositive(-x, y - 3, x)", -2, 0, 1, 5);
+    }
+
+    @Test
+    public void unsetVariablesFallBackToInterpreter() throws ParsingError {
+        Expression e = ExpressionParser.parse("if(x > 0, x, y)");
+        Expression compiled = ExpressionCompiler.compile(e);
+        ExpressionParser.setVariable("x", 2.0);
+        assertEquals(2, compiled.calculate(), 0);                        // y isn't needed
+
+        ExpressionParser.setVariable("x", -2.0);
+        try {
+            compiled.calculate();
+            fail("y isn't set");
+        } catch (VariableNotSetException expected) {
+        }
+        ExpressionParser.setVariable("y", 5.0);
+        assertEquals(5, compiled.calculate(), 0);
+    }
+
+    @Test
+    public void onlyPureOperatorsAreFolded() throws ParsingError {
+        int[] calls = new int[2];
+        ExpressionParser.addOperator(Operator.unary("twice", FUNC, x -> { calls[0]++; return 2 * x; }).pure());
+        ExpressionParser.addOperator(Operator.unary("tick", FUNC, x -> ++calls[1]));
+        Expression e = ExpressionCompiler.compile(ExpressionParser.parse("twice(3) + tick(1) + x"));
+        ExpressionParser.setVariable("x", 0.0);
+        assertEquals(1, calls[0]);                                      // At compile time
+        assertEquals(0, calls[1]);
+
+        assertEquals(6 + 1, e.calculate(), 0);
+        assertEquals(6 + 2, e.calculate(), 0);
+        assertEquals(1, calls[0]);
+        assertEquals(2, calls[1]);
+    }
+
+    @Test
+    public void hotExpressionsGetCompiled() throws Exception {
+        Expression source = ExpressionParser.parse("x * x - 1");
+        AdaptiveExpression e = new AdaptiveExpression(source, 100);
+        long compilations = ExpressionCompiler.compilations();
+        ExpressionParser.setVariable("x", 3.0);
+
+        for (int i = 0; i < 99; i++) assertEquals(8, e.calculate(), 0);
+        assertEquals(INTERPRETED, e.tier());
+        assertEquals(8, e.calculate(), 0);
+        awaitTier(e, COMPILED);
+        assertEquals(8, e.calculate(), 0);
+
+        assertEquals(List.of("INTERPRETED -> QUEUED", "QUEUED -> COMPILED"), transitions);
+        assertEquals(compilations + 1, ExpressionCompiler.compilations());
+        assertEquals(source.toString(), e.toString());
+        assertEquals(source.dependsOnVariables(), e.dependsOnVariables());
+    }
+
+    @Test
+    public void fullQueueKeepsExpressionsInterpreted() throws Exception {
+        ExpressionCompiler.setBudget(1, 1);
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(ExpressionCompiler.submit(() -> {                    // Occupies the only thread...
+            busy.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }));
+        busy.await();
+        assertTrue(ExpressionCompiler.submit(() -> {}));              // ...and the only place in the queue
+        long rejections = ExpressionCompiler.rejections();
+
+        AdaptiveExpression e = new AdaptiveExpression(ExpressionParser.parse("x + 1"), 0);
+        assertEquals(INTERPRETED, e.tier());
+        assertEquals(rejections + 1, ExpressionCompiler.rejections());
+        assertEquals(List.of("INTERPRETED -> QUEUED", "QUEUED -> INTERPRETED"), transitions);
+
+        release.countDown();
+        ExpressionParser.setVariable("x", 1.0);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (e.tier() == INTERPRETED && System.currentTimeMillis() < deadline) {
+            assertEquals(2, e.calculate(), 0);                          // Asks again after a while
+            Thread.sleep(1);
+        }
+        awaitTier(e, COMPILED);
+        assertEquals(2, e.calculate(), 0);
+    }
+}
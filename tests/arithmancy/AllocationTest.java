@@ -0,0 +1,195 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.StringJoiner;
+
+import static arithmancy.Operator.Precedence.FUNC;
+import static arithmancy.Operator.Precedence.MUL;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that evaluation allocates nothing once warmed up, using per-thread allocation counters of the JVM.
+ */
+public class AllocationTest {
+    private static final int WARMUP = 20_000;
+    private static final int RUNS = 10_000;
+    private static final int ATTEMPTS = 5;
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private double sink;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
+    }
+
+    @After
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    /**
+     * Runs the action WARMUP times, then returns the number of bytes allocated by the current thread during RUNS more runs.<br>
+     * The JVM itself allocates now and then on behalf of the thread, i.e. when the JIT replaces compiled code. Since such one-off allocations
+     * would make the test flaky, the measurement is repeated a few times and the least result is taken: an allocating hot path shows up every time.
+     */
+    private static long allocatedBytes(Runnable action) {
+        for (int i = 0; i < WARMUP; i++) action.run();
+        long least = Long.MAX_VALUE;
+        for (int attempt = 0; attempt < ATTEMPTS && least > 0; attempt++) {
+            long before = THREADS.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < RUNS; i++) action.run();
+            least = Math.min(least, THREADS.getCurrentThreadAllocatedBytes() - before);
+        }
+        return least;
+    }
+
+    /**
+     * Makes a formula that applies the operator to x and y, such as "x + y", "sin x" or "max(x, y, x)".
+     */
+    private static String formulaOf(Operator op, String token) {
+        switch (op.kind) {
+            case BINARY:
+                return "x " + token + " y";
+            case UNARY:
+                return token + " x";
+        }
+        if (op.isStateful()) return token + "(x, 1)";                       // Window of 1, lag of 1 or smoothing factor of 1
+        StringJoiner args = new StringJoiner(", ", token + "(", ")");
+        for (int i = 0; i < Math.min(Math.max(op.minArgs, 3), op.maxArgs); i++) args.add(i % 2 == 0 ? "x" : "y");
+        return args.toString();
+    }
+
+    private void assertBuiltInsDontAllocate(boolean compiled) throws ParsingError {
+        for (Operator op: ExpressionParser.knownOps().keySet()) {
+            String formula = formulaOf(op, ExpressionParser.knownOps().get(op));
+            Expression parsed = ExpressionParser.parse(formula);
+            Expression e = compiled ? ExpressionCompiler.compile(parsed) : parsed;
+            ExpressionParser.setVariable("x", 0.5);
+            if (e.dependsOnVariables().contains("y")) ExpressionParser.setVariable("y", 2.0);
+
+            assertEquals(formula, 0, allocatedBytes(() -> sink += e.calculate()));
+        }
+    }
+
+    @Test
+    public void builtInOperatorsDontAllocate() throws ParsingError {
+        assertBuiltInsDontAllocate(false);
+    }
+
+    @Test
+    public void compiledBuiltInOperatorsDontAllocate() throws ParsingError {
+        assertBuiltInsDontAllocate(true);
+    }
+
+    @Test
+    public void fastMathOperatorsDontAllocate() throws ParsingError {
+        ExpressionParser.loadFastMathKnownOperators();
+        ExpressionParser.addComparisonOperators();
+        assertBuiltInsDontAllocate(false);
+    }
+
+    @Test
+    public void settingVariablesDoesntAllocate() throws ParsingError {
+        Expression e = ExpressionParser.parse("if(x > y, sin(x) * y ^ 2, clamp(ln(y) - x, -1, 1)) + max(x, y, 1)");
+        double[] xy = {0.5, 0.5};
+
+        assertEquals(0, allocatedBytes(() -> {
+            xy[0] += 0.25;
+            ExpressionParser.setVariable("x", xy[0]);
+            ExpressionParser.setVariable("y", xy[1]);
+            if (e.allVariablesSet()) sink += e.calculate();
+        }));
+    }
+
+    @Test
+    public void memoizedOperatorsDontAllocate() throws ParsingError {
+        ExpressionParser.addOperator(Operator.unary("gauss", FUNC, x -> Math.exp(-x * x / 2)).memoize(16));
+        ExpressionParser.addOperator(Operator.binary("%", MUL, (x, y) -> x - y * Math.floor(x / y)).memoize(16));
+        Expression e = ExpressionParser.parse("gauss(x) + x % y");
+        double[] x = {0};
+        ExpressionParser.setVariable("y", 0.75);
+
+        assertEquals(0, allocatedBytes(() -> {                            // 64 distinct arguments: both hits and misses
+            x[0] = (x[0] + 1) % 64;
+            ExpressionParser.setVariable("x", x[0]);
+            sink += e.calculate();
+        }));
+    }
+
+    @Test
+    public void storedFormulasDontAllocate() throws ParsingError {
+        ExpressionStore store = new ExpressionStore();
+        int handle = store.add("if(x > y, sin(x) * y ^ 2, clamp(ln(y) - x, -1, 1)) + max(x, y, 1) - pi");
+        double[] values = new double[store.variableCount()];
+        values[store.slotOf("y")] = 0.5;
+
+        assertEquals(0, allocatedBytes(() -> {
+            values[store.slotOf("x")] += 0.25;
+            sink += store.calculate(handle, values);
+        }));
+    }
+
+    @Test
+    public void storedNaryFunctionsDontAllocate() throws ParsingError {
+        ExpressionParser.addOperator(Operator.nary("mean", 1, Operator.VARIADIC, a -> {
+            double sum = 0;
+            for (double v: a) sum += v;
+            return sum / a.length;
+        }));
+        ExpressionStore store = new ExpressionStore();
+        int handle = store.add("mean(x, y, 1) * mean(x, mean(y, 2)) + mean(x)");
+        double[] values = new double[store.variableCount()];
+        values[store.slotOf("y")] = 4;
+        assertEquals((4 + 1) / 3.0 * (3 / 2.0), store.calculate(handle, values), 1e-12);
+
+        assertEquals(0, allocatedBytes(() -> {
+            values[store.slotOf("x")] += 0.25;
+            sink += store.calculate(handle, values);
+        }));
+    }
+
+    @Test
+    public void batchCalculationDoesntAllocate() throws ParsingError {
+        int rows = 256;
+        Expression e = ExpressionParser.parse("sqrt(x ^ 2 + y ^ 2) * if(x > 0, 1, -1)");
+        String[] names = {"y", "x"};
+        double[][] columns = new double[2][rows];
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = i;
+            columns[1][i] = i - rows / 2;
+        }
+        double[] results = new double[rows];
+
+        assertEquals(0, allocatedBytes(() -> ExpressionParser.calculateBatch(e, names, columns, results)));
+        assertEquals(-rows / 2, results[0], 1e-12);                      // x = -128, y = 0
+        assertEquals(Math.hypot(10, rows / 2 + 10), results[rows / 2 + 10], 1e-12);
+    }
+
+    @Test
+    public void solvingDoesntAllocate() throws ParsingError {
+        Solver solver = new Solver(ExpressionParser.parse("x ^ 3 - a * x - 5"), "x");
+        Solver.Frame frame = solver.newFrame();
+        Solver.Frame minimum = new Solver(ExpressionParser.parse("(x - a) ^ 2 + (y + 1) ^ 2"), "x", "y").newFrame();
+        double[] point = new double[2];
+        double[] a = {0};
+
+        assertEquals(0, allocatedBytes(() -> {
+            a[0] = (a[0] + 0.5) % 8;
+            frame.set("a", a[0]);
+            sink += frame.brent(0, 0, 10) + frame.newton(0, 3);
+            minimum.set("a", a[0]);
+            point[0] = point[1] = 0;
+            sink += minimum.minimize(point, 1);
+        }));
+    }
+}
@@ -0,0 +1,177 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static arithmancy.Operator.Precedence.FUNC;
+import static org.junit.Assert.*;
+
+public class CanonicalizerTest {
+    private static final long STABLE_HASH = 4049757731577813299L;
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    @After
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    private static Expression canonical(String formula, boolean reassociate) throws ParsingError {
+        return Canonicalizer.canonicalize(ExpressionParser.parse(formula), reassociate);
+    }
+
+    private static void assertEquivalent(String a, String b, boolean reassociate) throws ParsingError {
+        Expression x = canonical(a, reassociate);
+        Expression y = canonical(b, reassociate);
+        assertEquals(a + " vs " + b, x.toString(), y.toString());
+        assertEquals(a + " vs " + b, Canonicalizer.hash(x), Canonicalizer.hash(y));
+        assertTrue(a + " vs " + b, Canonicalizer.sameStructure(x, y));
+    }
+
+    private static void assertDifferent(String a, String b, boolean reassociate) throws ParsingError {
+        Expression x = canonical(a, reassociate);
+        Expression y = canonical(b, reassociate);
+        assertNotEquals(a + " vs " + b, Canonicalizer.hash(x), Canonicalizer.hash(y));
+        assertFalse(a + " vs " + b, Canonicalizer.sameStructure(x, y));
+    }
+
+    @Test
+    public void commutativeOperandsAreSorted() throws ParsingError {
+        assertEquivalent("b+a", "a + b", false);
+        assertEquivalent("2*x", "x*2", false);
+        assertEquivalent("((x)) * (2)", "2 * x", false);
+        assertEquivalent("sin(x) * cos(y) + 1", "1 + cos(y) * sin(x)", false);
+        assertEquivalent("max(x, y) + pi * x", "x * pi + max(x, y)", false);
+        assertEquals("(2.0 * x)", canonical("x * 2", false).toString());
+        assertEquals("(a + b)", canonical("b + a", false).toString());
+    }
+
+    @Test
+    public void nonCommutativeOperandsStay() throws ParsingError {
+        assertDifferent("a - b", "b - a", false);
+        assertDifferent("a / b", "b / a", false);
+        assertDifferent("max(x, y)", "max(y, x)", false);
+        assertDifferent("x ^ 2", "2 ^ x", false);
+    }
+
+    @Test
+    public void chainsAreRegroupedOnlyOnRequest() throws ParsingError {
+        assertDifferent("(a + b) + c", "a + (b + c)", false);
+        assertDifferent("a + b + c", "c + b + a", false);
+
+        assertEquivalent("(a + b) + c", "a + (b + c)", true);
+        assertEquivalent("a + b + c", "c + b + a", true);
+        assertEquivalent("x * (2 * y) * sin(x)", "sin(x) * y * x * 2", true);
+        assertEquals("(((2.0 * x) * y) * z)", canonical("z * (y * (x * 2))", true).toString());
+        assertDifferent("a + b * c", "a * b + c", true);
+        assertDifferent("a - b - c", "a - c - b", true);                    // Not associative
+    }
+
+    @Test
+    public void impureOperandsAreNotReordered() throws ParsingError {
+        ExpressionParser.addOperator(Operator.unary("tick", FUNC, x -> x));
+        assertDifferent("tick(1) + tick(2)", "tick(2) + tick(1)", false);
+        assertEquivalent("tick(1) + (x + 2)", "tick(1) + (2 + x)", false);
+        assertEquals("((tick(1.0) + tick(2.0)) + x)", canonical("tick(1) + (tick(2) + x)", true).toString());
+    }
+
+    @Test
+    public void canonicalFormCalculatesTheSame() throws ParsingError {
+        Expression e = ExpressionParser.parse("y * (x + 3) - sin(x) * 2 + max(y, x) * y");
+        Expression c = Canonicalizer.canonicalize(e);
+        assertNotSame(e, c);
+        assertEquals(e.dependsOnVariables(), c.dependsOnVariables());
+        for (double x = -2; x <= 2; x += 0.5) {
+            ExpressionParser.setVariable("x", x);
+            ExpressionParser.setVariable("y", x * x - 1);
+            assertEquals(e.calculate(), c.calculate(), 0);                  // Exactly
+        }
+    }
+
+    @Test
+    public void canonicalExpressionsAreReturnedAsTheyAre() throws ParsingError {
+        Expression e = ExpressionParser.parse("(a + b) * sin(2 * x) - 1");
+        Expression c = Canonicalizer.canonicalize(e);
+        assertSame(c, Canonicalizer.canonicalize(c));
+        Expression d = ExpressionParser.parse("a - b");
+        assertSame(d, Canonicalizer.canonicalize(d));
+        Expression leaf = ExpressionParser.parse("x");
+        assertSame(leaf, Canonicalizer.canonicalize(leaf, true));
+    }
+
+    @Test
+    public void hashIsStable() throws ParsingError {
+        long hash = Canonicalizer.hash(canonical("x * 2 + 1", false));
+        assertEquals(hash, Canonicalizer.hash(ExpressionParser.parse("1 + 2 * x")));
+        assertEquals(STABLE_HASH, hash);                                    // Same in every run
+        assertNotEquals(hash, Canonicalizer.hash(ExpressionParser.parse("1 + 2 * y")));
+        assertNotEquals(hash, Canonicalizer.hash(ExpressionParser.parse("1 + 3 * x")));
+        assertNotEquals(Canonicalizer.hash(ExpressionParser.parse("-x")), Canonicalizer.hash(ExpressionParser.parse("+x")));
+    }
+
+    @Test
+    public void deepChains() throws ParsingError {
+        StringBuilder sum = new StringBuilder("x");
+        for (int i = 0; i < 100_000; i++) sum.append(i % 2 == 0 ? " + y" : " + x");
+        Expression e = canonical(sum.toString(), true);
+        ExpressionParser.setVariable("x", 1.0);
+        ExpressionParser.setVariable("y", 2.0);
+        assertEquals(50_001 + 2 * 50_000, e.calculate(), 0);
+        String printed = e.toString();
+        assertTrue(printed.endsWith(" + y) + y)"));                          // All x first
+        assertTrue(printed.contains("((x + x) + x)"));
+    }
+
+    @Test
+    public void cacheSharesEquivalentFormulas() throws ParsingError {
+        FormulaCache cache = new FormulaCache(16);
+        Expression first = cache.get("b+a*2");
+        assertSame(first, cache.get("2 * a + b"));
+        assertSame(first, cache.get("b+a*2"));
+        assertNotSame(first, cache.get("b-a*2"));
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(2, cache.size());
+
+        ExpressionParser.setVariable(first, "a", 3.0);
+        ExpressionParser.setVariable(first, "b", 1.0);
+        assertEquals(7, cache.get("a * 2 + b").calculate(), 0);
+
+        FormulaCache regrouping = new FormulaCache(16, true);
+        assertSame(regrouping.get("a + b + c"), regrouping.get("c + (b + a)"));
+    }
+
+    @Test
+    public void cacheIsEmptiedWhenOperatorsChange() throws ParsingError {
+        ExpressionParser.addOperator(Operator.unary("twice", FUNC, x -> 2 * x));
+        FormulaCache cache = new FormulaCache(16);
+        Expression before = cache.get("twice 3");
+        assertEquals(6, before.calculate(), 0);
+
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addOperator(Operator.unary("twice", FUNC, x -> x + x + 1));
+        Expression after = cache.get("twice 3");
+        assertNotSame(before, after);
+        assertEquals(7, after.calculate(), 0);
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void cacheEvictsLeastRecentlyUsed() throws ParsingError {
+        FormulaCache cache = new FormulaCache(2);
+        Expression a = cache.get("x + 1");
+        cache.get("x + 2");
+        cache.get("x + 1");
+        cache.get("x + 3");                                                 // Evicts x + 2
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get("1 + x"));
+        assertEquals(3, cache.misses());
+        cache.get("x + 2");
+        assertEquals(4, cache.misses());
+    }
+}
@@ -0,0 +1,211 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class EvaluationServerTest {
+    private Path socket;
+    private EvaluationServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        ExpressionParser.loadDefaultKnownOperators();
+        socket = Files.createTempDirectory("arithmancy").resolve("server.sock");
+        server = new EvaluationServer(socket);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        assertFalse(Files.exists(socket));
+        Files.deleteIfExists(socket.getParent());
+    }
+
+    @Test
+    public void formulasAreRegisteredAndEvaluated() throws IOException {
+        try (EvaluationClient client = new EvaluationClient(socket)) {
+            EvaluationClient.Formula f = client.register("x * 2 + sin(y)");
+            assertEquals(List.of("x", "y"), f.variables());
+            assertArrayEquals(new double[] {2 + Math.sin(10), 4 + Math.sin(20), 6 + Math.sin(30)},
+                    client.evaluate(f, new double[] {1, 10, 2, 20, 3, 30}), 0);
+
+            assertEquals(f.id(), client.register("sin(y) + 2 * x").id());          // Equivalent
+            EvaluationClient.Formula constant = client.register("2 + 3");
+            assertTrue(constant.variables().isEmpty());
+            assertArrayEquals(new double[] {5}, client.evaluate(constant, new double[0]), 0);
+
+            double[] big = new double[2 * 100_000];                                 // Bigger than the buffers
+            for (int i = 0; i < big.length; i++) big[i] = i;
+            double[] results = client.evaluate(f, big);
+            for (int row = 0; row < results.length; row++) assertEquals(big[2 * row] * 2 + Math.sin(big[2 * row + 1]), results[row], 0);
+        }
+    }
+
+    @Test
+    public void errorsLeaveTheConnectionUsable() throws IOException {
+        try (EvaluationClient client = new EvaluationClient(socket)) {
+            IOException e = assertThrows(IOException.class, () -> client.register("x +* 2"));
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Parse error: "));
+            EvaluationClient.Formula f = client.register("x / y");
+            e = assertThrows(IOException.class, () -> client.evaluate(new EvaluationClient.Formula(12345, f.variables()), new double[] {1, 2}));
+            assertEquals("Unknown formula: 12345", e.getMessage());
+            e = assertThrows(IOException.class, () -> client.evaluate(new EvaluationClient.Formula(f.id(), List.of("x")), new double[] {1, 2}));
+            assertEquals("Expected 40 bytes of rows, got 24", e.getMessage());
+            EvaluationClient.Formula window = client.register("sma(x, y)");
+            e = assertThrows(IOException.class, () -> client.evaluate(window, new double[] {1, 0}));
+            assertEquals("Invalid window size: 0.0", e.getMessage());
+            assertArrayEquals(new double[] {0.5}, client.evaluate(f, new double[] {1, 2}), 0);
+        }
+    }
+
+    private static ByteBuffer message(byte type, int id, ByteBuffer payload) {
+        ByteBuffer m = ByteBuffer.allocate(EvaluationServer.HEADER + payload.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        return m.putInt(m.capacity() - 4).put(type).putInt(id).put(payload).flip();
+    }
+
+    @Test
+    public void pipelinedRequestsAreBatchedAndAnsweredInOrder() throws IOException {
+        try (EvaluationClient client = new EvaluationClient(socket);
+             SocketChannel raw = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            raw.connect(UnixDomainSocketAddress.of(socket));
+            raw.write(message(EvaluationServer.REGISTER, 1, ByteBuffer.wrap("x ^ 2".getBytes(StandardCharsets.UTF_8))));
+            ByteBuffer registered = ByteBuffer.allocate(EvaluationServer.HEADER + 4 + 2 + 2 + 1).order(ByteOrder.LITTLE_ENDIAN);
+            while (registered.hasRemaining()) assertTrue(raw.read(registered) >= 0);
+            int id = registered.getInt(EvaluationServer.HEADER);
+            assertEquals(id, client.register("x ^ 2").id());
+
+            int requests = 50;
+            ByteBuffer all = ByteBuffer.allocate(requests * 64);
+            for (int i = 0; i < requests; i++) {
+                ByteBuffer rows = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putInt(id).putInt(1).putDouble(i).flip();
+                all.put(message(EvaluationServer.EVALUATE, 1000 + i, rows));
+            }
+            long batches = server.batchCount();
+            all.flip();
+            while (all.hasRemaining()) raw.write(all);
+
+            ByteBuffer responses = ByteBuffer.allocate(requests * (EvaluationServer.HEADER + 8)).order(ByteOrder.LITTLE_ENDIAN);
+            while (responses.hasRemaining()) assertTrue(raw.read(responses) >= 0);
+            responses.flip();
+            for (int i = 0; i < requests; i++) {
+                assertEquals(EvaluationServer.HEADER - 4 + 8, responses.getInt());
+                assertEquals(EvaluationServer.OK, responses.get());
+                assertEquals(1000 + i, responses.getInt());
+                assertEquals(i * i, responses.getDouble(), 0);
+            }
+            assertTrue(server.batchCount() - batches < requests);
+
+            raw.write(message((byte) 99, 1, ByteBuffer.allocate(0)));               // Makes no sense: the connection is closed
+            assertEquals(-1, raw.read(ByteBuffer.allocate(16)));
+            assertArrayEquals(new double[] {9}, client.evaluate(client.register("x ^ 2"), new double[] {3}), 0);
+        }
+    }
+
+    @Test
+    public void concurrentClientsGetTheirOwnResults() throws Exception {
+        int clients = 8, calls = 500;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                int offset = c * 1000;
+                done.add(pool.submit(() -> {
+                    try (EvaluationClient client = new EvaluationClient(socket)) {
+                        EvaluationClient.Formula f = client.register("a - b * 2");
+                        double[] rows = new double[6], results = new double[3];
+                        for (int i = 0; i < calls; i++) {
+                            for (int r = 0; r < 3; r++) {
+                                rows[2 * r] = offset + i;
+                                rows[2 * r + 1] = r;
+                            }
+                            client.evaluate(f, rows, 3, results);
+                            for (int r = 0; r < 3; r++) assertEquals(offset + i - 2 * r, results[r], 0);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f: done) f.get(30, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(clients * (calls + 1), server.requestCount());
+    }
+
+    @Test
+    public void everyConnectionHasItsOwnSeriesStates() throws IOException {
+        try (EvaluationClient a = new EvaluationClient(socket); EvaluationClient b = new EvaluationClient(socket)) {
+            EvaluationClient.Formula sma = a.register("sma(x, 2)");
+            assertEquals(sma.id(), a.register("sma(x, 2)").id());
+            EvaluationClient.Formula other = b.register("sma(x, 2)");
+            assertNotEquals(sma.id(), other.id());
+
+            assertArrayEquals(new double[] {1, 2}, a.evaluate(sma, new double[] {1, 3}), 0);
+            assertArrayEquals(new double[] {10}, b.evaluate(other, new double[] {10}), 0);
+            assertArrayEquals(new double[] {4}, a.evaluate(sma, new double[] {5}), 0);
+            assertArrayEquals(new double[] {15}, b.evaluate(other, new double[] {20}), 0);
+        }
+    }
+
+    private void awaitFormulaCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (server.formulaCount() != count) {
+            assertTrue("Still " + server.formulaCount() + " formulas", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void formulasAreFreedWhenTheConnectionsThatRegisteredThemClose() throws Exception {
+        server.close();
+        server = new EvaluationServer(socket, 1);                                  // Evicts all but the last formula
+        EvaluationClient first = new EvaluationClient(socket), second = new EvaluationClient(socket);
+        EvaluationClient.Formula f = first.register("x + 1");
+        EvaluationClient.Formula other = first.register("x + 2");
+        assertNotEquals(f.id(), other.id());
+        assertEquals(f.id(), first.register("x + 1").id());                          // Kept while registered
+        assertEquals(f.id(), second.register("x + 1").id());
+        IOException e = assertThrows(IOException.class, () -> second.evaluate(other, new double[] {1}));
+        assertEquals("Unknown formula: " + other.id(), e.getMessage());             // Registered by the other connection only
+        assertEquals(2, server.formulaCount());
+
+        first.close();
+        awaitFormulaCount(1);
+        assertArrayEquals(new double[] {3}, second.evaluate(f, new double[] {2}), 0);
+        second.close();
+        awaitFormulaCount(0);
+
+        try (EvaluationClient client = new EvaluationClient(socket)) {
+            int id = client.register("y * 3").id();
+            assertTrue(id == 0 || id == 1);                                         // Freed ones are given again
+            assertArrayEquals(new double[] {6}, client.evaluate(client.register("y * 3"), new double[] {2}), 0);
+        }
+    }
+
+    @Test
+    public void closingTheServerEndsConnections() throws IOException {
+        EvaluationClient client = new EvaluationClient(socket);
+        EvaluationClient.Formula f = client.register("x");
+        server.close();
+        assertThrows(IOException.class, () -> client.evaluate(f, new double[] {1}));
+        client.close();
+        assertThrows(IOException.class, () -> new EvaluationClient(socket));
+        server = new EvaluationServer(socket);                                     // The socket is free again
+    }
+}
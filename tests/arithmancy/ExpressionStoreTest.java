@@ -0,0 +1,182 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static arithmancy.Operator.Precedence.FUNC;
+import static org.junit.Assert.*;
+
+public class ExpressionStoreTest {
+    private static final String[] FORMULAS = {
+            "42",
+            "pi",
+            "x",
+            "(x + 2) * (y - x) / 3 + x * (x - 1) * y - (y + 1) * (x - 2)",
+            "-x ^ 2 + sin(x) * ln(y) - exp(-x) / sqrt(y) + e",
+            "if(x > y, max(x, y, 3), clamp(x - y, -1, 1)) + min(x, 2 * 3)",
+            "if(x > 0, if(y > 0, 1, 2), if(y > 0, 3, max(x, y)))",
+            "-(-(-x))",
+    };
+
+    private ExpressionStore store;
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
+        store = new ExpressionStore();
+    }
+
+    @After
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    /**
+     * Adds the formula to the store and checks that the store calculates and prints it like the parsed tree.
+     */
+    private void assertStoredLikeParsed(String formula, double... xs) throws ParsingError {
+        Expression e = ExpressionParser.parse(formula);
+        int handle = store.add(e);
+        assertEquals(e.toString(), store.toString(handle));
+        assertEquals(e.toLispString(), store.toLispString(handle));
+        assertEquals(e.dependsOnVariables(), store.variablesOf(handle));
+
+        double[] values = new double[store.variableCount()];
+        for (double x: xs) {
+            double y = x / 2 + 1;
+            if (e.dependsOnVariables().contains("x")) ExpressionParser.setVariable("x", x);
+            if (e.dependsOnVariables().contains("y")) ExpressionParser.setVariable("y", y);
+            if (store.slotOf("x") >= 0) values[store.slotOf("x")] = x;
+            if (store.slotOf("y") >= 0) values[store.slotOf("y")] = y;
+            assertEquals(formula + " at " + x, e.calculate(), store.calculate(handle, values), 0);
+        }
+    }
+
+    @Test
+    public void storedFormulasMatchParsed() throws ParsingError {
+        for (String formula: FORMULAS) assertStoredLikeParsed(formula, -3, 0, 0.5, 7);
+        assertEquals(FORMULAS.length, store.formulaCount());
+    }
+
+    @Test
+    public void customOperators() throws ParsingError {
+        ExpressionParser.addOperator(Operator.unary("gauss", FUNC, x -> Math.exp(-x * x / 2)).memoize(16));
+        ExpressionParser.addOperator(Operator.nary("sum", 1, 8, a -> {
+            double s = 0;
+            for (double v: a) s += v;
+            return s;
+        }));
+        ExpressionParser.addOperator(Operator.lazy("firstpositive", 1, 8, a -> {
+            for (int i = 0; i < a.count(); i++) if (a.value(i) > 0) return a.value(i);
+            return 0;
+        }));
+        assertStoredLikeParsed("gauss(x) + sum(x, y, gauss(y), 4) * firstpositive(-x, y - 3, firstpositive(x, -y))", -2, 0, 1, 5);
+        assertStoredLikeParsed("sum(1) + firstpositive(x)", -1, 1);
+    }
+
+    @Test
+    public void lazyOperandsAreCalculatedOnDemand() throws ParsingError {
+        int[] calls = new int[1];
+        ExpressionParser.addOperator(Operator.unary("tick", FUNC, x -> ++calls[0]));
+        int handle = store.add("if(x > 0, tick(1), 0) + if(x > 0, 0, tick(2))");
+        double[] values = {1};
+
+        assertEquals(1, store.calculate(handle, values), 0);
+        assertEquals(1, calls[0]);
+        assertEquals(0 + 2, store.calculate(handle, values), 0);
+        assertEquals(2, calls[0]);
+    }
+
+    @Test
+    public void deepFormulas() throws ParsingError {
+        StringBuilder sum = new StringBuilder("x");
+        for (int i = 0; i < 100_000; i++) sum.append(" + x");
+        int handle = store.add(sum.toString());
+        assertEquals(100_001 * 0.5, store.calculate(handle, new double[]{0.5}), 0);
+
+        StringBuilder nested = new StringBuilder("x");
+        for (int i = 0; i < 1_000; i++) nested.insert(0, "sin(").append(")");
+        assertStoredLikeParsed(nested.toString(), 1);
+    }
+
+    @Test
+    public void variablesAreNumberedAcrossTheStore() throws ParsingError {
+        int a = store.add("b * 2 + a");
+        int b = store.add("c - b");
+        assertEquals(3, store.variableCount());
+        assertEquals(Set.of("b", "c"), store.variablesOf(b));
+
+        double[] values = new double[3];
+        values[store.slotOf("a")] = 1;
+        values[store.slotOf("b")] = 10;
+        values[store.slotOf("c")] = 100;
+        assertEquals(21, store.calculate(a, values), 0);
+        assertEquals(90, store.calculate(b, values), 0);
+        assertEquals(-1, store.slotOf("d"));
+        assertEquals("c", store.variableName(store.slotOf("c")));
+    }
+
+    @Test
+    public void manyFormulasShareTheArrays() throws ParsingError {
+        int count = 10_000;
+        int[] handles = new int[count];
+        for (int i = 0; i < count; i++) handles[i] = store.add("x * " + i + " + if(x > " + i + ", 1, 0)");
+        store.trimToSize();
+        assertEquals(count, store.formulaCount());
+        assertEquals(count * 11, store.nodeCount());                // x, i, *, SKIP, x, i, >, 1, 0, if, +
+        double[] values = {500.5};
+        for (int i = 0; i < count; i++) assertEquals(500.5 * i + (i <= 500 ? 1 : 0), store.calculate(handles[i], values), 1e-9);
+    }
+
+    @Test
+    public void storeCanBeUsedByOperators() throws ParsingError {
+        int inner = store.add("if(x > 0, x, -x)");
+        ExpressionParser.addOperator(Operator.unary("flip", FUNC, x -> store.calculate(inner, new double[]{x})));
+        int outer = store.add("if(x > 0, flip(x - 5), 0) * 2");
+        assertEquals(6, store.calculate(outer, new double[]{2}), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compiledExpressionsAreRejected() throws ParsingError {
+        store.add(ExpressionCompiler.compile(ExpressionParser.parse("x + 1")));
+    }
+
+    @Test
+    public void rejectedFormulasLeaveNothingBehind() throws ParsingError {
+        int handle = store.add("x * 2");
+        int operators = store.operatorCount();
+        OperatorInstance broken = (OperatorInstance) ExpressionParser.parse("zz * pi + max(x, 1) / 3 - 2");
+        broken.rightOperand = new ArgumentList(new Expression[0]);              // Not a parsed expression, found after the rest is emitted
+        assertThrows(IllegalArgumentException.class, () -> store.add(broken));
+
+        assertEquals(1, store.formulaCount());
+        assertEquals(1, store.variableCount());
+        assertEquals(-1, store.slotOf("zz"));
+        assertEquals(operators, store.operatorCount());
+        int other = store.add("pi / yy + max(x, 3)");
+        assertEquals(1, store.slotOf("yy"));
+        assertEquals(Math.PI / 2 + 3, store.calculate(other, new double[] {1, 2}), 0);
+        assertEquals(6, store.calculate(handle, new double[] {3, 0}), 0);
+    }
+
+    @Test
+    public void statefulFunctionsAreRejectedBeforeAnythingIsAdded() throws ParsingError {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> store.add("zz * pi + max(x, 1) - sma(x, 3)"));
+        assertEquals("Stateful functions can't be stored: sma", e.getMessage());
+        assertEquals(0, store.formulaCount());
+        assertEquals(0, store.nodeCount());
+        assertEquals(0, store.variableCount());
+        assertEquals(-1, store.slotOf("zz"));
+        assertEquals(0, store.operatorCount());
+        assertThrows(IllegalArgumentException.class, () -> new Solver(ExpressionParser.parse("lag(x, 1) - y"), "y"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidHandle() {
+        store.calculate(0, new double[0]);
+    }
+}
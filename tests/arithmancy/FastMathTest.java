@@ -0,0 +1,100 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+import java.util.function.DoubleUnaryOperator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the documented error bounds of FastMath against StrictMath. StrictMath is itself within 1 ULP of the exact result,
+ * so the measured error may exceed the documented one by up to 1 ULP.
+ */
+public class FastMathTest {
+    private static final int SAMPLES = 2_000_000;
+
+    private final SplittableRandom random = new SplittableRandom(20261018);
+
+    @After
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    private static double ulps(double actual, double expected) {
+        if (actual == expected) return 0;
+        return Math.abs(actual - expected) / Math.ulp(expected);
+    }
+
+    private double maxError(DoubleUnaryOperator fast, DoubleUnaryOperator strict, double from, double to) {
+        double max = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = random.nextDouble(from, to);
+            max = Math.max(max, ulps(fast.applyAsDouble(x), strict.applyAsDouble(x)));
+        }
+        return max;
+    }
+
+    @Test
+    public void expIsWithinBound() {
+        assertTrue(maxError(FastMath::exp, StrictMath::exp, -708, 709) <= FastMath.EXP_MAX_ULP + 1);
+        assertTrue(maxError(FastMath::exp, StrictMath::exp, -1, 1) <= FastMath.EXP_MAX_ULP + 1);
+    }
+
+    @Test
+    public void logIsWithinBound() {
+        assertTrue(maxError(x -> FastMath.log(Math.exp(x)), x -> StrictMath.log(Math.exp(x)), -700, 700) <= FastMath.LOG_MAX_ULP + 1);
+        assertTrue(maxError(FastMath::log, StrictMath::log, 0.5, 2) <= FastMath.LOG_MAX_ULP + 1);
+        assertTrue(maxError(FastMath::log, StrictMath::log, 1 - 1e-6, 1 + 1e-6) <= FastMath.LOG_MAX_ULP + 1);
+    }
+
+    @Test
+    public void sinCosTanAreWithinBounds() {
+        for (double range: new double[] {Math.PI / 4, 10, 800_000}) {
+            assertTrue(maxError(FastMath::sin, StrictMath::sin, -range, range) <= FastMath.SIN_COS_MAX_ULP + 1);
+            assertTrue(maxError(FastMath::cos, StrictMath::cos, -range, range) <= FastMath.SIN_COS_MAX_ULP + 1);
+            assertTrue(maxError(FastMath::tan, StrictMath::tan, -range, range) <= FastMath.TAN_MAX_ULP + 1);
+        }
+    }
+
+    @Test
+    public void powIsWithinBound() {
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = Math.exp(random.nextDouble(-20, 20));
+            double y = random.nextDouble(-30, 30);
+            double expected = StrictMath.pow(x, y);
+            if (!(expected >= Double.MIN_NORMAL && expected <= Double.MAX_VALUE)) continue;
+
+            double bound = FastMath.POW_MAX_ULP + Math.abs(y * Math.log(x)) * FastMath.POW_MAX_ULP_PER_LOG + 1;
+            double error = ulps(FastMath.pow(x, y), expected);
+            assertTrue(x + "^" + y + " is off by " + error + " ULP", error <= bound);
+            assertTrue(Math.abs(FastMath.pow(x, y) - expected) <= 1e-12 * expected);
+        }
+    }
+
+    @Test
+    public void specialValuesMatchMath() {
+        double[] specials = {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, -0.0, 1.0, -1.0,
+                Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, 1e6, -1e6, 710, -750};
+        for (double x: specials) {
+            assertEquals(Math.exp(x), FastMath.exp(x), 0);
+            assertEquals(Math.log(x), FastMath.log(x), 0);
+            assertEquals(Math.sin(x), FastMath.sin(x), Math.ulp(Math.sin(x)) * FastMath.SIN_COS_MAX_ULP);
+            assertEquals(Math.cos(x), FastMath.cos(x), Math.ulp(Math.cos(x)) * FastMath.SIN_COS_MAX_ULP);
+            for (double y: specials) {
+                double bound = FastMath.POW_MAX_ULP + Math.abs(y * Math.log(x)) * FastMath.POW_MAX_ULP_PER_LOG;
+                if (Double.isNaN(bound)) bound = 0;
+                assertEquals(Math.pow(x, y), FastMath.pow(x, y), Math.ulp(Math.pow(x, y)) * bound);
+            }
+        }
+    }
+
+    @Test
+    public void fastMathOperatorSet() throws ParsingError {
+        ExpressionParser.loadFastMathKnownOperators();
+        Expression e = ExpressionParser.parse("e^(3*ln 2) + sin(pi/6) + cos 0 + exp 1 + tg 0");
+        assertEquals(8 + 0.5 + 1 + Math.E, e.calculate(), 1e-12);
+    }
+}
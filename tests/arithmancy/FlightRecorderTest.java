@@ -0,0 +1,80 @@
+package arithmancy;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderTest {
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    private static List<RecordedEvent> eventsOf(Recording recording, String name) throws IOException {
+        Path file = File.createTempFile("arithmancy", ".jfr").toPath();
+        try {
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file).stream().filter(e -> e.getEventType().getName().equals(name)).collect(Collectors.toList());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void parseAndBatchEventsDescribeTheFormula() throws Exception {
+        String formula = "x * y + sin(x) - 2";
+        double[] results = new double[100];
+        double[][] columns = {new double[100], new double[100]};
+
+        try (Recording recording = new Recording()) {
+            recording.enable("arithmancy.Parse").withThreshold(java.time.Duration.ZERO);
+            recording.enable("arithmancy.BatchEvaluation").withThreshold(java.time.Duration.ZERO);
+            recording.start();
+            Expression e = ExpressionParser.parse(formula);
+            ExpressionParser.calculateBatch(e, new String[]{"x", "y"}, columns, results);
+            recording.stop();
+
+            List<RecordedEvent> parses = eventsOf(recording, "arithmancy.Parse");
+            assertEquals(1, parses.size());
+            RecordedEvent parse = parses.get(0);
+            assertEquals(formula.length(), parse.getInt("formulaLength"));
+            assertEquals(8, parse.getInt("nodeCount"));                  // -, +, *, x, y, sin, x, 2
+            assertEquals(2, parse.getInt("variableCount"));
+            assertTrue(parse.getLong("operatorSetVersion") > 0);
+
+            List<RecordedEvent> batches = eventsOf(recording, "arithmancy.BatchEvaluation");
+            assertEquals(1, batches.size());
+            assertEquals(100, batches.get(0).getInt("rows"));
+            assertEquals(parse.getLong("operatorSetVersion"), batches.get(0).getLong("operatorSetVersion"));
+        }
+    }
+
+    @Test
+    public void operatorSetVersionChangesWithOperators() throws Exception {
+        try (Recording recording = new Recording()) {
+            recording.enable("arithmancy.Parse").withThreshold(java.time.Duration.ZERO);
+            recording.start();
+            ExpressionParser.parse("1 + 1");
+            ExpressionParser.addOperator(Operator.unary("half", Operator.Precedence.FUNC, x -> x / 2));
+            ExpressionParser.parse("half 1");
+            recording.stop();
+
+            List<RecordedEvent> parses = eventsOf(recording, "arithmancy.Parse");
+            assertEquals(2, parses.size());
+            assertTrue(parses.get(1).getLong("operatorSetVersion") > parses.get(0).getLong("operatorSetVersion"));
+        }
+    }
+}
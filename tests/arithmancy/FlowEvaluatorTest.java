@@ -0,0 +1,209 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static arithmancy.Operator.Precedence.FUNC;
+import static org.junit.Assert.*;
+
+public class FlowEvaluatorTest {
+    private static final Executor DIRECT = Runnable::run;
+    private final AtomicInteger tallies = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addOperator(Operator.unary("tally", FUNC, x -> {
+            tallies.incrementAndGet();
+            return x;
+        }));
+    }
+
+    @After
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    /**
+     * Keeps everything it gets, asks for nothing by itself
+     */
+    private static final class Recorder implements Flow.Subscriber<FlowEvaluator.Result> {
+        final List<FlowEvaluator.Result> results = new CopyOnWriteArrayList<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile Flow.Subscription subscription;
+
+        @Override public void onSubscribe(Flow.Subscription s) { subscription = s; }
+        @Override public void onNext(FlowEvaluator.Result item) { results.add(item); }
+        @Override public void onError(Throwable t) { done.completeExceptionally(t); }
+        @Override public void onComplete() { done.complete(null); }
+
+        String takeAll() {
+            List<String> r = new ArrayList<>();
+            for (FlowEvaluator.Result result: results) r.add(result.formula() + ":" + result.value());
+            results.clear();
+            return String.join(" ", r);
+        }
+    }
+
+    private static Expression parse(String formula) throws ParsingError {
+        return ExpressionParser.parse(formula);
+    }
+
+    @Test
+    public void burstsOfUpdatesAreCalculatedOnce() throws ParsingError {
+        FlowEvaluator evaluator = new FlowEvaluator(DIRECT, parse("tally(x) * 2"));
+        Recorder r = new Recorder();
+        evaluator.subscribe(r);
+        for (int i = 1; i <= 1000; i++) evaluator.update("x", i);
+        assertEquals(0, tallies.get());
+        assertEquals("", r.takeAll());
+
+        r.subscription.request(5);
+        assertEquals("0:2000.0", r.takeAll());
+        assertEquals(1, tallies.get());
+
+        evaluator.update("x", 1000);                                        // Same value: nothing to do
+        evaluator.update("x", 3);
+        assertEquals("0:6.0", r.takeAll());                                 // Demand left: delivered right away
+        assertEquals(2, tallies.get());
+    }
+
+    @Test
+    public void onlyDependentFormulasAreRecalculated() throws ParsingError {
+        FlowEvaluator evaluator = new FlowEvaluator(DIRECT, parse("tally(x) + 1"), parse("tally(y) * 2"), parse("tally(x) + y"), parse("2 + 3"));
+        Recorder r = new Recorder();
+        evaluator.subscribe(r);
+        r.subscription.request(Long.MAX_VALUE);
+        assertEquals("3:5.0", r.takeAll());                                 // The only formula without unset variables
+
+        evaluator.update("x", 1);
+        assertEquals("0:2.0", r.takeAll());
+        evaluator.update("y", 10);
+        assertEquals("1:20.0 2:11.0", r.takeAll());
+        tallies.set(0);
+        evaluator.update("y", 20);
+        assertEquals("1:40.0 2:21.0", r.takeAll());
+        assertEquals(2, tallies.get());
+        evaluator.update("z", 1);                                           // No formula uses it
+        assertEquals("", r.takeAll());
+    }
+
+    @Test
+    public void demandIsRespected() throws ParsingError {
+        FlowEvaluator evaluator = new FlowEvaluator(DIRECT, parse("a"), parse("b"), parse("c"));
+        for (String v: new String[] {"a", "b", "c"}) evaluator.update(v, 1);
+        Recorder slow = new Recorder(), fast = new Recorder();
+        evaluator.subscribe(slow);
+        evaluator.subscribe(fast);
+        fast.subscription.request(100);
+        assertEquals("0:1.0 1:1.0 2:1.0", fast.takeAll());
+
+        slow.subscription.request(1);
+        assertEquals("0:1.0", slow.takeAll());
+        evaluator.update("a", 2);
+        evaluator.update("c", 2);
+        assertEquals("0:2.0 2:2.0", fast.takeAll());
+        assertEquals("", slow.takeAll());
+        slow.subscription.request(2);
+        assertEquals("1:1.0 2:2.0", slow.takeAll());                        // Takes turns from where it stopped
+        slow.subscription.request(2);
+        assertEquals("0:2.0", slow.takeAll());
+    }
+
+    @Test
+    public void updatesComeFromPublishers() throws Exception {
+        FlowEvaluator evaluator = new FlowEvaluator(DIRECT, parse("bid / 2 + ask / 2"));
+        Recorder r = new Recorder();
+        evaluator.subscribe(r);
+        r.subscription.request(Long.MAX_VALUE);
+
+        try (SubmissionPublisher<FlowEvaluator.Update> bids = new SubmissionPublisher<>(DIRECT, 16);
+             SubmissionPublisher<FlowEvaluator.Update> asks = new SubmissionPublisher<>(DIRECT, 16)) {
+            evaluator.listenTo(bids);
+            evaluator.listenTo(asks);
+            bids.submit(new FlowEvaluator.Update("bid", 99));
+            asks.submit(new FlowEvaluator.Update("ask", 101));
+            assertEquals("0:100.0", r.takeAll());
+            bids.closeExceptionally(new IllegalStateException("feed down"));
+        }
+        ExecutionException e = assertThrows(ExecutionException.class, () -> r.done.get(1, TimeUnit.SECONDS));
+        assertEquals("feed down", e.getCause().getMessage());
+        assertTrue(evaluator.isClosed());
+        assertEquals(0, evaluator.subscriberCount());
+    }
+
+    @Test
+    public void closeCompletesSubscribers() throws Exception {
+        FlowEvaluator evaluator = new FlowEvaluator(DIRECT, parse("x + 1"));
+        Recorder r = new Recorder();
+        evaluator.subscribe(r);
+        evaluator.close();
+        r.done.get(1, TimeUnit.SECONDS);
+        evaluator.update("x", 1);                                           // Ignored
+
+        Recorder late = new Recorder();
+        evaluator.subscribe(late);
+        late.done.get(1, TimeUnit.SECONDS);
+        assertEquals("", late.takeAll());
+    }
+
+    @Test
+    public void badRequestsAndFailingFormulasEndTheSubscription() throws ParsingError {
+        ExpressionParser.addOperator(Operator.unary("boom", FUNC, x -> {
+            throw new ArithmeticException("boom");
+        }));
+        FlowEvaluator evaluator = new FlowEvaluator(DIRECT, parse("x"), parse("boom x"));
+        Recorder r = new Recorder();
+        evaluator.subscribe(r);
+        r.subscription.request(0);
+        assertTrue(r.done.isCompletedExceptionally());
+        assertEquals(0, evaluator.subscriberCount());
+
+        Recorder s = new Recorder();
+        evaluator.subscribe(s);
+        s.subscription.request(10);
+        evaluator.update("x", 1);
+        assertEquals("0:1.0", s.takeAll());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> s.done.get());
+        assertEquals("boom", e.getCause().getMessage());
+    }
+
+    @Test
+    public void concurrentUpdatesEndWithTheLatestValues() throws Exception {
+        FlowEvaluator evaluator = new FlowEvaluator(parse("x * 10"), parse("x - y"));
+        BlockingQueue<FlowEvaluator.Result> received = new LinkedBlockingQueue<>();
+        evaluator.subscribe(new Flow.Subscriber<FlowEvaluator.Result>() {
+            Flow.Subscription subscription;
+            @Override public void onSubscribe(Flow.Subscription s) { (subscription = s).request(1); }
+            @Override public void onNext(FlowEvaluator.Result item) { received.add(item); subscription.request(1); }
+            @Override public void onError(Throwable t) {}
+            @Override public void onComplete() {}
+        });
+
+        int n = 100_000;
+        Thread xs = new Thread(() -> { for (int i = 0; i <= n; i++) evaluator.update("x", i); });
+        Thread ys = new Thread(() -> { for (int i = 0; i <= n; i++) evaluator.update("y", -i); });
+        xs.start();
+        ys.start();
+        xs.join();
+        ys.join();
+
+        boolean productSeen = false, differenceSeen = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!(productSeen && differenceSeen) && System.nanoTime() < deadline) {
+            FlowEvaluator.Result r = received.poll(100, TimeUnit.MILLISECONDS);
+            if (r == null) continue;
+            productSeen |= r.formula() == 0 && r.value() == 10 * n;
+            differenceSeen |= r.formula() == 1 && r.value() == 2 * n;
+        }
+        assertTrue(productSeen && differenceSeen);
+        assertTrue(received.size() < 2 * n);                                // Coalesced
+        evaluator.close();
+    }
+}
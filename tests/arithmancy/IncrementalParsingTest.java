@@ -0,0 +1,161 @@
+package arithmancy;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IncrementalParsingTest {
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    private static List<Integer> positions(ParsedFormula f) {
+        List<Integer> positions = new ArrayList<>();
+        for (ParsingError e: f.errors()) positions.add(e.getPosition());
+        return positions;
+    }
+
+    /**
+     * Same tree as parse() gives for the text, or errors if parse() throws
+     */
+    private static void assertParsedAsAWhole(ParsedFormula f) {
+        Expression whole;
+        try {
+            whole = ExpressionParser.parse(f.text());
+        } catch (ParsingError e) {
+            assertFalse(f.text(), f.isValid());
+            assertNull(f.expression());
+            return;
+        }
+        assertTrue(f.text() + " " + f.errors(), f.isValid());
+        assertEquals(f.text(), whole.toLispString(), f.expression().toLispString());
+        assertEquals(f.text(), whole.dependsOnVariables(), f.expression().dependsOnVariables());
+    }
+
+    @Test
+    public void editsGiveWhatParsingAllOfItGives() {
+        String[] pieces = {"x", "yy", " ", "+", "-", "*", "/", "^", "(", ")", ",", "2", ".5", "sin", "max", "pi", "$", "sma(x, 3)", "(a + b)"};
+        Random random = new Random(7);
+        ParsedFormula f = ExpressionParser.parseForEditing("max(x, (yy + 2) * sin(a - b)) / (3 - x) + pi");
+        assertTrue(f.isValid());
+        String lastValid = f.text();
+        int valid = 0, broken = 0;
+        for (int i = 0; i < 20_000; i++) {
+            String text = f.text();
+            int offset = random.nextInt(text.length() + 1);
+            int removed = (offset == text.length() || random.nextBoolean()) ? 0 : random.nextInt(Math.min(4, text.length() - offset)) + 1;
+            String inserted = (removed > 0 && random.nextBoolean()) ? "" : pieces[random.nextInt(pieces.length)];
+            if (text.length() > 200 || broken > 3) {                                    // Back to a valid formula
+                offset = 0;
+                removed = text.length();
+                inserted = lastValid;
+            }
+            f = ExpressionParser.reparse(f, offset, removed, inserted);
+            assertEquals(text.substring(0, offset) + inserted + text.substring(offset + removed), f.text());
+            assertParsedAsAWhole(f);
+            if (!f.isValid() && random.nextBoolean()) {                                 // Undo what broke it
+                f = ExpressionParser.reparse(f, offset, inserted.length(), text.substring(offset, offset + removed));
+                assertEquals(text, f.text());
+                assertParsedAsAWhole(f);
+            }
+            if (f.isValid()) {
+                valid++;
+                broken = 0;
+                if (f.text().length() <= 200) lastValid = f.text();
+            } else {
+                broken++;
+            }
+        }
+        assertTrue(valid > 5000);
+    }
+
+    private static String name(int i) {
+        return "" + (char) ('a' + i / 26) + (char) ('a' + i % 26);
+    }
+
+    @Test
+    public void onlyTheBlockAroundAnEditIsLexedAgain() throws ParsingError {
+        StringBuilder text = new StringBuilder("x");
+        for (int i = 0; i < 200; i++) text.append(" + (x").append(name(i)).append(" * 3 - sin(y").append(name(i)).append("))");
+        ParsedFormula f = ExpressionParser.parseForEditing(text.toString());
+        assertTrue(f.isValid());
+        assertTrue(f.lexed >= text.length());
+
+        f = ExpressionParser.reparse(f, text.indexOf("(ydw") + 1, 0, "2 * ");
+        assertTrue(f.isValid());
+        assertEquals("2 * ydw".length(), f.lexed);
+        assertEquals(ExpressionParser.parse(f.text()).toLispString(), f.expression().toLispString());
+
+        int at = f.text().indexOf("xfu");
+        f = ExpressionParser.reparse(f, at, 3, "(z + 1)");                             // Parentheses in it
+        assertTrue(f.isValid());
+        assertEquals(ExpressionParser.parse(f.text()).toLispString(), f.expression().toLispString());
+        assertTrue(f.expression().dependsOnVariables().contains("z"));
+        assertFalse(f.expression().dependsOnVariables().contains("xfu"));
+        assertEquals("(z + 1) * 3 - sin".length(), f.lexed);                         // Not the sin(...) after it
+
+        at = f.text().indexOf("* 3", f.text().indexOf("xgo"));
+        f = ExpressionParser.reparse(f, at, 0, "(");                                    // Unmatched
+        assertEquals(List.of(f.text().lastIndexOf("(xgo")), positions(f));
+        f = ExpressionParser.reparse(f, at, 1, "");                                     // Parsed all over
+        assertTrue(f.isValid());
+        assertTrue(f.lexed >= f.text().length());
+    }
+
+    @Test
+    public void errorsComeWithTheirPositions() {
+        ParsedFormula f = ExpressionParser.parseForEditing("2 * (x +) + max(1, * 3) + y $ 2");
+        assertEquals(List.of(7, 19, 28), positions(f));
+        assertEquals("Parse error: Operator + has no right operand", f.errors().get(0).getMessage());
+        assertEquals("Parse error: Invalid character detected", f.errors().get(2).getMessage());
+        assertNull(f.expression());
+
+        f = ExpressionParser.reparse(f, 28, 1, "*");
+        assertEquals(List.of(7, 19), positions(f));
+        f = ExpressionParser.reparse(f, 19, 2, "");
+        assertEquals(List.of(7), positions(f));
+        f = ExpressionParser.reparse(f, 8, 0, " 1");
+        assertTrue(f.isValid());
+        ExpressionParser.setVariable(f.expression(), "x", 2);
+        ExpressionParser.setVariable(f.expression(), "y", 3);
+        assertEquals(2 * 3 + 3 + 3 * 2, f.expression().calculate(), 0);
+
+        f = ExpressionParser.parseForEditing("a + b * c + d * * e + f");                  // At the operator, not where the chain starts
+        assertEquals(List.of(14), positions(f));
+        assertEquals("Parse error: Operator * has incomplete right operand", f.errors().get(0).getMessage());
+        f = ExpressionParser.reparse(f, 0, 0, "(1) - ");
+        assertEquals(List.of(20), positions(f));
+
+        assertEquals(List.of(0), positions(ExpressionParser.parseForEditing("1, 2")));
+        assertEquals(List.of(0), positions(ExpressionParser.parseForEditing("")));
+        assertEquals(List.of(3), positions(ExpressionParser.parseForEditing("(1))")));
+    }
+
+    @Test
+    public void variablesKeepTheirValuesAcrossEdits() {
+        ParsedFormula f = ExpressionParser.parseForEditing("(a + b) * c");
+        ExpressionParser.setVariable("a", 1);
+        ExpressionParser.setVariable("b", 2);
+        ExpressionParser.setVariable("c", 3);
+        assertEquals(9, f.expression().calculate(), 0);
+
+        ParsedFormula g = ExpressionParser.reparse(f, 10, 1, "d");
+        assertThrows(IllegalStateException.class, () -> ExpressionParser.reparse(f, 0, 0, "1"));
+        assertEquals(List.of("a", "b", "d"), new ArrayList<>(g.expression().dependsOnVariables()));
+        assertFalse(g.expression().allVariablesSet());
+        ExpressionParser.setVariable("d", 4);                                          // The variables of the last result
+        assertEquals(12, g.expression().calculate(), 0);
+        assertThrows(UnknownVariableException.class, () -> ExpressionParser.setVariable("c", 1));
+
+        g = ExpressionParser.reparse(g, 1, 1, "");
+        assertEquals(List.of("b", "d"), new ArrayList<>(g.expression().dependsOnVariables()));
+        assertThrows(IndexOutOfBoundsException.class, () -> ExpressionParser.reparse(ExpressionParser.parseForEditing("x"), 1, 1, ""));
+    }
+}
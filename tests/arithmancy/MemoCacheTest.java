@@ -0,0 +1,107 @@
+package arithmancy;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static arithmancy.Operator.Precedence.FUNC;
+import static arithmancy.Operator.Precedence.MUL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class MemoCacheTest {
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        ExpressionParser.loadDefaultKnownOperators();
+        calls.set(0);
+    }
+
+    @Test
+    public void repeatedCallsAreServedFromCache() throws ParsingError {
+        Operator slow = new Operator("slow", FUNC, x -> { calls.incrementAndGet(); return x * x; }).memoize(64);
+        assertTrue(ExpressionParser.addOperator(slow));
+        assertTrue(slow.isPure());
+
+        Expression e = ExpressionParser.parse("slow 2 + slow 2 + slow 3");
+        assertEquals(17, e.calculate(), 0);
+        assertEquals(17, e.calculate(), 0);
+
+        assertEquals(2, calls.get());
+        assertEquals(2, slow.memoCache().misses());
+        assertEquals(4, slow.memoCache().hits());
+    }
+
+    @Test
+    public void binaryAndNaryKeysUseAllArguments() throws ParsingError {
+        Operator pow = new Operator("%", MUL, (x, y) -> { calls.incrementAndGet(); return Math.pow(x, y); }).memoize(16);
+        Operator sum = Operator.nary("sum", 1, Operator.VARIADIC, a -> {
+            calls.incrementAndGet();
+            double s = 0;
+            for (double v: a) s += v;
+            return s;
+        }).memoize(16);
+        assertTrue(ExpressionParser.addOperator(pow));
+        assertTrue(ExpressionParser.addOperator(sum));
+
+        assertEquals(8 + 9, ExpressionParser.parse("2 % 3 + 3 % 2").calculate(), 0);
+        assertEquals(8 + 9, ExpressionParser.parse("2 % 3 + 3 % 2").calculate(), 0);
+        assertEquals(2, pow.memoCache().misses());
+
+        assertEquals(6 + 6 + 15, ExpressionParser.parse("sum(1, 2, 3) + sum(3, 2, 1) + sum(1, 2, 3, 4, 5)").calculate(), 0);
+        assertEquals(6 + 6 + 15, ExpressionParser.parse("sum(1, 2, 3) + sum(3, 2, 1) + sum(1, 2, 3, 4, 5)").calculate(), 0);
+        assertEquals(2, sum.memoCache().hits());                    // The 5-argument call is wider than the key and bypasses the cache
+        assertEquals(2 + 4, calls.get());
+    }
+
+    @Test
+    public void evictionKeepsResultsCorrect() {
+        MemoCache cache = new MemoCache(1, 8);
+        assertEquals(8, cache.capacity());
+        for (int round = 0; round < 3; round++)
+            for (int i = 0; i < 100; i++)
+                assertEquals(i * 2.0, cache.unary(i, x -> x * 2), 0);
+        assertTrue(cache.misses() > 100);
+
+        cache.clear();
+        assertEquals(0, cache.hits() + cache.misses());
+    }
+
+    @Test
+    public void capacitiesAreBounded() {
+        assertEquals(1 << 20, new MemoCache(1, (1 << 20) - 1).capacity());
+        Operator op = Operator.unary("half", FUNC, x -> x / 2);
+        for (int capacity: new int[] {0, MemoCache.MAX_CAPACITY + 1, (1 << 30) + 1, Integer.MAX_VALUE}) {
+            assertThrows(IllegalArgumentException.class, () -> op.memoize(capacity));
+        }
+    }
+
+    @Test
+    public void concurrentCallsGetTheirOwnResults() throws Exception {
+        MemoCache cache = new MemoCache(2, 256);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                tasks.add(pool.submit(() -> {
+                    for (int i = 0; i < 100_000; i++) {
+                        double x = i % 500, y = i % 7;
+                        assertEquals(x * 10 + y, cache.binary(x, y, (a, b) -> a * 10 + b), 0);
+                    }
+                }));
+            }
+            for (Future<?> f: tasks) f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(400_000, cache.hits() + cache.misses());
+    }
+}
@@ -0,0 +1,129 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+import static arithmancy.Operator.Precedence.FUNC;
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
+        Metrics.setEnabled(true);
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @Test
+    public void parsePhasesAndEvaluationAreTimed() throws ParsingError {
+        Expression e = ExpressionParser.parse("(x + 1) * (x - 1)");
+        ExpressionParser.setVariable("x", 3.0);
+        for (int i = 0; i < 10; i++) assertEquals(8, e.calculate(), 0);
+
+        assertEquals(1, Metrics.preprocessing().getCount());
+        assertEquals(1, Metrics.validation().getCount());
+        assertEquals(1, Metrics.parentheses().getCount());
+        assertEquals(1, Metrics.treeBuilding().getCount());
+        assertEquals(10, Metrics.evaluation().getCount());              // Only roots are timed
+        assertTrue(Metrics.evaluation().getMax() > 0);
+    }
+
+    @Test
+    public void operatorsAreCounted() throws ParsingError {
+        Expression e = ExpressionParser.parse("-x + max(x, 2) - if(x > 0, sin x, 0)");
+        ExpressionParser.setVariable("x", 1.0);
+        e.calculate();
+        e.calculate();
+
+        assertEquals(2, Metrics.operatorInvocations().get("binary +").longValue());
+        assertEquals(2, Metrics.operatorInvocations().get("unary -").longValue());
+        assertEquals(2, Metrics.operatorInvocations().get("lazy max").longValue());
+        assertEquals(2, Metrics.operatorInvocations().get("unary sin").longValue());
+        assertEquals(0, Metrics.operatorInvocations().get("unary cos").longValue());
+    }
+
+    @Test
+    public void deepTreesAreCountedOnce() throws ParsingError {
+        StringBuilder formula = new StringBuilder("1");
+        for (int i = 0; i < 1000; i++) formula.append(" + 1");
+        assertEquals(1001, ExpressionParser.parse(formula.toString()).calculate(), 0);
+
+        assertEquals(1000, Metrics.operatorInvocations().get("binary +").longValue());
+        assertEquals(1, Metrics.evaluation().getCount());
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled() throws ParsingError {
+        Metrics.setEnabled(false);
+        ExpressionParser.parse("1 + 2").calculate();
+
+        assertEquals(0, Metrics.preprocessing().getCount());
+        assertEquals(0, Metrics.evaluation().getCount());
+        assertEquals(0, Metrics.operatorInvocations().get("binary +").longValue());
+    }
+
+    @Test
+    public void snapshotsAreExposedThroughJmx() throws Exception {
+        Operator gauss = Operator.unary("gauss", FUNC, x -> Math.exp(-x * x / 2)).memoize(16);
+        ExpressionParser.addOperator(gauss);
+        Expression e = ExpressionParser.parse("gauss 1 + gauss 1 + gauss 1 + gauss 2");
+        e.calculate();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("arithmancy:type=Metrics");
+        assertEquals(true, server.getAttribute(name, "Enabled"));
+        assertEquals(1L, ((CompositeData) server.getAttribute(name, "Evaluation")).get("count"));
+
+        TabularData invocations = (TabularData) server.getAttribute(name, "OperatorInvocations");
+        assertEquals(4L, invocations.get(new Object[]{"unary gauss"}).get("value"));
+        TabularData hitRates = (TabularData) server.getAttribute(name, "CacheHitRates");
+        assertEquals(0.5, (Double) hitRates.get(new Object[]{"unary gauss"}).get("value"), 0);
+    }
+
+    @Test
+    public void operatorsCanBeReadWhileTheyChange() throws Exception {
+        Thread loader = new Thread(() -> {
+            for (int i = 0; i < 2_000; i++) ExpressionParser.loadDefaultKnownOperators();
+        });
+        loader.start();
+        while (loader.isAlive()) {
+            for (String key: Metrics.operatorInvocations().keySet()) assertNotNull(key);       // Never half-built
+            Metrics.cacheHitRates();
+        }
+        loader.join();
+        assertTrue(Metrics.operatorInvocations().containsKey("binary +"));
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int v = 1; v <= 1000; v++) h.record(v * 1000L);
+        LatencyHistogram.Snapshot s = h.snapshot();
+
+        assertEquals(1000, s.getCount());
+        assertEquals(500_500, s.getMean(), 1e-9);
+        assertEquals(1_000_000, s.getMax());
+        assertEquals(500_000, s.getP50(), 500_000 / 32.0);              // Within one bucket
+        assertEquals(990_000, s.getP99(), 990_000 / 32.0);
+        assertTrue(s.getP999() >= 999_000);
+
+        for (long v = 0; v < 100_000; v += 7)
+            assertTrue(LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(v)) >= v);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+    }
+}
@@ -0,0 +1,189 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SeriesFunctionsTest {
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
+    }
+
+    @After
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    private static Expression parse(String formula) throws ParsingError {
+        return ExpressionParser.parse(formula);
+    }
+
+    private static double tick(Expression e, double x) {
+        ExpressionParser.setVariable(e, "x", x);
+        return e.calculate();
+    }
+
+    /**
+     * Prices with an occasional NaN, from a fixed seed
+     */
+    private static double[] series(int length, long seed) {
+        Random random = new Random(seed);
+        double[] xs = new double[length];
+        double price = 100;
+        for (int i = 0; i < length; i++) {
+            price += random.nextGaussian();
+            xs[i] = (random.nextInt(50) == 0) ? Double.NaN : price;
+        }
+        return xs;
+    }
+
+    /**
+     * What a series function should give at sample i, worked out from the whole window every time
+     */
+    private static double bruteForce(String f, double[] xs, int i, int n) {
+        int from = Math.max(0, i - n + 1), count = i - from + 1;
+        double sum = 0, max = Double.NEGATIVE_INFINITY, min = Double.POSITIVE_INFINITY;
+        for (int j = from; j <= i; j++) {
+            if (Double.isNaN(xs[j])) return Double.NaN;
+            sum += xs[j];
+            max = Math.max(max, xs[j]);
+            min = Math.min(min, xs[j]);
+        }
+        double mean = sum / count, squares = 0;
+        for (int j = from; j <= i; j++) squares += (xs[j] - mean) * (xs[j] - mean);
+        switch (f) {
+            case "sma": return mean;
+            case "stdev": return (count < 2) ? Double.NaN : Math.sqrt(squares / (count - 1));
+            case "highest": return max;
+            case "lowest": return min;
+        }
+        throw new AssertionError(f);
+    }
+
+    @Test
+    public void windowsMatchBruteForce() throws ParsingError {
+        double[] xs = series(3000, 41);
+        for (String f: new String[] {"sma", "stdev", "highest", "lowest"}) {
+            for (int n: new int[] {1, 2, 7, 50}) {
+                Expression e = parse(f + "(x, " + n + ")");
+                for (int i = 0; i < xs.length; i++) {
+                    double expected = bruteForce(f, xs, i, n), actual = tick(e, xs[i]);
+                    assertEquals(f + "(x, " + n + ") at " + i, expected, actual, Math.abs(expected) * 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lagAndEma() throws ParsingError {
+        double[] xs = series(500, 42);
+        Expression lag = parse("lag(x, 3)"), now = parse("lag(x, 0)"), ema = parse("ema(x, 0.25)");
+        double average = Double.NaN;
+        for (int i = 0; i < xs.length; i++) {
+            assertEquals("lag at " + i, (i < 3) ? Double.NaN : xs[i - 3], tick(lag, xs[i]), 0);
+            assertEquals(xs[i], tick(now, xs[i]), 0);
+            if (!Double.isNaN(xs[i])) average = Double.isNaN(average) ? xs[i] : average + 0.25 * (xs[i] - average);
+            assertEquals("ema at " + i, Double.isNaN(xs[i]) ? Double.NaN : average, tick(ema, xs[i]), 0);
+        }
+    }
+
+    @Test
+    public void everyUseHasItsOwnState() throws ParsingError {
+        Expression e = parse("sma(x, 2) - lag(x, 1)"), other = parse("sma(x, 2) - lag(x, 1)");
+        assertTrue(Double.isNaN(tick(e, 1)));
+        assertEquals(1.5 - 1, tick(e, 2), 0);
+        assertEquals(2.5 - 2, tick(e, 3), 0);
+        assertTrue(Double.isNaN(tick(other, 10)));                          // Knows nothing of e's samples
+
+        Expression both = parse("highest(x, 3) - highest(x + 1, 2)");
+        tick(both, 5);
+        assertEquals(5 - 6, tick(both, 2), 0);
+
+        Expression lazy = parse("if(x > 0, sma(x, 2), 0)");                // Samples only when the branch is taken
+        tick(lazy, 4);
+        tick(lazy, -100);
+        assertEquals(5, tick(lazy, 6), 0);
+
+        Expression resized = parse("sma(x, n)");
+        ExpressionParser.setVariable(resized, "n", 2);
+        tick(resized, 1);
+        assertEquals(1.5, tick(resized, 2), 0);
+        ExpressionParser.setVariable(resized, "n", 3);
+        assertEquals(9, tick(resized, 9), 0);                               // Starts over
+    }
+
+    @Test
+    public void compiledAndAdaptiveFormsKeepTheState() throws ParsingError {
+        String formula = "sma(x, 5) + stdev(x, 4) * 2 - highest(x, 3) + lag(x, 2) + ema(x, 0.5)";
+        double[] xs = series(200, 43);
+        Expression reference = parse(formula), e = parse(formula);
+        Expression compiled = ExpressionCompiler.compile(e), adaptive = new AdaptiveExpression(e);
+        for (int i = 0; i < xs.length; i++) {
+            Expression current = (i < 50) ? e : (i < 100) ? compiled : adaptive;
+            ExpressionParser.setVariable(current, "x", xs[i]);
+            assertEquals("at " + i, tick(reference, xs[i]), current.calculate(), 0);
+        }
+        assertEquals(5, Checkpoint.of(compiled).size());
+    }
+
+    @Test
+    public void checkpointsPickUpWhereTheyLeftOff() throws Exception {
+        String formula = "sma(x, 20) / lowest(x, 30) + stdev(x, 10) + lag(x, 5) + ema(x, 0.1) + 1";
+        double[] xs = series(400, 44);
+        Expression e = parse(formula);
+        for (int i = 0; i < 150; i++) tick(e, xs[i]);
+        Checkpoint saved = Checkpoint.of(e);
+        assertEquals(5, saved.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(saved);
+        }
+        Checkpoint loaded;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            loaded = (Checkpoint) in.readObject();
+        }
+        Expression restored = ExpressionCompiler.compile(parse(formula));
+        loaded.restore(restored);
+        for (int i = 150; i < xs.length; i++) {
+            ExpressionParser.setVariable(restored, "x", xs[i]);
+            assertEquals("at " + i, tick(e, xs[i]), restored.calculate(), 0);
+        }
+
+        Checkpoint.reset(e);
+        assertEquals(Double.NaN, tick(e, 1), 0);                            // stdev of one sample
+        loaded.restore(e);
+        List<Double> again = new ArrayList<>();
+        for (int i = 150; i < 160; i++) again.add(tick(e, xs[i]));
+        loaded.restore(e);
+        for (int i = 150; i < 160; i++) assertEquals(again.get(i - 150), tick(e, xs[i]), 0);
+
+        assertThrows(IllegalArgumentException.class, () -> loaded.restore(parse("sma(x, 20)")));
+        assertEquals(0, Checkpoint.of(parse("x + 1")).size());
+    }
+
+    @Test
+    public void badArgumentsAndMisuseAreRejected() throws ParsingError {
+        for (String formula: new String[] {"sma(x, 0)", "stdev(x, 2.5)", "highest(x, -1)", "lag(x, -1)", "ema(x, 0)", "ema(x, 1.5)", "lowest(x, 2000000)"}) {
+            Expression e = parse(formula);
+            assertThrows(formula, IllegalArgumentException.class, () -> tick(e, 1));
+        }
+        assertThrows(IllegalStateException.class, () -> Operator.stateful("rsi", 2, 2, BuiltIns.Series.SMA).pure());
+
+        ExpressionStore store = new ExpressionStore();
+        assertThrows(IllegalArgumentException.class, () -> store.add("x + sma(x, 3)"));
+        assertEquals(0, store.formulaCount());
+        assertFalse(Canonicalizer.canonicalize(parse("sma(x, 3)")) instanceof Constant);
+        assertEquals(3, tick(ExpressionCompiler.compile(parse("sma(3, 2) + x * 0")), 1), 0);
+    }
+}
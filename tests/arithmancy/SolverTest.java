@@ -0,0 +1,131 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SolverTest {
+    // Price of a bond with coupon c and n yearly payments, at yield y
+    private static final String BOND = "c / y * (1 - 1 / (1 + y) ^ n) + 100 / (1 + y) ^ n";
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    @After
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+
+    private static Expression parse(String formula) throws ParsingError {
+        return ExpressionParser.parse(formula);
+    }
+
+    private static double bond(double c, double n, double y) {
+        return c / y * (1 - 1 / Math.pow(1 + y, n)) + 100 / Math.pow(1 + y, n);
+    }
+
+    @Test
+    public void brentFindsBracketedRoots() throws ParsingError {
+        Solver.Frame frame = new Solver(parse("x ^ 3 - 2 * x - 5"), "x").newFrame();
+        assertEquals(2.0945514815423265, frame.brent(0, 2, 3), 1e-12);
+        assertEquals(2.0945514815423265, frame.get("x"), 1e-12);
+        assertTrue(frame.iterations() < 20);
+        assertEquals(2, frame.brent(-1, 0, 3), 1e-12);
+        assertTrue(Double.isNaN(frame.brent(0, 3, 4)));                     // Not bracketed
+        assertTrue(Double.isNaN(frame.get("x")));
+
+        Solver.Frame yield = new Solver(parse(BOND), "y").newFrame();
+        yield.set("c", 5).set("n", 10);
+        assertEquals(0.05, yield.brent(100, 0.001, 1), 1e-12);
+        yield.set("c", 7).set("n", 30);
+        assertEquals(0.0634, yield.brent(bond(7, 30, 0.0634), 0.001, 1), 1e-12);
+    }
+
+    @Test
+    public void newtonUsesTheDerivativeWhenThereIsOne() throws ParsingError {
+        Expression f = parse("x ^ 3 - 2 * x - 5");
+        Solver.Frame exact = new Solver(f, parse("3 * x ^ 2 - 2"), "x").newFrame();
+        Solver.Frame approximate = new Solver(f, "x").newFrame();
+        assertEquals(2.0945514815423265, exact.newton(0, 2), 1e-12);
+        assertEquals(2.0945514815423265, approximate.newton(0, 2), 1e-12);
+        assertTrue(exact.iterations() < 10);
+        assertTrue(Double.isNaN(exact.newton(0, Math.sqrt(2.0 / 3))));     // Derivative 0 at the start... or next to it
+        assertTrue(Double.isNaN(new Solver(parse("x ^ 2 + 1"), "x").setMaxIterations(50).newFrame().newton(0, 1)));
+
+        Solver.Frame derivativeOfItsOwn = new Solver(parse("exp(k * x) - 2"), parse("k * exp(k * x)"), "x").newFrame();
+        derivativeOfItsOwn.set("k", 3);
+        assertEquals(Math.log(2) / 3, derivativeOfItsOwn.newton(0, 0), 1e-14);
+    }
+
+    @Test
+    public void nelderMeadFindsMinima() throws ParsingError {
+        Solver.Frame rosenbrock = new Solver(parse("(1 - x) ^ 2 + 100 * (y - x * x) ^ 2"), "x", "y").newFrame();
+        double[] point = {-1.2, 1};
+        double minimum = rosenbrock.minimize(point, 0.5);
+        assertEquals(0, minimum, 1e-12);
+        assertEquals(1, point[0], 1e-5);
+        assertEquals(1, point[1], 1e-5);
+        assertEquals(point[0], rosenbrock.get("x"), 0);
+
+        Solver.Frame line = new Solver(parse("(x - a) ^ 2 + 3"), "x").newFrame();
+        line.set("a", -7);
+        double[] x = {100};
+        assertEquals(3, line.minimize(x, 1), 1e-12);
+        assertEquals(-7, x[0], 1e-5);
+
+        Solver.Frame nowhere = new Solver(parse("x + y"), "x", "y").setMaxIterations(10).newFrame();
+        double[] unbounded = {0, 0};
+        assertTrue(Double.isNaN(nowhere.minimize(unbounded, 1)));
+        assertTrue(Double.isNaN(unbounded[0]));
+    }
+
+    @Test
+    public void batchesAreSolvedInParallel() throws ParsingError {
+        int rows = 20_000;
+        Random random = new Random(42);
+        double[] coupons = new double[rows], years = new double[rows], prices = new double[rows], yields = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            coupons[i] = random.nextInt(12);
+            years[i] = 1 + random.nextInt(40);
+            yields[i] = 0.001 + random.nextDouble() * 0.2;
+            prices[i] = bond(coupons[i], years[i], yields[i]);
+        }
+        Solver solver = new Solver(ExpressionCompiler.compile(parse(BOND)), "y");
+        double[] roots = new double[rows];
+        solver.findRoots(new String[] {"c", "n"}, new double[][] {coupons, years}, prices, 1e-4, 1, roots);
+        for (int i = 0; i < rows; i++) assertEquals("row " + i, yields[i], roots[i], 1e-9);
+
+        AtomicInteger solved = new AtomicInteger();
+        double[] again = new double[rows];
+        int c = solver.slotOf("c"), n = solver.slotOf("n");
+        solver.solveAll(rows, (frame, i) -> {
+            again[i] = frame.set(c, coupons[i]).set(n, years[i]).newton(prices[i], 0.05);
+            solved.incrementAndGet();
+        });
+        assertEquals(rows, solved.get());
+        for (int i = 0; i < rows; i++) if (!Double.isNaN(again[i])) assertEquals("row " + i, yields[i], again[i], 1e-9);
+
+        RuntimeException e = assertThrows(IllegalStateException.class, () -> solver.solveAll(rows, (frame, i) -> {
+            if (i == 1234) throw new IllegalStateException("bad row");
+        }));
+        assertTrue(e.getMessage().endsWith("bad row"));
+    }
+
+    @Test
+    public void misuseIsRejected() throws ParsingError {
+        assertThrows(UnknownVariableException.class, () -> new Solver(parse("x + 1"), "y"));
+        assertThrows(IllegalArgumentException.class, () -> new Solver(parse("x + 1")));
+        assertThrows(IllegalArgumentException.class, () -> new Solver(parse("sma(x, 3)"), "x"));
+        Solver.Frame two = new Solver(parse("x * y"), "x", "y").newFrame();
+        assertThrows(IllegalStateException.class, () -> two.brent(0, -1, 1));
+        assertThrows(IllegalArgumentException.class, () -> two.minimize(new double[1], 1));
+        assertThrows(UnknownVariableException.class, () -> two.set("z", 1));
+    }
+}
@@ -0,0 +1,70 @@
+package arithmancy;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+
+import static org.junit.Assert.*;
+
+public class StartupTest {
+
+    /**
+     * Parses and calculates a formula in a fresh JVM
+     */
+    public static final class Probe {
+        public static void main(String[] args) throws ParsingError {
+            Expression e = ExpressionParser.parse("sin(x) * 2 + max(x, 1)");
+            ExpressionParser.setVariable("x", 1.0);
+            System.out.println(e.calculate());
+        }
+    }
+
+    @Test
+    public void firstParseLoadsNoLambdasRegexesOrRecorder() throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-Xshare:off", "-Xlog:class+load=info", "-cp", System.getProperty("java.class.path"),
+                Probe.class.getName()).redirectErrorStream(true).start();
+        List<String> loaded = new ArrayList<>();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            for (String line = out.readLine(); line != null; line = out.readLine()) loaded.add(line);
+        }
+        assertEquals(0, p.waitFor());
+        assertTrue(loaded.contains(String.valueOf(Math.sin(1) * 2 + 1)));
+
+        for (String line: loaded) {
+            assertFalse(line, line.contains("arithmancy.") && line.contains("$$Lambda"));
+            assertFalse(line, line.contains("arithmancy.ParserEx"));
+            assertFalse(line, line.contains("java.util.regex.Pattern "));
+            assertFalse(line, line.contains("java.lang.invoke.LambdaMetafactory"));
+            assertFalse(line, line.contains("jdk.jfr.internal"));
+        }
+    }
+
+    @Test
+    public void reloadsShareEffects() {
+        ExpressionParser.loadDefaultKnownOperators();
+        List<DoubleBinaryOperator> first = new ArrayList<>();
+        for (Operator op: ExpressionParser.knownOps().keySet()) {
+            assertTrue(op.token, op.isPure() || op.isStateful());
+            if (op.kind == Operator.Kind.BINARY) first.add(op.calculateBi);
+        }
+        ExpressionParser.loadDefaultKnownOperators();
+        for (Operator op: ExpressionParser.knownOps().keySet()) {
+            if (op.kind == Operator.Kind.BINARY) assertTrue(op.token, first.contains(op.calculateBi));
+        }
+
+        ExpressionParser.loadFastMathKnownOperators();
+        int differ = 0;
+        for (Operator op: ExpressionParser.knownOps().keySet()) {
+            if (op.kind == Operator.Kind.BINARY && !first.contains(op.calculateBi)) differ++;
+        }
+        assertEquals(1, differ);                                            // Only ^
+        ExpressionParser.loadDefaultKnownOperators();
+    }
+}
@@ -10,6 +10,7 @@ public class TestArithmeticParser {
     @Before
     public void setUp() throws Exception {
         ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
     }
 
     @Test(expected= ParsingError.class)
@@ -90,4 +91,127 @@ public class TestArithmeticParser {
         System.out.println(e.toString());
     }
 
+    @Test
+    public void testFunctionsOfArgumentLists() throws ParsingError {
+        Assert.assertEquals(ExpressionParser.parse("max(1, 4, 2) + min(3, 2 * 5)").calculate(), 7, 0.00001);
+        Assert.assertEquals(ExpressionParser.parse("clamp(7, 0, 5)").calculate(), 5, 0.00001);
+        Assert.assertEquals(ExpressionParser.parse("max 2").calculate(), 2, 0.00001);
+        Assert.assertEquals(ExpressionParser.parse("if(2 > 1, 10, 20)").calculate(), 10, 0.00001);
+        Assert.assertEquals(ExpressionParser.parse("piecewise(0, 1, 1 < 2, 2, 3)").calculate(), 2, 0.00001);
+        Assert.assertEquals(ExpressionParser.parse("piecewise(0, 1, 0, 2, 3)").calculate(), 3, 0.00001);
+        Assert.assertTrue(Double.isNaN(ExpressionParser.parse("piecewise(0, 1)").calculate()));
+    }
+
+    @Test
+    public void testLazyArgumentsAreNotCalculated() throws ParsingError {
+        Expression e = ExpressionParser.parse("if(x > 0, sqrt x, y) + and(0, y) + or(1, y)");
+        ExpressionParser.setVariable("x", 4.0);                     // y is never set, and never needed
+        Assert.assertEquals(e.calculate(), 3, 0.00001);
+        Assert.assertEquals(e.toString(), "((if((x > 0.0), sqrt(x), y) + and(0.0, y)) + or(1.0, y))");
+    }
+
+    @Test
+    public void testCustomNaryFunction() throws ParsingError {
+        Assert.assertTrue(ExpressionParser.addOperator(Operator.nary("avg", 1, Operator.VARIADIC, a -> {
+            double sum = 0;
+            for (double v: a) sum += v;
+            return sum / a.length;
+        })));
+        Expression e = ExpressionParser.parse("avg(1, 2, (3 + 6)) * 2");
+        Assert.assertEquals(e.calculate(), 8, 0.00001);
+        Assert.assertEquals(e.toLispString(), "*(avg(1.0,2.0,+(3.0,6.0)),2.0)");
+    }
+
+    @Test
+    public void testCustomOperatorsNextToBuiltInNames() throws ParsingError {
+        ExpressionParser.loadDefaultKnownOperators();
+        for (String name: new String[] {"floor", "norm", "diff", "minus", "maxabs", "rand", "flag"}) {
+            Assert.assertTrue(name, ExpressionParser.addOperator(Operator.unary(name, Operator.Precedence.FUNC, x -> x + 1)));
+        }
+        for (String symbol: new String[] {">=", "<=", "<<"}) {
+            Assert.assertTrue(symbol, ExpressionParser.addOperator(Operator.binary(symbol, Operator.Precedence.CMP, (x, y) -> x - y)));
+        }
+        Assert.assertFalse(ExpressionParser.addComparisonOperators());                      // < is in <=
+        Assert.assertFalse(ExpressionParser.addOperator(Operator.binary("=", Operator.Precedence.CMP, (x, y) -> x - y)));
+        Assert.assertEquals(ExpressionParser.parse("floor(or(0, 1)) + min(diff 1, 5) <= 2").calculate(), 2, 0.00001);
+    }
+
+    @Test(expected = ParsingError.class)
+    public void testWrongArgumentCount() throws ParsingError {
+        ExpressionParser.parse("if(1, 2)");
+    }
+
+    @Test(expected = ParsingError.class)
+    public void testArgumentListWithoutFunction() throws ParsingError {
+        ExpressionParser.parse("1 + (2, 3)");
+    }
+
+    @Test(expected = ParsingError.class)
+    public void testEmptyArgument() throws ParsingError {
+        ExpressionParser.parse("max(1, , 2)");
+    }
+
+    @Test
+    public void testHugeSum() throws ParsingError {
+        StringBuilder formula = new StringBuilder("1");
+        for (int i = 1; i < 200_000; i++) formula.append(i % 2 == 0 ? " + 1" : " + x");
+        Expression e = ExpressionParser.parse(formula.toString());
+        ExpressionParser.setVariable("x", 2.0);
+
+        Assert.assertEquals(100_000 + 2 * 100_000, e.calculate(), 0);
+        Assert.assertEquals(1, e.dependsOnVariables().size());
+        Assert.assertTrue(e.toString().endsWith(" + 1.0) + x)"));
+    }
+
+    @Test
+    public void testDeepParentheses() throws ParsingError {
+        int depth = 100_000;
+        StringBuilder formula = new StringBuilder();
+        for (int i = 0; i < depth; i++) formula.append("-(");
+        formula.append("max(1, if(x > 0, 2, y))");
+        for (int i = 0; i < depth; i++) formula.append(')');
+        Expression e = ExpressionParser.parse(formula.toString());
+        ExpressionParser.setVariable("x", 1.0);
+
+        Assert.assertEquals(2, e.calculate(), 0);
+        Assert.assertEquals(2, e.dependsOnVariables().size());
+        Assert.assertEquals(3 * depth + "max(1.0, if((x > 0.0), 2.0, y))".length(), e.toString().length());
+        Assert.assertTrue(e.toLispString().startsWith("-(-(-("));
+    }
+
+    @Test
+    public void testVariableDependencies() throws ParsingError {
+        StringBuilder formula = new StringBuilder("a");
+        for (int i = 0; i < 100; i++) formula.append(" + v").append((char) ('a' + i / 26)).append((char) ('a' + i % 26));
+        Expression e = ExpressionParser.parse(formula.toString());
+
+        Assert.assertEquals(101, e.dependsOnVariables().size());
+        Assert.assertSame(e.dependsOnVariables(), e.dependsOnVariables());
+        Assert.assertFalse(e.allVariablesSet());
+
+        for (String var: e.dependsOnVariables()) ExpressionParser.setVariable(var, 1.0);
+        Assert.assertTrue(e.allVariablesSet());
+        Assert.assertEquals(101, e.calculate(), 0);
+
+        ExpressionParser.setVariable("vdv", 2.0);
+        Assert.assertEquals(102, e.calculate(), 0);
+        Assert.assertEquals(Double.valueOf(2.0), ExpressionParser.getNamedValue("vdv").get());
+
+        ExpressionParser.unsetAllVariables();
+        Assert.assertFalse(e.allVariablesSet());
+        Assert.assertFalse(ExpressionParser.getNamedValue("a").isPresent());
+    }
+
+    @Test
+    public void testDependenciesOfSimpleExpressions() throws ParsingError {
+        Expression c = ExpressionParser.parse("2 * pi");
+        Assert.assertTrue(c.dependsOnVariables().isEmpty());
+        Assert.assertTrue(c.allVariablesSet());
+
+        Expression v = ExpressionParser.parse("(x)");
+        Assert.assertFalse(v.allVariablesSet());
+        ExpressionParser.setVariable("x", 3.0);
+        Assert.assertTrue(v.allVariablesSet());
+        Assert.assertEquals(3, v.calculate(), 0);
+    }
 }
@@ -0,0 +1,200 @@
+package arithmancy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static arithmancy.Operator.Precedence.ADD;
+import static org.junit.Assert.*;
+
+public class ZeroCopyParsingTest {
+
+    @Before
+    public void setUp() {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.addComparisonOperators();
+    }
+
+    @After
+    public void tearDown() {
+        ExpressionParser.loadDefaultKnownOperators();
+        ExpressionParser.resetNamedConstants();
+    }
+
+    /**
+     * Tokens as they come out of the lexer, numbers as their values
+     */
+    private static List<String> lexed(String formula) throws ParsingError {
+        Lexer lexer = new Lexer(ExpressionParser.lexicon(), FormulaSource.of(formula));
+        List<String> tokens = new ArrayList<>();
+        for (int t = lexer.next(); t != Lexer.END; t = lexer.next()) {
+            switch (t) {
+                case Lexer.ATOM:
+                    Object atom = lexer.atom();
+                    tokens.add((atom instanceof Constant) ? String.valueOf(((Constant) atom).calculate()) : (String) atom);
+                    break;
+                case Lexer.OPEN: tokens.add("("); break;
+                case Lexer.CLOSE: tokens.add(")"); break;
+                case Lexer.COMMA: tokens.add(","); break;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Tokens of the preprocessed formula, the way the parser used to split it
+     */
+    private static List<String> preprocessed(String formula) {
+        String normalized = ExpressionParser.preprocessExpression(formula);
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = (i < normalized.length()) ? normalized.charAt(i) : ' ';
+            if (c != ' ' && c != '(' && c != ')' && c != ',') {
+                if (start < 0) start = i;
+                continue;
+            }
+            if (start >= 0) {
+                String token = normalized.substring(start, i);
+                tokens.add(ParserEx.IS_A_NUMBER.matcher(token).matches() ? String.valueOf(Double.valueOf(token)) : token);
+                start = -1;
+            }
+            if (c != ' ') tokens.add(String.valueOf(c));
+        }
+        return tokens;
+    }
+
+    @Test
+    public void lexerSplitsLikePreprocessor() throws ParsingError {
+        ExpressionParser.addNamedConstant("τ", 2 * Math.PI);
+        String[] formulas = {
+                "  A  +(b*3.44^2mgh-1xpi)* (  2.c-1) -b", "2π√x", "xπ", "x.2", ".5", "1.2.3", "007.50", "12345678901234567890.5",
+                "0.1 + 0.2", "1e5", "max(a,b , c)", "SIN(X)\t*\ncos(y)\r", "ττ2τ", "a_b+c9d", "", "   ", "((x))"
+        };
+        for (String f: formulas) assertEquals(f, preprocessed(f), lexed(f));
+
+        Random random = new Random(42);
+        String[] pieces = {"a", "B", "x", "e", "pi", "π", "τ", "√", "sin", "max", "+", "-", "*", "/", "^", "<", ">", "(", ")", ",",
+                "0", "1", "9", ".", " ", "\t", "_", "ÿ"};
+        for (int n = 0; n < 20_000; n++) {
+            StringBuilder f = new StringBuilder();
+            for (int i = random.nextInt(16); i > 0; i--) f.append(pieces[random.nextInt(pieces.length)]);
+            assertEquals(f.toString(), preprocessed(f.toString()), lexed(f.toString()));
+        }
+    }
+
+    @Test
+    public void numbersAreExact() throws ParsingError {
+        Random random = new Random(7);
+        for (int n = 0; n < 10_000; n++) {
+            String number = (random.nextInt(4) == 0) ? Long.toString(random.nextLong() >>> random.nextInt(64))
+                    : (random.nextInt(1_000_000) + "." + Long.toString(random.nextLong() & Long.MAX_VALUE | 1L << 62).substring(0, 1 + random.nextInt(18)));
+            assertEquals(number, Double.parseDouble(number), ExpressionParser.parse(number).calculate(), 0);
+        }
+        assertEquals(0.30000000000000004, ExpressionParser.parse("0.1 + 0.2").calculate(), 0);
+        assertEquals(2, ExpressionParser.parse("2.").calculate(), 0);
+    }
+
+    @Test
+    public void allInputsGiveTheSameTree() throws ParsingError {
+        String formula = "Max(X, 2.5) * √Y - Pi / 2 + sin(x)^2";
+        Expression reference = ExpressionParser.parse(formula);
+        String expected = reference.toLispString();
+        ExpressionParser.setVariable(reference, "x", 1.0);
+        ExpressionParser.setVariable(reference, "y", 4.0);
+        double value = reference.calculate();
+
+        char[] padded = ("##" + formula + "##").toCharArray();
+        byte[] utf8 = ("##" + formula + "##").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length).put(utf8);
+        direct.position(1);
+        int utf8Length = formula.getBytes(StandardCharsets.UTF_8).length;
+
+        Expression[] parsed = {
+                ExpressionParser.parse(new StringBuilder(formula)),
+                ExpressionParser.parse(CharBuffer.wrap(formula)),
+                ExpressionParser.parse(padded, 2, formula.length()),
+                ExpressionParser.parse(ByteBuffer.wrap(utf8), 2, utf8Length),
+                ExpressionParser.parse(direct, 2, utf8Length)
+        };
+        for (Expression e: parsed) {
+            assertEquals(expected, e.toLispString());
+            ExpressionParser.setVariable(e, "x", 1.0);
+            ExpressionParser.setVariable(e, "y", 4.0);
+            assertEquals(value, e.calculate(), 0);
+        }
+        assertEquals(1, direct.position());
+        assertEquals(utf8.length, direct.limit());
+        assertEquals(formula.length(), ((OperatorInstance) parsed[3]).scope.formulaLength);
+    }
+
+    @Test
+    public void charsOutsideTheBasicPlane() throws ParsingError {
+        String formula = "2 𝑥 3";                               // Mathematical italic x, as a surrogate pair
+        assertTrue(ExpressionParser.addOperator(Operator.binary("𝑥", ADD, (x, y) -> x * y)));
+        byte[] utf8 = formula.getBytes(StandardCharsets.UTF_8);
+        assertEquals(6, ExpressionParser.parse(ByteBuffer.wrap(utf8), 0, utf8.length).calculate(), 0);
+        assertEquals(6, ExpressionParser.parse(formula).calculate(), 0);
+    }
+
+    @Test
+    public void errorsAreTheSameForAllInputs() {
+        String[][] cases = {
+                {"x # 1", "Invalid character detected"},
+                {"(x + 1", "Invalid parenthesis structure"},
+                {"x) + (1", "Invalid parenthesis structure"},
+                {"(x # 1", "Invalid character detected"},
+                {"x +", "Operator + has no right operand"},
+                {"()", "Empty expression"},
+        };
+        for (String[] c: cases) {
+            byte[] utf8 = c[0].getBytes(StandardCharsets.UTF_8);
+            assertError(c[1], () -> ExpressionParser.parse(c[0]));
+            assertError(c[1], () -> ExpressionParser.parse(c[0].toCharArray(), 0, c[0].length()));
+            assertError(c[1], () -> ExpressionParser.parse(ByteBuffer.wrap(utf8), 0, utf8.length));
+        }
+    }
+
+    @Test
+    public void malformedUtf8IsAParsingError() {
+        byte[][] malformed = {
+                {'x', '+', (byte) 0x80},                                    // Lone continuation byte
+                {'x', '+', (byte) 0xCF},                                    // Truncated π
+                {'x', '+', (byte) 0xC1, (byte) 0x81},                       // Overlong 'A'
+                {'x', '+', (byte) 0xED, (byte) 0xA0, (byte) 0x80},          // Encoded surrogate
+        };
+        for (byte[] bytes: malformed) {
+            try {
+                ExpressionParser.parse(ByteBuffer.wrap(bytes), 0, bytes.length);
+                fail("Parsed malformed UTF-8");
+            } catch (ParsingError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("UTF-8"));
+            }
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rangesAreChecked() throws ParsingError {
+        ExpressionParser.parse("x + 1".toCharArray(), 2, 4);
+    }
+
+    private interface Parse {
+        void run() throws ParsingError;
+    }
+
+    private static void assertError(String message, Parse parse) {
+        try {
+            parse.run();
+            fail("Expected: " + message);
+        } catch (ParsingError e) {
+            assertEquals("Parse error: " + message, e.getMessage());
+        }
+    }
+}